@@ -0,0 +1,326 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.SyntheticDicom.Modality;
+
+/**
+ * This class measures a send and receive round trip of synthetic DICOM files
+ * through an FTP-server on localhost (see LocalFtpServer) or a directory. The
+ * dataXchanger jar is run like a user runs it: one send with all files as
+ * --input and one receive with all receiver configuration files as --conf,
+ * each in a virtual machine of its own with the options of this one. So the
+ * measurement covers everything the tool does, including throttling,
+ * temporary files and the startup of the virtual machine. <br>
+ * The report gives MB/s and files/s of send and receive, followed by a
+ * single "result" line of key=value pairs for scripts. Throughput is given
+ * in MB of original DICOM data. <br>
+ * The jar is run with --metrics, so it prints its stage metrics at exit.
+ * The report adds the seconds of every stage, summed over its operations,
+ * and the MB/s of the stage while it runs, i.e. the bytes it processed
+ * divided by these seconds. Concurrent uploads are each counted, so their
+ * seconds may exceed the time of the send.
+ * 
+ * @author Kornelius Podranski
+ */
+public class EndToEndBenchmark {
+
+	/**
+	 * kinds of workloads.
+	 */
+	public enum Workload {
+		// many CT slices
+		SMALL(Modality.CT, 200),
+		// few large multi-frame objects
+		HUGE(Modality.MULTIFRAME, 2);
+
+		public final Modality modality;
+		public final int count;
+
+		Workload(Modality modality, int count) {
+			this.modality = modality;
+			this.count = count;
+		}
+	}
+
+	private final File jar;
+	private final File whitelistFile;
+	private final Workload workload;
+	private final int count;
+	private final boolean compress;
+	private final boolean directory;
+
+	public EndToEndBenchmark(File jar, File whitelistFile, Workload workload,
+			int count, boolean compress, boolean directory) {
+		this.jar = jar;
+		this.whitelistFile = whitelistFile;
+		this.workload = workload;
+		this.count = count;
+		this.compress = compress;
+		this.directory = directory;
+	}
+
+	/**
+	 * usage: EndToEndBenchmark JAR WHITELIST [small|huge] [COUNT]
+	 * [--compress] [--directory]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: EndToEndBenchmark JAR WHITELIST "
+					+ "[small|huge] [COUNT] [--compress] [--directory]");
+			System.exit(1);
+		}
+		Workload workload = Workload.SMALL;
+		int count = -1;
+		boolean compress = false;
+		boolean directory = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--compress"))
+				compress = true;
+			else if (args[i].equals("--directory"))
+				directory = true;
+			else if (Character.isDigit(args[i].charAt(0)))
+				count = Integer.parseInt(args[i]);
+			else
+				workload = Workload.valueOf(args[i].toUpperCase());
+		}
+		Security.addProvider(new BouncyCastleProvider());
+		new EndToEndBenchmark(new File(args[0]), new File(args[1]), workload,
+				count < 0 ? workload.count : count, compress, directory).run();
+	}
+
+	/**
+	 * generates the workload, runs send and receive and prints the report.
+	 */
+	public void run() throws Exception {
+		File work = File.createTempFile("dataXchanger-benchmark", "");
+		work.delete();
+		File send = new File(work, "send");
+		File store = new File(work, "store");
+		File receive = new File(work, "receive");
+		send.mkdirs();
+		store.mkdirs();
+		receive.mkdirs();
+		LocalFtpServer server = null;
+		try {
+			// preparation is not measured
+			System.out.printf("generating %d %s files...\n", count, workload
+					.name().toLowerCase());
+			SyntheticDicom generator = new SyntheticDicom(42);
+			List<String> sendArgs = new ArrayList<String>();
+			sendArgs.add("--send");
+			sendArgs.add("--whitelist");
+			sendArgs.add(whitelistFile.getAbsolutePath());
+			long bytes = 0;
+			for (int i = 0; i < count; i++) {
+				File file = new File(send, "file" + i + ".dcm");
+				SyntheticDicom.write(generator.create(workload.modality), file);
+				bytes += file.length();
+				sendArgs.add("--input");
+				sendArgs.add(file.getName());
+			}
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA",
+					BouncyCastleProvider.PROVIDER_NAME);
+			kpg.initialize(4096);
+			KeyPair keys = kpg.generateKeyPair();
+			File publicKey = new File(send, "rsa_public.pem");
+			File privateKey = new File(receive, "rsa_private.pem");
+			writePem(publicKey, "PUBLIC KEY", keys.getPublic().getEncoded());
+			writePem(privateKey, "PRIVATE KEY", keys.getPrivate()
+					.getEncoded());
+			sendArgs.add("--enc-key");
+			sendArgs.add(publicKey.getName());
+			if (compress)
+				sendArgs.add("--compress");
+			if (directory) {
+				sendArgs.add("--directory");
+				sendArgs.add(store.getAbsolutePath());
+			} else {
+				server = new LocalFtpServer(store);
+				server.start();
+				sendArgs.add("--ftp-server");
+				sendArgs.add("127.0.0.1");
+				sendArgs.add("--ftp-port");
+				sendArgs.add(String.valueOf(server.getPort()));
+				sendArgs.add("--ftp-user");
+				sendArgs.add("benchmark");
+				sendArgs.add("--ftp-password");
+				sendArgs.add("benchmark");
+			}
+
+			sendArgs.add("--metrics");
+			long start = System.nanoTime();
+			List<Map<String, String>> sendStages = execute(send, sendArgs);
+			long sendTime = System.nanoTime() - start;
+
+			List<String> receiveArgs = new ArrayList<String>();
+			receiveArgs.add("--receive");
+			receiveArgs.add("--dec-key");
+			receiveArgs.add(privateKey.getName());
+			for (int i = 0; i < count; i++) {
+				receiveArgs.add("--conf");
+				receiveArgs.add(new File(send, "file" + i + "_0.rconf")
+						.getAbsolutePath());
+			}
+			receiveArgs.add("--metrics");
+			start = System.nanoTime();
+			List<Map<String, String>> receiveStages = execute(receive,
+					receiveArgs);
+			long receiveTime = System.nanoTime() - start;
+			for (int i = 0; i < count; i++) {
+				if (new File(receive, "file" + i + ".dcm").length() == 0)
+					throw new IOException("file" + i + ".dcm not received");
+			}
+			List<Map<String, String>> stages = new ArrayList<Map<String, String>>(
+					sendStages);
+			stages.addAll(receiveStages);
+			report(bytes, sendTime, receiveTime, stages);
+		} finally {
+			if (server != null)
+				server.close();
+			delete(work);
+		}
+	}
+
+	/**
+	 * runs the jar in directory with the options of this virtual machine and
+	 * copies its output.
+	 * 
+	 * @return the metrics the jar printed for its stages, as key=value pairs
+	 */
+	private List<Map<String, String>> execute(File directory, List<String> args)
+			throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean()
+				.getInputArguments());
+		command.add("-jar");
+		command.add(jar.getAbsolutePath());
+		command.addAll(args);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.directory(directory);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		process.getOutputStream().close();
+		List<Map<String, String>> stages = new ArrayList<Map<String, String>>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(process
+				.getInputStream()));
+		for (String line; (line = in.readLine()) != null;) {
+			if (!line.startsWith("metrics ")) {
+				System.out.println(line);
+				continue;
+			}
+			Map<String, String> values = new HashMap<String, String>();
+			for (String pair : line.substring(8).split(" ")) {
+				int eq = pair.indexOf('=');
+				values.put(pair.substring(0, eq), pair.substring(eq + 1));
+			}
+			if ("Stage".equals(values.get("type")))
+				stages.add(values);
+		}
+		in.close();
+		int exitcode = process.waitFor();
+		if (exitcode != 0)
+			throw new IOException(args.get(0) + " failed with exit code "
+					+ exitcode);
+		return stages;
+	}
+
+	private static void writePem(File file, String type, byte[] encoded)
+			throws IOException {
+		PemWriter out = new PemWriter(new FileWriter(file));
+		try {
+			out.writeObject(new PemObject(type, encoded));
+		} finally {
+			out.close();
+		}
+	}
+
+	private void report(long bytes, long sendTime, long receiveTime,
+			List<Map<String, String>> stages) {
+		double mb = bytes / (1024.0 * 1024.0);
+		StringBuilder result = new StringBuilder();
+		result.append(String.format(Locale.US,
+				"result workload=%s files=%d mb=%.1f compress=%b transport=%s",
+				workload.name().toLowerCase(), count, mb, compress,
+				directory ? "directory" : "ftp"));
+		System.out.printf(Locale.US, "\n%d %s files, %.1f MB, %s transport%s\n",
+				count, workload.name().toLowerCase(), mb,
+				directory ? "directory" : "ftp", compress ? ", compressed"
+						: "");
+		System.out.printf(Locale.US, "%-16s %10s %10s %10s\n", "", "seconds",
+				"MB/s", "files/s");
+		for (Object[] phase : new Object[][] { { "send", sendTime },
+				{ "receive", receiveTime } }) {
+			double seconds = (Long) phase[1] / 1e9;
+			System.out.printf(Locale.US, "%-16s %10.2f %10.1f %10.1f\n",
+					phase[0], seconds, mb / seconds, count / seconds);
+			result.append(String.format(Locale.US,
+					" %s_s=%.3f %s_mb_s=%.1f %s_files_s=%.1f", phase[0],
+					seconds, phase[0], mb / seconds, phase[0], count
+							/ seconds));
+		}
+		if (!stages.isEmpty())
+			System.out.printf(Locale.US, "\n%-16s %10s %10s %10s\n",
+					"stage", "seconds", "MB/s", "count");
+		for (Map<String, String> stage : stages) {
+			String name = "stage_" + stage.get("name").replace('-', '_');
+			double seconds = Double.parseDouble(stage.get("seconds"));
+			double stageMb = Long.parseLong(stage.get("bytes"))
+					/ (1024.0 * 1024.0);
+			double rate = seconds == 0 ? 0 : stageMb / seconds;
+			System.out.printf(Locale.US, "%-16s %10.2f %10.1f %10s\n",
+					stage.get("name"), seconds, rate, stage.get("count"));
+			result.append(String.format(Locale.US, " %s_s=%.3f %s_mb_s=%.1f",
+					name, seconds, name, rate));
+		}
+		System.out.println();
+		System.out.println(result);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * This class provides a minimal FTP-server on localhost for benchmarks. It
+ * stores files flat in a root directory and supports the commands dataXchanger
+ * uses: USER, PASS, TYPE, EPSV, PASV, STOR, APPE, RETR, REST, SIZE, RNFR,
+ * RNTO, DELE, NOOP and QUIT. Any login is accepted. Every session runs on a
+ * thread of its own.
+ * 
+ * @author Kornelius Podranski
+ */
+public class LocalFtpServer implements Runnable {
+	private static final int BUFFERSIZE = 64 * 1024; // 64KB
+
+	private final File root;
+	private final ServerSocket server;
+	private volatile boolean closed = false;
+
+	/**
+	 * Listens on a free port of the loopback address.
+	 * 
+	 * @param root
+	 *            directory the files are stored in
+	 * @throws IOException
+	 */
+	public LocalFtpServer(File root) throws IOException {
+		this.root = root;
+		this.server = new ServerSocket(0, 1000, InetAddress.getByName(null));
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accepts sessions on a daemon thread.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "local-ftp-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+
+	/**
+	 * accepts sessions until closed.
+	 */
+	public void run() {
+		while (!closed) {
+			try {
+				final Socket control = server.accept();
+				Thread session = new Thread(new Runnable() {
+					public void run() {
+						try {
+							new Session(control).run();
+						} catch (IOException e) {
+							// session ends
+						} finally {
+							try {
+								control.close();
+							} catch (IOException e) {
+								// do nothing
+							}
+						}
+					}
+				}, "local-ftp-session");
+				session.setDaemon(true);
+				session.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	/**
+	 * one control connection.
+	 */
+	private class Session {
+		private final Socket control;
+		private final BufferedReader in;
+		private final Writer out;
+		private ServerSocket passive = null;
+		private long restart = 0;
+		private File renameFrom = null;
+
+		Session(Socket control) throws IOException {
+			this.control = control;
+			this.in = new BufferedReader(new InputStreamReader(control
+					.getInputStream(), "UTF-8"));
+			this.out = new OutputStreamWriter(control.getOutputStream(),
+					"UTF-8");
+		}
+
+		void run() throws IOException {
+			reply("220 dataXchanger benchmark server");
+			for (String line = in.readLine(); line != null; line = in
+					.readLine()) {
+				int space = line.indexOf(' ');
+				String command = (space == -1 ? line : line.substring(0, space))
+						.toUpperCase();
+				String argument = space == -1 ? "" : line.substring(space + 1);
+				if (command.equals("QUIT")) {
+					reply("221 bye");
+					return;
+				}
+				command(command, argument);
+			}
+		}
+
+		private void command(String command, String argument)
+				throws IOException {
+			if (command.equals("USER")) {
+				reply("331 password required");
+			} else if (command.equals("PASS")) {
+				reply("230 logged in");
+			} else if (command.equals("TYPE") || command.equals("MODE")
+					|| command.equals("STRU")) {
+				reply("200 ok");
+			} else if (command.equals("NOOP")) {
+				reply("200 ok");
+			} else if (command.equals("SYST")) {
+				reply("215 UNIX Type: L8");
+			} else if (command.equals("EPSV")) {
+				listen();
+				reply("229 Entering Extended Passive Mode (|||"
+						+ passive.getLocalPort() + "|)");
+			} else if (command.equals("PASV")) {
+				listen();
+				int port = passive.getLocalPort();
+				reply("227 Entering Passive Mode (127,0,0,1," + (port >> 8)
+						+ "," + (port & 0xff) + ")");
+			} else if (command.equals("REST")) {
+				restart = Long.parseLong(argument.trim());
+				reply("350 restarting at " + restart);
+			} else if (command.equals("SIZE")) {
+				File file = file(argument);
+				if (file == null || !file.isFile())
+					reply("550 no such file");
+				else
+					reply("213 " + file.length());
+			} else if (command.equals("STOR") || command.equals("APPE")) {
+				store(file(argument), command.equals("APPE"));
+			} else if (command.equals("RETR")) {
+				retrieve(file(argument));
+			} else if (command.equals("RNFR")) {
+				renameFrom = file(argument);
+				if (renameFrom == null || !renameFrom.exists())
+					reply("550 no such file");
+				else
+					reply("350 ready for RNTO");
+			} else if (command.equals("RNTO")) {
+				File to = file(argument);
+				if (renameFrom == null || to == null || to.exists()
+						|| !renameFrom.renameTo(to))
+					reply("553 rename failed");
+				else
+					reply("250 renamed");
+				renameFrom = null;
+			} else if (command.equals("DELE")) {
+				File file = file(argument);
+				if (file == null || !file.delete())
+					reply("550 delete failed");
+				else
+					reply("250 deleted");
+			} else {
+				reply("502 not implemented");
+			}
+		}
+
+		private void store(File file, boolean append) throws IOException {
+			if (file == null) {
+				reply("553 invalid name");
+				return;
+			}
+			Socket data = accept();
+			if (data == null)
+				return;
+			reply("150 receiving");
+			InputStream dIn = data.getInputStream();
+			OutputStream fOut = new FileOutputStream(file, append);
+			try {
+				byte[] buffer = new byte[BUFFERSIZE];
+				for (int n = dIn.read(buffer); n != -1; n = dIn.read(buffer))
+					fOut.write(buffer, 0, n);
+			} catch (IOException e) {
+				reply("426 transfer aborted");
+				return;
+			} finally {
+				fOut.close();
+				data.close();
+			}
+			reply("226 transfer complete");
+		}
+
+		private void retrieve(File file) throws IOException {
+			long offset = restart;
+			restart = 0;
+			if (file == null || !file.isFile()) {
+				reply("550 no such file");
+				return;
+			}
+			Socket data = accept();
+			if (data == null)
+				return;
+			reply("150 sending");
+			InputStream fIn = new FileInputStream(file);
+			OutputStream dOut = data.getOutputStream();
+			try {
+				fIn.skip(offset);
+				byte[] buffer = new byte[BUFFERSIZE];
+				for (int n = fIn.read(buffer); n != -1; n = fIn.read(buffer))
+					dOut.write(buffer, 0, n);
+			} catch (IOException e) {
+				// the client may stop a range download early
+				reply("426 transfer aborted");
+				return;
+			} finally {
+				fIn.close();
+				data.close();
+			}
+			reply("226 transfer complete");
+		}
+
+		private void listen() throws IOException {
+			if (passive != null)
+				passive.close();
+			passive = new ServerSocket(0, 1, control.getLocalAddress());
+		}
+
+		/**
+		 * accepts the data connection of the last EPSV/PASV.
+		 */
+		private Socket accept() throws IOException {
+			if (passive == null) {
+				reply("425 use EPSV or PASV first");
+				return null;
+			}
+			try {
+				return passive.accept();
+			} finally {
+				passive.close();
+				passive = null;
+			}
+		}
+
+		/**
+		 * resolves a name in the root directory, null for paths.
+		 */
+		private File file(String name) {
+			if (name.length() == 0 || name.indexOf('/') != -1
+					|| name.indexOf('\\') != -1 || name.equals("..")
+					|| name.equals("."))
+				return null;
+			return new File(root, name);
+		}
+
+		private void reply(String reply) throws IOException {
+			out.write(reply + "\r\n");
+			out.flush();
+		}
+	}
+}
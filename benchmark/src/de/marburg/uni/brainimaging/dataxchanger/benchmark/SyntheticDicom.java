@@ -0,0 +1,203 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomOutputStream;
+
+/**
+ * This class creates synthetic DICOM objects for benchmarks. The objects
+ * carry a typical set of patient, study, series and image elements and pixel
+ * data of the given geometry. Pixel values are a smooth gradient with noise,
+ * so compression behaves roughly like on real images. Equal seeds give equal
+ * objects.
+ * 
+ * @author Kornelius Podranski
+ */
+public class SyntheticDicom {
+
+	/**
+	 * geometries of typical objects.
+	 */
+	public enum Modality {
+		// computed radiography, one small image
+		CR(2048, 2048, 1),
+		// one slice of a CT series
+		CT(512, 512, 1),
+		// enhanced multi-frame object
+		MULTIFRAME(512, 512, 256);
+
+		public final int rows;
+		public final int columns;
+		public final int frames;
+
+		Modality(int rows, int columns, int frames) {
+			this.rows = rows;
+			this.columns = columns;
+			this.frames = frames;
+		}
+	}
+
+	private final Random random;
+
+	/**
+	 * 
+	 * @param seed
+	 *            seed of the random values
+	 */
+	public SyntheticDicom(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Creates an object of the given modality.
+	 * 
+	 * @param modality
+	 *            geometry and modality of the object
+	 * @return the object including file meta information
+	 */
+	public DicomObject create(Modality modality) {
+		return create(modality.name(), modality.rows, modality.columns,
+				modality.frames);
+	}
+
+	/**
+	 * Creates an object with 16 bit pixel data.
+	 * 
+	 * @param modality
+	 *            value of the modality element
+	 * @param rows
+	 *            rows of a frame
+	 * @param columns
+	 *            columns of a frame
+	 * @param frames
+	 *            number of frames
+	 * @return the object including file meta information
+	 */
+	public DicomObject create(String modality, int rows, int columns,
+			int frames) {
+		DicomObject dcm = new BasicDicomObject();
+		String sopInstanceUid = uid();
+		dcm.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+		dcm.putString(Tag.ImageType, VR.CS, "ORIGINAL\\PRIMARY\\AXIAL");
+		dcm.putString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+		dcm.putString(Tag.SOPInstanceUID, VR.UI, sopInstanceUid);
+		dcm.putString(Tag.StudyDate, VR.DA, "20130401");
+		dcm.putString(Tag.SeriesDate, VR.DA, "20130401");
+		dcm.putString(Tag.StudyTime, VR.TM, "101500");
+		dcm.putString(Tag.AccessionNumber, VR.SH, Integer.toString(random
+				.nextInt(1000000)));
+		dcm.putString(Tag.Modality, VR.CS, modality);
+		dcm.putString(Tag.Manufacturer, VR.LO, "dataXchanger benchmark");
+		dcm.putString(Tag.InstitutionName, VR.LO, "Synthetic Hospital");
+		dcm.putString(Tag.ReferringPhysicianName, VR.PN, "Doe^Jane");
+		dcm.putString(Tag.StudyDescription, VR.LO, "BENCHMARK STUDY");
+		dcm.putString(Tag.SeriesDescription, VR.LO, "BENCHMARK SERIES");
+		dcm.putString(Tag.PatientName, VR.PN, "Patient^"
+				+ random.nextInt(100000));
+		dcm.putString(Tag.PatientID, VR.LO, Integer.toString(random
+				.nextInt(100000000)));
+		dcm.putString(Tag.PatientBirthDate, VR.DA, "19700101");
+		dcm.putString(Tag.PatientSex, VR.CS, random.nextBoolean() ? "F" : "M");
+		dcm.putString(Tag.SliceThickness, VR.DS, "1.0");
+		dcm.putString(Tag.StudyInstanceUID, VR.UI, uid());
+		dcm.putString(Tag.SeriesInstanceUID, VR.UI, uid());
+		dcm.putString(Tag.FrameOfReferenceUID, VR.UI, uid());
+		dcm.putString(Tag.StudyID, VR.SH, "1");
+		dcm.putString(Tag.SeriesNumber, VR.IS, "1");
+		dcm.putString(Tag.InstanceNumber, VR.IS, "1");
+		dcm.putString(Tag.ImagePositionPatient, VR.DS, "0\\0\\0");
+		dcm.putString(Tag.ImageOrientationPatient, VR.DS, "1\\0\\0\\0\\1\\0");
+		dcm.putString(Tag.SamplesPerPixel, VR.US, "1");
+		dcm.putString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+		if (frames > 1)
+			dcm.putString(Tag.NumberOfFrames, VR.IS, Integer.toString(frames));
+		dcm.putString(Tag.Rows, VR.US, Integer.toString(rows));
+		dcm.putString(Tag.Columns, VR.US, Integer.toString(columns));
+		dcm.putString(Tag.PixelSpacing, VR.DS, "0.5\\0.5");
+		dcm.putString(Tag.BitsAllocated, VR.US, "16");
+		dcm.putString(Tag.BitsStored, VR.US, "12");
+		dcm.putString(Tag.HighBit, VR.US, "11");
+		dcm.putString(Tag.PixelRepresentation, VR.US, "0");
+		dcm.putString(Tag.WindowCenter, VR.DS, "2048");
+		dcm.putString(Tag.WindowWidth, VR.DS, "4096");
+		dcm.putBytes(Tag.PixelData, VR.OW, pixels(rows, columns, frames));
+		dcm.initFileMetaInformation(UID.SecondaryCaptureImageStorage,
+				sopInstanceUid, UID.ExplicitVRLittleEndian);
+		return dcm;
+	}
+
+	/**
+	 * Writes dcm as DICOM file.
+	 * 
+	 * @param dcm
+	 *            object created by create()
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 */
+	public static void write(DicomObject dcm, File file) throws IOException {
+		DicomOutputStream out = new DicomOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeDicomFile(dcm);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * creates little endian 12 bit pixel values.
+	 */
+	private byte[] pixels(int rows, int columns, int frames) {
+		byte[] pixels = new byte[2 * rows * columns * frames];
+		int i = 0;
+		for (int f = 0; f < frames; f++) {
+			for (int y = 0; y < rows; y++) {
+				for (int x = 0; x < columns; x++) {
+					int value = (x + y + f) * 2048 / (rows + columns)
+							+ random.nextInt(64);
+					pixels[i++] = (byte) value;
+					pixels[i++] = (byte) (value >> 8 & 0x0f);
+				}
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * creates a random UID below the 2.25 root.
+	 */
+	private String uid() {
+		return "2.25." + new BigInteger(127, random).toString();
+	}
+}
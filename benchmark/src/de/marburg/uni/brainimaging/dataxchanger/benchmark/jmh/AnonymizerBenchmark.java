@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.marburg.uni.brainimaging.dataxchanger.CountingOutputStream;
+import de.marburg.uni.brainimaging.dataxchanger.NullOutputStream;
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.SyntheticDicom;
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.SyntheticDicom.Modality;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelistAnonymizer;
+
+/**
+ * JMH benchmark of DicomWhitelistAnonymizer.anonymize() over synthetic DICOM
+ * objects held in memory. One operation anonymizes one object: a CR image, a
+ * slice of a 512 slice CT series or a 256 frame multi-frame object. Extra
+ * private elements, 256 of them whitelisted, show the cost per element.
+ * Items of a referenced image sequence, filtered by path rules, show the
+ * cost per sequence item. <br>
+ * With splice the whitelist preserves the transfer syntax, so only the header
+ * is parsed; without, every object is parsed and written completely. <br>
+ * Run with "-prof gc" to get the allocation rate (see
+ * test/dataXchanger_jmh.sh).
+ * 
+ * @author Kornelius Podranski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AnonymizerBenchmark {
+
+	// number of slices of the CT series
+	public static final int SLICES = 512;
+	// first element of the extra private elements
+	private static final int PRIVATETAG = 0x00291000;
+	// sequence with path rules in SyntheticWhitelist
+	private static final int SEQUENCETAG = 0x00081140;
+
+	@Param({ "CR", "CT", "MULTIFRAME" })
+	public Modality modality;
+
+	// number of private elements added to the header of each object
+	@Param({ "0", "1000" })
+	public int extraElements;
+
+	// number of items of a referenced image sequence added to each object
+	@Param({ "0", "100" })
+	public int sequenceItems;
+
+	@Param({ "true", "false" })
+	public boolean splice;
+
+	private File whitelistFile;
+	private DicomWhitelist whitelist;
+	// encoded objects, anonymized in turn
+	private byte[][] objects;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		whitelistFile = File.createTempFile("benchmark", ".whitelist");
+		SyntheticWhitelist.write(whitelistFile, 2, splice);
+		whitelist = new DicomWhitelist(whitelistFile);
+		SyntheticDicom generator = new SyntheticDicom(1);
+		objects = new byte[modality == Modality.CT ? SLICES : 1][];
+		for (int i = 0; i < objects.length; i++) {
+			DicomObject dcm = generator.create(modality);
+			dcm.putString(PRIVATETAG & 0xffff0000 | 0x10, VR.LO,
+					"DATAXCHANGER BENCHMARK");
+			for (int e = 0; e < extraElements; e++)
+				dcm.putString(PRIVATETAG + e, VR.LO, "value " + e);
+			if (sequenceItems > 0) {
+				DicomElement sq = dcm.putSequence(SEQUENCETAG, sequenceItems);
+				for (int e = 0; e < sequenceItems; e++)
+					sq.addDicomObject(item(e));
+			}
+			objects[i] = encode(dcm);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		whitelistFile.delete();
+		CompiledDicomWhitelist.compiledFile(whitelistFile).delete();
+	}
+
+	@Benchmark
+	public long anonymize() throws IOException {
+		byte[] object = objects[next];
+		next = (next + 1) % objects.length;
+		CountingOutputStream out = new CountingOutputStream(
+				new NullOutputStream());
+		DicomWhitelistAnonymizer.anonymize(new ByteArrayInputStream(object),
+				out, whitelist);
+		return out.getCount();
+	}
+
+	/**
+	 * creates an item with two whitelisted elements and one element that is
+	 * removed.
+	 */
+	private static DicomObject item(int i) {
+		DicomObject item = new BasicDicomObject();
+		item.putString(0x00081150, VR.UI, UID.SecondaryCaptureImageStorage);
+		item.putString(0x00081155, VR.UI, "2.25." + (1000000 + i));
+		item.putString(0x00081160, VR.IS, Integer.toString(i));
+		return item;
+	}
+
+	private static byte[] encode(DicomObject dcm) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DicomOutputStream dOut = new DicomOutputStream(out);
+		dOut.writeDicomFile(dcm);
+		dOut.close();
+		return out.toByteArray();
+	}
+
+}
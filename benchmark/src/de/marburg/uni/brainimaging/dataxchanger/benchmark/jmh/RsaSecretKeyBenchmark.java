@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.marburg.uni.brainimaging.dataxchanger.asymmetriccryptography.RsaSecretKeyEncryption;
+import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrStreamEncryption;
+
+/**
+ * JMH benchmarks of wrapping and unwrapping the secret key with RSA for every
+ * combination of provider and RSA key size. The number of threads is set on
+ * the JMH command line (see test/dataXchanger_jmh.sh).
+ * 
+ * @author Kornelius Podranski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RsaSecretKeyBenchmark {
+
+	// BC for BouncyCastle, JDK for the providers shipped with the JRE
+	@Param({ "BC", "JDK" })
+	public String provider;
+
+	// size of the RSA modulus in bits
+	@Param({ "2048", "4096" })
+	public int rsaKeySize;
+
+	private String name;
+	private KeyPair keyPair;
+	private SecretKey secretKey;
+	private byte[] wrapped;
+
+	@Setup
+	public void setup() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		name = provider.equals("BC") ? "BC" : "SunJCE";
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(rsaKeySize);
+		keyPair = kpg.generateKeyPair();
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(Aes256CtrStreamEncryption.KEYSIZE);
+		secretKey = generator.generateKey();
+		wrapped = RsaSecretKeyEncryption.encryptSecretKey(secretKey,
+				keyPair.getPublic(), name);
+	}
+
+	@Benchmark
+	public byte[] wrap() throws Exception {
+		return RsaSecretKeyEncryption.encryptSecretKey(secretKey,
+				keyPair.getPublic(), name);
+	}
+
+	@Benchmark
+	public SecretKey unwrap() throws Exception {
+		return RsaSecretKeyEncryption.decryptSecretKey(wrapped,
+				keyPair.getPrivate(), name);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.marburg.uni.brainimaging.dataxchanger.CountingOutputStream;
+import de.marburg.uni.brainimaging.dataxchanger.NullOutputStream;
+import de.marburg.uni.brainimaging.dataxchanger.messagedigest.Sha512StreamDigest;
+import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrStreamEncryption;
+
+/**
+ * JMH benchmarks of the stream encryption, decryption and digest over an
+ * in-memory payload. Every combination of provider, streambuffer size and
+ * payload size is measured; the number of threads is set on the JMH command
+ * line (see test/dataXchanger_jmh.sh). <br>
+ * Scores are operations per second, one operation processes the whole
+ * payload, so MB/s = score * payloadSize / 2^20.
+ * 
+ * @author Kornelius Podranski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamCryptoBenchmark {
+
+	// BC for BouncyCastle, JDK for the providers shipped with the JRE
+	@Param({ "BC", "JDK" })
+	public String provider;
+
+	// size of the streambuffer in bytes
+	@Param({ "1024", "16384", "65536", "1048576" })
+	public int bufferSize;
+
+	// size of the data processed per operation in bytes
+	@Param({ "65536", "16777216" })
+	public int payloadSize;
+
+	private byte[] plain;
+	private byte[] encrypted;
+	private Aes256CtrStreamEncryption aes;
+	private Sha512StreamDigest sha;
+
+	@Setup
+	public void setup() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		plain = new byte[payloadSize];
+		new Random(1).nextBytes(plain);
+		boolean bc = provider.equals("BC");
+		aes = new Aes256CtrStreamEncryption(null, bc ? "BC" : "SunJCE",
+				bufferSize);
+		sha = new Sha512StreamDigest(bc ? "BC" : "SUN", bufferSize);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(payloadSize
+				+ Aes256CtrStreamEncryption.IVSIZE / 8);
+		aes.encrypt(new ByteArrayInputStream(plain), out);
+		encrypted = out.toByteArray();
+	}
+
+	@Benchmark
+	public long encrypt() throws Exception {
+		CountingOutputStream out = new CountingOutputStream(
+				new NullOutputStream());
+		aes.encrypt(new ByteArrayInputStream(plain), out);
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long decrypt() throws Exception {
+		CountingOutputStream out = new CountingOutputStream(
+				new NullOutputStream());
+		aes.decrypt(new ByteArrayInputStream(encrypted), out);
+		return out.getCount();
+	}
+
+	/**
+	 * digest without a copy, as on receive.
+	 */
+	@Benchmark
+	public void digest(Blackhole blackhole) throws Exception {
+		blackhole.consume(sha.digest(new ByteArrayInputStream(plain), null));
+	}
+
+	/**
+	 * digest while copying to the next stage, as on send.
+	 */
+	@Benchmark
+	public void digestCopy(Blackhole blackhole) throws Exception {
+		CountingOutputStream out = new CountingOutputStream(
+				new NullOutputStream());
+		blackhole.consume(sha.digest(new ByteArrayInputStream(plain), out));
+		blackhole.consume(out.getCount());
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist;
+
+/**
+ * This class writes whitelists for the benchmarks. The whitelist preserves
+ * the header of SyntheticDicom objects except for the patient, which is
+ * replaced, and contains 16 wildcard lines in the odd groups 0019 to 0037. A
+ * wildcard line with n 'x' digits expands to 16^n rules.
+ * 
+ * @author Kornelius Podranski
+ */
+final class SyntheticWhitelist {
+
+	// explicit VR little endian, forces a full parse of objects
+	private static final String TRANSFERSYNTAX = "1.2.840.10008.1.2.1";
+
+	// preserved elements of the file meta information and the header
+	private static final String[] PRESERVED = { "0002,0000", "0002,0001",
+			"0002,0002", "0002,0003", "0002,0012", "0002,0013", "0008,0005",
+			"0008,0008", "0008,0016", "0008,0018", "0008,0020", "0008,0021",
+			"0008,0030", "0008,0060", "0008,0070", "0008,1030", "0008,103E",
+			"0008,1140/0008,1150", "0008,1140/0008,1155", "0018,0050",
+			"0020,000D", "0020,000E", "0020,0010", "0020,0011", "0020,0013",
+			"0020,0032", "0020,0037", "0020,0052", "0028,0002", "0028,0004",
+			"0028,0008", "0028,0010", "0028,0011", "0028,0030", "0028,0100",
+			"0028,0101", "0028,0102", "0028,0103", "0028,1050", "0028,1051",
+			"7FE0,0010" };
+
+	// elements replaced by a fixed or null value
+	private static final String[] REPLACED = { "0008,0050=", "0008,0080=",
+			"0008,0090=", "0010,0010=ANONYMOUS", "0010,0020=0",
+			"0010,0030=", "0010,0040=O" };
+
+	private SyntheticWhitelist() {
+	}
+
+	/**
+	 * Writes a whitelist to file and removes a compiled whitelist of an
+	 * earlier run.
+	 * 
+	 * @param file
+	 *            the text whitelist to write
+	 * @param wildcardDigits
+	 *            number of 'x' digits in each wildcard line, 0 to 4
+	 * @param splice
+	 *            true to preserve the transfer syntax, so anonymization only
+	 *            parses the header. false to set the transfer syntax, which
+	 *            forces a full parse of each object.
+	 * @throws IOException
+	 */
+	static void write(File file, int wildcardDigits, boolean splice)
+			throws IOException {
+		if (wildcardDigits < 0 || wildcardDigits > 4)
+			throw new IllegalArgumentException("0 to 4 wildcard digits");
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# whitelist for the dataXchanger benchmarks");
+			out.println(splice ? "0002,0010" : "0002,0010=" + TRANSFERSYNTAX);
+			for (String line : PRESERVED)
+				out.println(line);
+			for (String line : REPLACED)
+				out.println(line);
+			for (int i = 0; i < 16; i++) {
+				String element = "1000".substring(0, 4 - wildcardDigits)
+						+ "xxxx".substring(0, wildcardDigits);
+				out.println(String.format("%04X,%s", 0x19 + 2 * i, element));
+			}
+		} finally {
+			out.close();
+		}
+		CompiledDicomWhitelist.compiledFile(file).delete();
+	}
+}
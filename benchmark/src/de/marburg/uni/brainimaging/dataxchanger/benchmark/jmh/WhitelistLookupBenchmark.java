@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.SyntheticDicom;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelist;
+
+/**
+ * JMH benchmarks of loading a compiled whitelist and of the lookups done by
+ * the anonymizer for every element. The lookups use the tags of a
+ * SyntheticDicom header followed by private tags, some of them matched by the
+ * wildcard rules (see SyntheticWhitelist). Scores of the lookups are per
+ * element.
+ * 
+ * @author Kornelius Podranski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhitelistLookupBenchmark {
+
+	// number of tags looked up per operation
+	public static final int TAGS = 256;
+
+	@Param({ "0", "2", "3" })
+	public int wildcardDigits;
+
+	private File whitelistFile;
+	private DicomWhitelist whitelist;
+	private final int[] tags = new int[TAGS];
+
+	@Setup
+	public void setup() throws IOException {
+		whitelistFile = File.createTempFile("benchmark", ".whitelist");
+		SyntheticWhitelist.write(whitelistFile, wildcardDigits, true);
+		// compiles and stores the whitelist, so load() finds it
+		whitelist = new DicomWhitelist(whitelistFile);
+
+		DicomObject dcm = new SyntheticDicom(1).create("CT", 1, 1, 1);
+		int n = 0;
+		for (Iterator<DicomElement> it = dcm.iterator(); it.hasNext()
+				&& n < TAGS;)
+			tags[n++] = it.next().tag();
+		Random random = new Random(1);
+		while (n < TAGS)
+			tags[n++] = 0x00290000 | 0x1000 | random.nextInt(0x200);
+	}
+
+	@TearDown
+	public void tearDown() {
+		whitelistFile.delete();
+		CompiledDicomWhitelist.compiledFile(whitelistFile).delete();
+	}
+
+	/**
+	 * reads the whitelist as on every later run: the text whitelist is
+	 * digested and the up to date compiled whitelist is mapped.
+	 */
+	@Benchmark
+	public DicomWhitelist load() throws IOException {
+		return new DicomWhitelist(whitelistFile);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TAGS)
+	public void hasTag(Blackhole blackhole) {
+		for (int tag : tags)
+			blackhole.consume(whitelist.hasTag(tag));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TAGS)
+	public void getValue(Blackhole blackhole) {
+		for (int tag : tags)
+			blackhole.consume(whitelist.getValue(tag));
+	}
+}
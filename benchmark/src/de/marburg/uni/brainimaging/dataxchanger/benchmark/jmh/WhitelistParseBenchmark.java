@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelist;
+
+/**
+ * JMH benchmark of reading a text whitelist on first use: parsing, expanding
+ * the wildcards, compiling and storing the compiled whitelist. The compiled
+ * whitelist is removed before every operation. <br>
+ * The whitelist contains 16 wildcard lines with wildcardDigits 'x' digits
+ * each, which expand to 16 * 16^wildcardDigits rules (see
+ * SyntheticWhitelist).
+ * 
+ * @author Kornelius Podranski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhitelistParseBenchmark {
+
+	@Param({ "0", "2", "3" })
+	public int wildcardDigits;
+
+	private File whitelistFile;
+
+	@Setup
+	public void setup() throws IOException {
+		whitelistFile = File.createTempFile("benchmark", ".whitelist");
+		SyntheticWhitelist.write(whitelistFile, wildcardDigits, true);
+	}
+
+	@Setup(Level.Invocation)
+	public void removeCompiled() {
+		CompiledDicomWhitelist.compiledFile(whitelistFile).delete();
+	}
+
+	@TearDown
+	public void tearDown() {
+		whitelistFile.delete();
+		CompiledDicomWhitelist.compiledFile(whitelistFile).delete();
+	}
+
+	@Benchmark
+	public DicomWhitelist parse() throws IOException {
+		return new DicomWhitelist(whitelistFile);
+	}
+}
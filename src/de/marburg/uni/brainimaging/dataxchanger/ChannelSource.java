@@ -0,0 +1,50 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This interface is implemented by sources which can write their data to a
+ * channel directly, e.g. with FileChannel.transferTo(), instead of being
+ * copied from an InputStream.
+ * 
+ * @author Kornelius Podranski
+ */
+public interface ChannelSource extends SeekableSource {
+
+	/**
+	 * Writes up to count bytes of the data starting at offset to channel.
+	 * 
+	 * @param offset
+	 *            position of the first byte, 0 <= offset <= length()
+	 * @param count
+	 *            maximum number of bytes to write
+	 * @param channel
+	 *            the channel the data is written to
+	 * @return number of bytes written, 0 only if offset is length()
+	 * @throws IOException
+	 *             if the data can not be read or written
+	 */
+	public long transferTo(long offset, long count, WritableByteChannel channel)
+			throws IOException;
+}
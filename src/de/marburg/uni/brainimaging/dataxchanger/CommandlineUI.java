@@ -20,7 +20,6 @@
 package de.marburg.uni.brainimaging.dataxchanger;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -28,7 +27,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 //import java.security.InvalidAlgorithmParameterException;
+import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -37,8 +38,13 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -47,16 +53,33 @@ import javax.crypto.SecretKey;
 
 import de.marburg.uni.brainimaging.dataxchanger.asymmetriccryptography.PemPkcs8KeyReader;
 import de.marburg.uni.brainimaging.dataxchanger.asymmetriccryptography.RsaSecretKeyEncryption;
+import de.marburg.uni.brainimaging.dataxchanger.compression.DeflateStreamCompressor;
+import de.marburg.uni.brainimaging.dataxchanger.compression.InflatingOutputStream;
 import de.marburg.uni.brainimaging.dataxchanger.configurationfile.ReceiverConfigurationFile;
 import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelist;
 import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelistAnonymizer;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.ReloadingDicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.UidRemapper;
 //import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpClient;
-import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpDownloader;
-import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpUploader;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpConnectException;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpEventLoop;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpSessionPool;
 import de.marburg.uni.brainimaging.dataxchanger.messagedigest.Sha512StreamDigest;
+import de.marburg.uni.brainimaging.dataxchanger.metrics.Metrics;
+import de.marburg.uni.brainimaging.dataxchanger.metrics.StageMetrics;
+import de.marburg.uni.brainimaging.dataxchanger.pseudonymization.PseudonymStore;
+import de.marburg.uni.brainimaging.dataxchanger.scheduling.ConcurrencyController;
+import de.marburg.uni.brainimaging.dataxchanger.scheduling.TransferScheduler;
+import de.marburg.uni.brainimaging.dataxchanger.scheduling.TransferScheduler.Priority;
+import de.marburg.uni.brainimaging.dataxchanger.sendindex.SendIndex;
+import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrSeekableEncryption;
 import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrStreamDecryptor;
 //import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrStreamEncryption;
 import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrStreamEncryptor;
+import de.marburg.uni.brainimaging.dataxchanger.transport.AsyncFtpTransport;
+import de.marburg.uni.brainimaging.dataxchanger.transport.DirectoryTransport;
+import de.marburg.uni.brainimaging.dataxchanger.transport.FtpTransport;
+import de.marburg.uni.brainimaging.dataxchanger.transport.Transport;
 
 /**
  * This class defines a simple commandline interfce to the dataXchanger tool. It
@@ -70,6 +93,10 @@ public class CommandlineUI {
 	// exit codes
 	public static final int EXIT_SUCCESS = 0;
 	public static final int EXIT_ERROR = 1;
+	// attempts to upload a file if the number of uploads adapts
+	private static final int UPLOADATTEMPTS = 3;
+	// wait before retrying an upload, doubled with every attempt (ms)
+	private static final long UPLOADRETRYDELAY = 500;
 
 	// debug mode
 	private static int debug = 0;
@@ -81,8 +108,16 @@ public class CommandlineUI {
 
 	// list of input files
 	private static List<File> input = new ArrayList<File>();
+	// priority class of each input file
+	private static List<Priority> inputPriority = new ArrayList<Priority>();
+	// priority class of the following input files
+	private static Priority priority = Priority.NORMAL;
 	// dicom whitelist
 	private static DicomWhitelist whitelist;
+	// file the dicom whitelist was read from
+	private static File whitelistFile;
+	// reload whitelist if it changes during send
+	private static boolean whitelistReload = false;
 	// receiver's public key to encrypt with
 	// private static PublicKey asymEncKey;
 	private static List<PublicKey> asymEncKeys = new ArrayList<PublicKey>();
@@ -104,8 +139,49 @@ public class CommandlineUI {
 	private static String ftpPassword;
 	// use ftp-server in active mode?
 	private static boolean ftpActive = false;
+	// upload over non-blocking sessions sharing one event loop
+	private static boolean ftpAsync = false;
+	// shared directory used instead of the ftp-server, on receive the
+	// directory replaces the one in the receiver configuration files
+	private static File directory;
+	// transport the data is uploaded with
+	private static Transport transport;
 	// rename file before transmitting
 	private static boolean anonymize_filenames = false;
+	// compress anonymized file before encryption
+	private static boolean compress = false;
+	// index of completed sends to skip duplicates
+	private static File sendIndexFile;
+	// store of pseudonyms for replaced patient identifiers
+	private static File pseudonymStoreFile;
+	// secret key for remapping UIDs
+	private static byte[] uidKey;
+	// remaps UIDs during anonymization
+	private static UidRemapper uidRemapper;
+	// logged-in ftp sessions reused across files
+	private static FtpSessionPool ftpSessions = new FtpSessionPool();
+	// number of files uploaded at the same time
+	private static int parallelUploads = 1;
+	// adapt the number of uploads between 1 and parallelUploads
+	private static boolean adaptiveUploads = false;
+	// adapts the number of uploads, null for a fixed number
+	private static ConcurrencyController uploadController;
+	// maximum number of sessions per ftp-server, 0 for no limit
+	private static int ftpMaxSessions = 0;
+	// number of segments of a file downloaded at the same time
+	private static int parallelDownloads = 1;
+	// size of the chunks files are uploaded in, 0 to upload single files
+	private static long chunkSize = 0;
+	// upload rate limit in bytes per second, 0 for no limit
+	private static long rateLimit = 0;
+	// shares the upload bandwidth between files by priority
+	private static TransferScheduler scheduler;
+	// directory the temporary files of a send are written to
+	private static File workDirectory = new File(".");
+	// basenames of the receiver configuration files written in this run
+	private static Set<String> confBasenames = new HashSet<String>();
+	// print the metrics of all stages at exit
+	private static boolean printMetrics = false;
 
 	/**
 	 * starts the commandline UI
@@ -117,6 +193,7 @@ public class CommandlineUI {
 	public static void start(String[] args) {
 		parseArgs(args);
 		validateAllSet();
+		ftpSessions.setMaxSessions(ftpMaxSessions);
 		switch (opmode) {
 		case RECEIVE:
 			receive();
@@ -125,6 +202,7 @@ public class CommandlineUI {
 			send();
 			break;
 		}
+		ftpSessions.close();
 	}
 
 	/**
@@ -142,10 +220,33 @@ public class CommandlineUI {
 		for (int i = 0; i < args.length; i++) {
 			String arg = args[i];
 
+			if (arg.equals("--adaptive-uploads")) {
+				adaptiveUploads = true;
+				continue;
+			}
 			if (arg.equals("--anonymize-filenames")) {
 				anonymize_filenames = true;
 				continue;
 			}
+			if (arg.equals("--chunk-size")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify MEGABYTES for "
+							+ "\"--chunk-size\". exiting.");
+				arg = args[i];
+				try {
+					chunkSize = Long.parseLong(arg) * 1024 * 1024;
+				} catch (NumberFormatException e) {
+					error("\"%s\" is not a valid chunk size. exiting.", arg);
+				}
+				if (chunkSize < 1)
+					error("\"%s\" is not a valid chunk size. exiting.", arg);
+				continue;
+			}
+			if (arg.equals("--compress")) {
+				compress = true;
+				continue;
+			}
 			if (arg.equals("--conf")) {
 				i++;
 				if (i == args.length)
@@ -228,6 +329,27 @@ public class CommandlineUI {
 				ftpActive = true;
 				continue;
 			}
+			if (arg.equals("--ftp-async")) {
+				ftpAsync = true;
+				continue;
+			}
+			if (arg.equals("--ftp-max-sessions")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a NUMBER for "
+							+ "\"--ftp-max-sessions\". exiting.");
+				arg = args[i];
+				try {
+					ftpMaxSessions = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					error("\"%s\" is not a valid number of sessions. exiting.",
+							arg);
+				}
+				if (ftpMaxSessions < 0)
+					error("\"%s\" is not a valid number of sessions. exiting.",
+							arg);
+				continue;
+			}
 			if (arg.equals("--ftp-password")) {
 				i++;
 				if (i == args.length)
@@ -250,6 +372,17 @@ public class CommandlineUI {
 				}
 				continue;
 			}
+			if (arg.equals("--directory")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a PATH for "
+							+ "\"--directory\". exiting.");
+				arg = args[i];
+				directory = new File(arg);
+				if (!directory.isDirectory())
+					error("\"%s\" is not a directory. exiting.", arg);
+				continue;
+			}
 			if (arg.equals("--ftp-server")) {
 				i++;
 				if (i == args.length)
@@ -279,6 +412,82 @@ public class CommandlineUI {
 							+ "\"--input\". exiting.");
 				arg = args[i];
 				input.add(checkFile(arg, false));
+				inputPriority.add(priority);
+				continue;
+			}
+			if (arg.equals("--metrics")) {
+				printMetrics = true;
+				continue;
+			}
+			if (arg.equals("--rate-limit")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify KILOBYTES for "
+							+ "\"--rate-limit\". exiting.");
+				arg = args[i];
+				try {
+					rateLimit = Long.parseLong(arg) * 1024;
+				} catch (NumberFormatException e) {
+					error("\"%s\" is not a valid rate limit. exiting.", arg);
+				}
+				if (rateLimit < 1)
+					error("\"%s\" is not a valid rate limit. exiting.", arg);
+				continue;
+			}
+			if (arg.equals("--parallel-downloads")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a NUMBER for "
+							+ "\"--parallel-downloads\". exiting.");
+				arg = args[i];
+				try {
+					parallelDownloads = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					error("\"%s\" is not a valid number of downloads. exiting.",
+							arg);
+				}
+				if (parallelDownloads < 1)
+					error("\"%s\" is not a valid number of downloads. exiting.",
+							arg);
+				continue;
+			}
+			if (arg.equals("--parallel-uploads")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a NUMBER for "
+							+ "\"--parallel-uploads\". exiting.");
+				arg = args[i];
+				try {
+					parallelUploads = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					error("\"%s\" is not a valid number of uploads. exiting.",
+							arg);
+				}
+				if (parallelUploads < 1)
+					error("\"%s\" is not a valid number of uploads. exiting.",
+							arg);
+				continue;
+			}
+			if (arg.equals("--priority")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a CLASS for "
+							+ "\"--priority\". exiting.");
+				arg = args[i];
+				try {
+					priority = Priority.valueOf(arg.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					error("\"%s\" is not a valid priority class. exiting.", arg);
+				}
+				continue;
+			}
+			if (arg.equals("--pseudonym-store")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a PATH for "
+							+ "\"--pseudonym-store\". exiting.");
+				arg = args[i];
+				pseudonymStoreFile = new File(arg);
 				continue;
 			}
 			if (arg.equals("--receive")) {
@@ -293,6 +502,45 @@ public class CommandlineUI {
 				opmode = OpMode.SEND;
 				continue;
 			}
+			if (arg.equals("--send-index")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a PATH for "
+							+ "\"--send-index\". exiting.");
+				arg = args[i];
+				sendIndexFile = new File(arg);
+				continue;
+			}
+			if (arg.equals("--uid-key")) {
+				i++;
+				if (i == args.length)
+					error("not enough arguments. you must specify a PATH for "
+							+ "\"--uid-key\". exiting.");
+				arg = args[i];
+				try {
+					File file = checkFile(arg, false);
+					RandomAccessFile raf = new RandomAccessFile(file, "r");
+					uidKey = new byte[(int) raf.length()];
+					raf.readFully(uidKey);
+					raf.close();
+					uidRemapper = new UidRemapper(uidKey);
+				} catch (InvalidKeyException e) {
+					error("uid key \"%s\" not o.k.\nmessage was: %s\n"
+							+ "exiting.", arg, e.getMessage());
+				} catch (NoSuchAlgorithmException e) {
+					error("algorithm for uid remapping not "
+							+ "available in your JRE.\nmessage was: "
+							+ "%s\nexiting.", e.toString());
+				} catch (NoSuchProviderException e) {
+					error("Bouncycastle-Provider not "
+							+ "available in your JRE.\nmessage was: "
+							+ "%s\nexiting.", e.toString());
+				} catch (IOException e) {
+					error("reading uid key file \"%s\" failed.\n"
+							+ "message was: %s\nexiting.", arg, e.toString());
+				}
+				continue;
+			}
 			if (arg.equals("--version")) {
 				printVersion();
 				exit(EXIT_SUCCESS);
@@ -304,8 +552,8 @@ public class CommandlineUI {
 							+ "\"--whitelist\". exiting.");
 				arg = args[i];
 				try {
-					File file = checkFile(arg, false);
-					whitelist = new DicomWhitelist(file);
+					whitelistFile = checkFile(arg, false);
+					whitelist = new DicomWhitelist(whitelistFile);
 				} catch (IOException e) {
 					error("parsing whitelist \"%s\" failed.\nmessage was: %s\n"
 							+ "exiting.", arg, e.toString());
@@ -315,6 +563,10 @@ public class CommandlineUI {
 				}
 				continue;
 			}
+			if (arg.equals("--whitelist-reload")) {
+				whitelistReload = true;
+				continue;
+			}
 			// if we reach here the argument is unknown
 			error("unknown argument: %s", arg);
 		}
@@ -352,15 +604,21 @@ public class CommandlineUI {
 			if (whitelist == null)
 				error("no whitelist given. you must specify "
 						+ "\"--whitelist PATH\" in send mode. exiting.");
+			if (directory != null)
+				break;
 			if (ftpAddress == null)
 				error("no FTP-server address given. you must specify "
-						+ "\"--ftp-server ADDRESS\" in send mode. exiting.");
+						+ "\"--ftp-server ADDRESS\" or \"--directory PATH\" "
+						+ "in send mode. exiting.");
 			if (ftpUser == null)
 				error("no username for FTP-server given. you must specify "
 						+ "\"--ftp-user USERNAME\" in send mode. exiting.");
 			if (ftpPassword == null)
 				error("no password for FTP-server given. you must specify "
 						+ "\"--ftp-password PASSWORD\" in send mode. exiting.");
+			if (ftpAsync && (ftpActive || chunkSize > 0))
+				error("\"--ftp-async\" can not be combined with "
+						+ "\"--ftp-active\" or \"--chunk-size\". exiting.");
 			break;
 		}
 	}
@@ -374,36 +632,33 @@ public class CommandlineUI {
 			// File file = itInput.next();
 			ReceiverConfigurationFile rcf = itRconf.next();
 
-			// get file from server
-			String ftpServer = rcf.getFtpServer();
-			int ftpPort = rcf.getFtpPort();
-			String ftpUser = rcf.getFtpUser();
-			String ftpPassword = rcf.getFtpPassword();
-			String ftpFilename = rcf.getFtpFilename();
+			// get file from server or directory
 			String dataFilename = rcf.getDataFilename();
 			File file = new File("encrypted_" + dataFilename);
 			OutputStream out = null;
-			try {
-				out = new BufferedOutputStream(new FileOutputStream(file));
-			} catch (IOException e) {
-				error("cannot create local file \"%s\".\n"
-						+ "message was: %s\nexiting.", file.getName(),
-						e.toString());
-			}
-			StreamProcessor<Void> ftp = new FtpDownloader(ftpServer, ftpPort,
-					ftpUser, ftpPassword, ftpActive, ftpFilename);
-			if (!ftp.process(null, out)) {
-				error("downloading from ftp-server failed.\n"
-						+ "message was: %s\nexiting.", ftp.getException()
-						.toString());
+			Transport transport = null;
+			if (rcf.getDirectory() != null) {
+				transport = new DirectoryTransport(directory != null ? directory
+						: new File(rcf.getDirectory()));
+			} else {
+				try {
+					transport = FtpTransport.forReceiver(rcf, ftpActive,
+							ftpSessions, parallelDownloads);
+				} catch (IllegalArgumentException e) {
+					error("%s in receiver configuration file \"%s\".\n"
+							+ "exiting.", e.getMessage(), rcf.getFilename());
+				}
 			}
+			StageMetrics downloads = Metrics.stage(Metrics.DOWNLOAD);
+			long begin = downloads.begin();
 			try {
-				out.close();
+				transport.download(rcf.getFtpFilename(), file);
+				downloads.end(begin, file.length());
 			} catch (IOException e) {
-				// ignore
+				downloads.fail(begin);
+				error("downloading data failed.\nmessage was: %s\nexiting.",
+						e.toString());
 			}
-			out = null;
-			ftp = null;
 
 			// check digest
 			FileInputStream in = null;
@@ -414,7 +669,8 @@ public class CommandlineUI {
 			}
 			byte[] digest = null;
 			try {
-				StreamProcessor<byte[]> digester = new Sha512StreamDigest();
+				StreamProcessor<byte[]> digester = Metrics.meter(
+						Metrics.DIGEST, new Sha512StreamDigest());
 				if (!digester.process(in, null)) {
 					error("internal error digesting data.\n"
 							+ "message was: %s\nexiting.", digester
@@ -438,9 +694,12 @@ public class CommandlineUI {
 
 			// decrypt secret key
 			SecretKey sKey = null;
+			StageMetrics unwraps = Metrics.stage(Metrics.UNWRAP);
+			begin = unwraps.begin();
 			try {
 				sKey = RsaSecretKeyEncryption.decryptSecretKey(xsKey,
 						asymDecKey);
+				unwraps.end(begin, xsKey.length);
 			} catch (NoSuchProviderException e) {
 				error("Bouncycastle-Provider not "
 						+ "available in your JRE.\nmessage was: "
@@ -475,10 +734,20 @@ public class CommandlineUI {
 			} catch (FileNotFoundException e) {
 				error("can not write outputfile \"%s\". exiting.", dataFilename);
 			}
+			// decompress in the same pass
+			String compression = rcf.getCompression();
+			if (compression != null) {
+				if (!compression.equals(DeflateStreamCompressor.COMPRESSION))
+					error("unknown compression \"%s\" in receiver "
+							+ "configuration file \"%s\". exiting.",
+							compression, rcf.getFilename());
+				out = new InflatingOutputStream(out);
+			}
 			// decrypt
 			StreamProcessor<Void> cipher;
 			try {
-				cipher = new Aes256CtrStreamDecryptor(sKey);
+				cipher = Metrics.meter(Metrics.DECRYPT,
+						new Aes256CtrStreamDecryptor(sKey));
 				if (!cipher.process(in, out)) {
 					error("internal error decrypting data.\n"
 							+ "message was: %s\nexiting.", cipher
@@ -522,18 +791,109 @@ public class CommandlineUI {
 	 * executes the send operation mode.
 	 */
 	private static void send() {
-		for (File file : input) {
-			String filename = file.getName();
+		ReloadingDicomWhitelist reloadingWhitelist = null;
+		Exception reloadException = null;
+		if (whitelistReload) {
+			reloadingWhitelist = new ReloadingDicomWhitelist(whitelistFile,
+					whitelist);
+			reloadingWhitelist.start();
+		}
+		SendIndex sendIndex = null;
+		if (sendIndexFile != null) {
+			try {
+				sendIndex = new SendIndex(sendIndexFile);
+			} catch (IOException e) {
+				error("can not open send index \"%s\".\nmessage was: %s\n"
+						+ "exiting.", sendIndexFile.getPath(), e.toString());
+			}
+		}
+		PseudonymStore pseudonymStore = null;
+		if (pseudonymStoreFile != null) {
+			try {
+				pseudonymStore = new PseudonymStore(pseudonymStoreFile);
+			} catch (IOException e) {
+				error("can not open pseudonym store \"%s\".\nmessage was: %s\n"
+						+ "exiting.", pseudonymStoreFile.getPath(),
+						e.toString());
+			}
+		}
+		scheduler = new TransferScheduler(rateLimit);
+		if (adaptiveUploads)
+			uploadController = new ConcurrencyController(1, parallelUploads);
+		AsyncFtpTransport asyncTransport = null;
+		FtpEventLoop ftpEventLoop = null;
+		if (directory != null) {
+			transport = new DirectoryTransport(directory);
+		} else if (ftpAsync) {
+			try {
+				ftpEventLoop = new FtpEventLoop();
+			} catch (IOException e) {
+				error("can not open ftp event loop.\nmessage was: %s\n"
+						+ "exiting.", e.toString());
+			}
+			asyncTransport = new AsyncFtpTransport(ftpEventLoop, ftpAddress,
+					ftpPort, ftpUser, ftpPassword, ftpSessions);
+			transport = asyncTransport;
+		} else {
+			transport = new FtpTransport(ftpAddress, ftpPort, ftpUser,
+					ftpPassword, ftpActive, ftpSessions, parallelUploads,
+					chunkSize);
+		}
+		// prepare urgent files first, keep the given order within a class
+		List<File> files = new ArrayList<File>();
+		List<Priority> priorities = new ArrayList<Priority>();
+		for (Priority p : Priority.values()) {
+			for (int i = 0; i < input.size(); i++) {
+				if (inputPriority.get(i) == p) {
+					files.add(input.get(i));
+					priorities.add(p);
+				}
+			}
+		}
+		// at most one file per upload thread waits for upload
+		ThreadPoolExecutor uploads = new ThreadPoolExecutor(parallelUploads,
+				parallelUploads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(parallelUploads),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		for (int f = 0; f < files.size(); f++) {
+			File file = files.get(f);
+			if (reloadingWhitelist != null
+					&& reloadingWhitelist.getException() != reloadException) {
+				reloadException = reloadingWhitelist.getException();
+				if (reloadException != null)
+					System.err.printf("warning: reloading whitelist failed, "
+							+ "keeping previous whitelist.\nmessage was: %s\n",
+							reloadException.toString());
+			}
+			DicomWhitelist activeWhitelist = reloadingWhitelist == null ? whitelist
+					: reloadingWhitelist.current();
+			// skip files already sent
+			byte[] sendKey = null;
+			if (sendIndex != null) {
+				sendKey = sendKey(file, activeWhitelist);
+				if (sendIndex.contains(sendKey))
+					continue;
+			}
+			// temporary files are unique, files with the same name may
+			// wait for upload at the same time
+			File anonymizedFile = null;
+			File compressedFile = null;
+			File tempFile = null;
 			InputStream in = null;
 			OutputStream out = null;
 			// anonymize
 			try {
 				in = new FileInputStream(file);
-				filename = "anonymized_" + filename;
-				out = new FileOutputStream(filename);
-				StreamProcessor<Void> anonymizer = new DicomWhitelistAnonymizer(
-						whitelist);
-				if (!anonymizer.process(in, out))
+				anonymizedFile = File.createTempFile("anonymized_", "_"
+						+ file.getName(), workDirectory);
+				tempFile = anonymizedFile;
+				out = new FileOutputStream(anonymizedFile);
+				DicomWhitelistAnonymizer anonymizer = new DicomWhitelistAnonymizer(
+						activeWhitelist);
+				anonymizer.setPseudonymStore(pseudonymStore);
+				anonymizer.setUidRemapper(uidRemapper);
+				if (!Metrics.meter(Metrics.ANONYMIZE, anonymizer).process(in,
+						out))
 					error("error during anonymization\nmessage was: \"%s\"\n"
 							+ "exiting.", anonymizer.getException().toString());
 				in.close();
@@ -544,25 +904,56 @@ public class CommandlineUI {
 				error("i/o error during anonymization\nmessage was: \"%s\"\n"
 						+ "exiting.", e.toString());
 			}
+			// compress
+			if (compress) {
+				try {
+					in = new FileInputStream(anonymizedFile);
+					compressedFile = File.createTempFile(
+							"compressed_anonymized_", "_" + file.getName(),
+							workDirectory);
+					tempFile = compressedFile;
+					out = new FileOutputStream(compressedFile);
+					StreamProcessor<Void> compressor = Metrics.meter(
+							Metrics.COMPRESS, new DeflateStreamCompressor());
+					if (!compressor.process(in, out))
+						error("error during compression\nmessage was: \"%s\"\n"
+								+ "exiting.", compressor.getException()
+								.toString());
+					in = null;
+					out = null;
+				} catch (IOException e) {
+					error("i/o error during compression\nmessage was: \"%s\"\n"
+							+ "exiting.", e.toString());
+				}
+			}
 			// open input file
 			try {
-				in = new FileInputStream(filename);
+				in = new FileInputStream(tempFile);
 			} catch (FileNotFoundException e) {
 				error("inputfile \"%s\" not found. exitig.", file.getName());
 			}
-			// open output file
-			filename = "encrypted_" + filename;
+			// encrypt to calculate the digest of the encrypted data. the
+			// encrypted data is regenerated during upload, so it does not
+			// have to be stored.
+			byte[] digest = null;
+			MessageDigest md = null;
 			try {
-				out = new FileOutputStream(filename);
-			} catch (FileNotFoundException e) {
-				error("can not write outputfile \"%s\". exiting.", filename);
+				md = MessageDigest.getInstance(Sha512StreamDigest.DIGEST,
+						Sha512StreamDigest.PROVIDER);
+			} catch (NoSuchAlgorithmException e) {
+				error("internal error digesting data.\n"
+						+ "message was: %s\nexiting.", e.toString());
+			} catch (NoSuchProviderException e) {
+				error("internal error digesting data.\n"
+						+ "message was: %s\nexiting.", e.toString());
 			}
+			out = new DigestOutputStream(new NullOutputStream(), md);
 			// encrypt
-			StreamProcessor<SecretKey> cipher = null;
+			Aes256CtrStreamEncryptor cipher = null;
 			try {
 				cipher = new Aes256CtrStreamEncryptor();
-				if (!cipher.process(in, out)) {
-					error("internal error decrypting data.\n"
+				if (!Metrics.meter(Metrics.ENCRYPT, cipher).process(in, out)) {
+					error("internal error encrypting data.\n"
 							+ "message was: %s\nexiting.", cipher
 							.getException().toString());
 				}
@@ -579,48 +970,21 @@ public class CommandlineUI {
 				error("internal error encrypting data.\n"
 						+ "message was: %s\nexiting.", e.toString());
 			}
-			// close files
-			try {
-				in.close();
-				in = null;
-				out.close();
-				out = null;
-			} catch (IOException e) {
-				error("internal error closing input or output files.\n"
-						+ "message was: %s\nexiting.", e.toString());
-			}
-
-			// calculate digest of encrypted file
-			try {
-				in = new FileInputStream(filename);
-			} catch (FileNotFoundException e) {
-				error("inputfile \"%s\" not found. exitig.", file.getName());
-			}
-			byte[] digest = null;
-			try {
-				StreamProcessor<byte[]> digester = new Sha512StreamDigest();
-				if (!digester.process(in, null)) {
-					error("internal error digesting data.\n"
-							+ "message was: %s\nexiting.", digester
-							.getException().toString());
-				}
-				digest = digester.getResult();
-			} catch (NoSuchAlgorithmException e) {
-				error("internal error digesting data.\n"
-						+ "message was: %s\nexiting.", e.toString());
-			} catch (NoSuchProviderException e) {
-				error("internal error digesting data.\n"
-						+ "message was: %s\nexiting.", e.toString());
-			}
+			in = null;
+			out = null;
+			digest = md.digest();
 
 			// encrypt secret keys
 			// byte[] xsKey = {};
 			byte[][] xsKeys = new byte[asymEncKeys.size()][];
 			Iterator<PublicKey> asymEncKeyIt = asymEncKeys.iterator();
+			StageMetrics wraps = Metrics.stage(Metrics.WRAP);
 			for (int i = 0; i < xsKeys.length && asymEncKeyIt.hasNext(); i++) {
+				long begin = wraps.begin();
 				try {
 					xsKeys[i] = RsaSecretKeyEncryption.encryptSecretKey(
 							cipher.getResult(), asymEncKeyIt.next());
+					wraps.end(begin, xsKeys[i].length);
 				} catch (NoSuchProviderException e) {
 					error("Bouncycastle-Provider not "
 							+ "available in your JRE.\nmessage was: "
@@ -644,72 +1008,262 @@ public class CommandlineUI {
 			}
 			asymEncKeyIt = null;
 
-			// upload to ftp-server
+			// upload while the next file is prepared
+			final File uploadFile = file;
+			final Priority uploadPriority = priorities.get(f);
+			final SeekableSource uploadSource = new Aes256CtrSeekableEncryption(
+					cipher.getResult(), cipher.getIV(), tempFile);
+			final File uploadAnonymizedFile = anonymizedFile;
+			final File uploadCompressedFile = compressedFile;
+			final byte[] uploadDigest = digest;
+			final byte[][] uploadXsKeys = xsKeys;
+			final byte[] uploadSendKey = sendKey;
+			final SendIndex uploadSendIndex = sendIndex;
+			uploads.execute(new Runnable() {
+				public void run() {
+					upload(uploadFile, uploadPriority, uploadSource,
+							uploadAnonymizedFile, uploadCompressedFile,
+							uploadDigest, uploadXsKeys,
+							uploadSendKey, uploadSendIndex);
+				}
+			});
+		}
+		uploads.shutdown();
+		try {
+			while (!uploads.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		} catch (InterruptedException e) {
+			error("interrupted waiting for uploads.\nexiting.");
+		}
+		if (asyncTransport != null) {
+			asyncTransport.close();
+			ftpEventLoop.close();
+		}
+		if (sendIndex != null) {
 			try {
-				in = new BufferedInputStream(new FileInputStream(filename));
+				sendIndex.close();
 			} catch (IOException e) {
-				error("cannot open input file \"%s\" for ftp transfer.\n"
-						+ "message was: %s\nexiting.", filename, e.toString());
-			}
-			StreamProcessor<String> ftp = new FtpUploader(ftpAddress, ftpPort,
-					ftpUser, ftpPassword, ftpActive);
-			if (!ftp.process(in, null)) {
-				error("uploading to ftp-server failed.\n"
-						+ "message was: %s\nexiting.", ftp.getException()
-						.toString());
+				// ignore
 			}
-			String ftpFilename = ftp.getResult();
+		}
+		if (pseudonymStore != null) {
 			try {
-				in.close();
+				pseudonymStore.close();
 			} catch (IOException e) {
 				// ignore
 			}
-			in = null;
-			ftp = null;
-
-			// write receiver configs
-			String basename = file.getName().split("\\.(?=[^\\.]+$)")[0];
-			for (int i = 0; i < xsKeys.length; i++) {
-				String confFilename = basename + "_" + i + ".rconf";
-				ReceiverConfigurationFile rconf = new ReceiverConfigurationFile(
-						confFilename);
-				rconf.setEncryptedSecretKey(xsKeys[i]);
-				rconf.setDigest(digest);
-				rconf.setFtpServer(ftpAddress);
-				rconf.setFtpPort(ftpPort);
-				rconf.setFtpUser(ftpUser);
-				rconf.setFtpPassword(ftpPassword);
-				rconf.setFtpFilename(ftpFilename);
-				if (anonymize_filenames) {
-					rconf.setDataFilename(ftpFilename + "_dataXchanger_dicomfile");
-				} else {
-					rconf.setDataFilename(file.getName());
+		}
+	}
+
+	/**
+	 * checks if e or one of its causes is a refused ftp session.
+	 */
+	private static boolean refused(Throwable e) {
+		for (; e != null; e = e.getCause()) {
+			if (e instanceof FtpConnectException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * identifies the server or directory data is uploaded to.
+	 */
+	private static String destination() {
+		if (directory != null)
+			return directory.getAbsolutePath();
+		return ftpAddress + ":" + ftpPort + ":" + ftpUser;
+	}
+
+	/**
+	 * uploads an encrypted file, writes the receiver configuration files,
+	 * records the send in the index and removes the temporary files. Runs
+	 * on one of the upload threads.
+	 * 
+	 * @param file
+	 *            the source file
+	 * @param priority
+	 *            priority class of the upload
+	 * @param source
+	 *            the encrypted data to upload
+	 * @param anonymizedFile
+	 *            the temporary anonymized file
+	 * @param compressedFile
+	 *            the temporary compressed file, null if not compressed
+	 * @param digest
+	 *            digest of the encrypted file
+	 * @param xsKeys
+	 *            the secret key wrapped for every receiver
+	 * @param sendKey
+	 *            key of the send in the send index, may be null
+	 * @param sendIndex
+	 *            the send index, may be null
+	 */
+	private static void upload(File file, Priority priority,
+			SeekableSource source, File anonymizedFile, File compressedFile,
+			byte[] digest, byte[][] xsKeys, byte[] sendKey, SendIndex sendIndex) {
+		// all parts of the file share one flow
+		if (scheduler.isLimited())
+			source = scheduler.throttle(source, scheduler.open(priority));
+		String ftpFilename = null;
+		for (int attempt = 0; ftpFilename == null; attempt++) {
+			try {
+				if (uploadController == null) {
+					ftpFilename = meteredUpload(source);
+					break;
 				}
+				uploadController.acquire();
 				try {
-					rconf.store();
-				} catch (IOException e) {
-					error("can not write receiver configuration file.\n"
-							+ "message was: %s\nexiting.", e.toString());
+					ftpFilename = meteredUpload(source);
+				} finally {
+					uploadController.release();
+				}
+				uploadController.succeeded(source.length());
+			} catch (IOException e) {
+				if (uploadController == null || attempt == UPLOADATTEMPTS)
+					error("uploading data failed.\nmessage was: %s\nexiting.",
+							e.toString());
+				if (refused(e))
+					uploadController.refused();
+				else
+					uploadController.failed();
+				// give the server time to recover before it is asked again
+				try {
+					Thread.sleep(UPLOADRETRYDELAY << attempt);
+				} catch (InterruptedException f) {
+					error("interrupted waiting for upload.\nexiting.");
 				}
+			} catch (InterruptedException e) {
+				error("interrupted waiting for upload.\nexiting.");
 			}
+		}
 
-			// cleanup
-			if (debug > 0) // do cleanup only if no debug mode
-				return;
-			File rmFile = new File("anonymized_" + file.getName());
-			if (!rmFile.delete()) {
-				error("can not delete temporary file \"%s\".\nexiting.",
-						rmFile.getName());
+		// write receiver configs
+		String basename = confBasename(file);
+		for (int i = 0; i < xsKeys.length; i++) {
+			String confFilename = basename + "_" + i + ".rconf";
+			ReceiverConfigurationFile rconf = new ReceiverConfigurationFile(
+					confFilename);
+			rconf.setEncryptedSecretKey(xsKeys[i]);
+			rconf.setDigest(digest);
+			transport.configure(rconf);
+			rconf.setFtpFilename(ftpFilename);
+			if (compress)
+				rconf.setCompression(DeflateStreamCompressor.COMPRESSION);
+			if (anonymize_filenames) {
+				rconf.setDataFilename(ftpFilename + "_dataXchanger_dicomfile");
+			} else {
+				rconf.setDataFilename(file.getName());
 			}
-			rmFile = new File("encrypted_anonymized_" + file.getName());
-			if (!rmFile.delete()) {
-				error("can not delete temporary file \"%s\".\nexiting.",
-						rmFile.getName());
+			try {
+				rconf.store();
+			} catch (IOException e) {
+				error("can not write receiver configuration file.\n"
+						+ "message was: %s\nexiting.", e.toString());
 			}
-			rmFile = null;
+		}
+
+		// record completed send
+		if (sendIndex != null) {
+			try {
+				sendIndex.add(sendKey);
+			} catch (IOException e) {
+				error("can not write send index \"%s\".\n"
+						+ "message was: %s\nexiting.",
+						sendIndexFile.getPath(), e.toString());
+			}
+		}
+
+		// cleanup
+		if (debug > 0) // do cleanup only if no debug mode
+			return;
+		if (!anonymizedFile.delete()) {
+			error("can not delete temporary file \"%s\".\nexiting.",
+					anonymizedFile.getName());
+		}
+		if (compressedFile != null && !compressedFile.delete()) {
+			error("can not delete temporary file \"%s\".\nexiting.",
+					compressedFile.getName());
+		}
+	}
+
+	/**
+	 * returns the basename of the receiver configuration files of file. The
+	 * basename is the filename without extension, followed by a number if
+	 * another file with the same basename has been sent in this run.
+	 */
+	private static String confBasename(File file) {
+		String basename = file.getName().split("\\.(?=[^\\.]+$)")[0];
+		synchronized (confBasenames) {
+			String unique = basename;
+			for (int n = 2; !confBasenames.add(unique); n++)
+				unique = basename + "_" + n;
+			return unique;
+		}
+	}
+
+	/**
+	 * uploads source with the transport and records the upload in the
+	 * metrics of the upload stage.
+	 * 
+	 * @return name of the uploaded file
+	 */
+	private static String meteredUpload(SeekableSource source)
+			throws IOException {
+		StageMetrics uploads = Metrics.stage(Metrics.UPLOAD);
+		long begin = uploads.begin();
+		boolean success = false;
+		try {
+			String name = transport.upload(source);
+			uploads.end(begin, source.length());
+			success = true;
+			return name;
+		} finally {
+			if (!success)
+				uploads.fail(begin);
 		}
 	}
 
+	/**
+	 * calculates the key of sending file with the current settings for the
+	 * send index.
+	 * 
+	 * @param file
+	 *            the file to send
+	 * @param activeWhitelist
+	 *            the whitelist the file will be anonymized with
+	 * @return the key of the send
+	 */
+	private static byte[] sendKey(File file, DicomWhitelist activeWhitelist) {
+		byte[] key = null;
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			byte[] digest = new Sha512StreamDigest().digest(in, null);
+			in.close();
+			String destination = destination() + ":" + compress + ":"
+					+ anonymize_filenames + ":" + (pseudonymStoreFile != null)
+					+ ":" + chunkSize;
+			byte[][] parts = new byte[4 + asymEncKeys.size()][];
+			parts[0] = digest;
+			parts[1] = activeWhitelist.getDigest();
+			parts[2] = destination.getBytes("UTF-8");
+			parts[3] = uidKey == null ? new byte[0] : uidKey;
+			for (int i = 0; i < asymEncKeys.size(); i++)
+				parts[4 + i] = asymEncKeys.get(i).getEncoded();
+			key = SendIndex.key(parts);
+		} catch (IOException e) {
+			error("i/o error digesting inputfile \"%s\".\nmessage was: %s\n"
+					+ "exiting.", file.getName(), e.toString());
+		} catch (NoSuchAlgorithmException e) {
+			error("internal error digesting data.\n"
+					+ "message was: %s\nexiting.", e.toString());
+		} catch (NoSuchProviderException e) {
+			error("internal error digesting data.\n"
+					+ "message was: %s\nexiting.", e.toString());
+		}
+		return key;
+	}
+
 	/**
 	 * executes the help mode.
 	 */
@@ -725,22 +1279,54 @@ public class CommandlineUI {
 						+ "OPTIONS RECEIVE:\n"
 						+ "--conf PATH\t\trevceiver configuration file\n"
 						+ "--dec-key PATH\t\tfile with private key for decryption\n"
+						+ "--directory PATH\tread data sent to a shared directory from PATH\n"
+						+ "\t\t\tinstead of the directory named by the sender\n"
+						+ "--parallel-downloads N\tdownload segments or chunks of a file over N sessions\n"
 						+ "\n"
 						+ "OPTIONS SEND:\n"
+						+ "--adaptive-uploads\tadapt the number of uploads between 1 and the number\n"
+						+ "\t\t\tof \"--parallel-uploads\" to throughput and errors\n"
 						+ "--anonymize-filenames\tdo not send the original filename to the receiver\n"
+						+ "--chunk-size MB\t\tupload files as chunks of this size in parallel\n"
+						+ "\t\t\t(for servers without REST/APPE)\n"
+						+ "--compress\t\tdeflate-compress data before encryption\n"
+						+ "--directory PATH\tupload to this shared directory (e.g. an NFS or\n"
+						+ "\t\t\tSMB mount) instead of the ftp-server\n"
 						+ "--enc-key PATH\t\tfile with public key for encryption\n"
 						+ "\t\t\t(can be used multiple times)\n"
+						+ "--ftp-async\t\tupload over non-blocking sessions served by one\n"
+						+ "\t\t\tthread (passive mode, no chunks)\n"
 						+ "--ftp-password PASSWORD\tpassword for ftp-server login\n"
 						+ "--ftp-port PORTNUMBER\tport of ftp-server if other than 21\n"
 						+ "--ftp-server ADDRESS\tadress or ip of ftp-server\n"
 						+ "--ftp-user USERNAME\tusername for ftp-server login\n"
 						+ "--input PATH\t\tdicom file to process (can be used multiple times)\n"
+						+ "--parallel-uploads N\tnumber of files uploaded at the same time\n"
+						+ "--priority CLASS\tpriority of the following input files: urgent,\n"
+						+ "\t\t\tnormal (default) or bulk. urgent files are sent\n"
+						+ "\t\t\tfirst, bulk files use the leftover bandwidth\n"
+						+ "--pseudonym-store PATH\treplace patient name and id by persistent pseudonyms\n"
+						+ "\t\t\tif the whitelist replaces them\n"
+						+ "--rate-limit KB\t\tlimit the upload rate to KB kilobytes per second\n"
+						+ "--send-index PATH\tskip files already sent as recorded in this index\n"
+						+ "--uid-key PATH\t\tremap uids with the secret key in this file\n"
+						+ "\t\t\t(same key gives same uids, at least 16 bytes)\n"
 						+ "--whitelist PATH\tfile with dicom-tag-whitelist for anonymization\n"
+						+ "\t\t\t(compiled to PATH.compiled on first use)\n"
+						+ "--whitelist-reload\treload whitelist if it changes while sending\n"
 						+ "\n"
 						+ "GENERAL OPTIONS:\n"
 						+ "--debug\t\t\tdo not delete temporary files\n"
-						+ "--ftp-active\t\tuse active ftp-mode (default is passive)\n",
-						DataXchanger.NAME);
+						+ "--ftp-active\t\tuse active ftp-mode (default is passive)\n"
+						+ "--ftp-max-sessions N\tmaximum number of sessions to the ftp-server\n"
+						+ "--metrics\t\tprint the metrics of every stage and ftp-command\n"
+						+ "\t\t\tat exit\n"
+						+ "\n"
+						+ "MONITORING:\n"
+						+ "throughput, latency histograms, in-flight and error counts of every\n"
+						+ "stage and ftp-command are published as JMX MBeans in the domain\n"
+						+ "%s (e.g. watch them with jconsole)\n",
+						DataXchanger.NAME, Metrics.DOMAIN);
 	}
 
 	/**
@@ -789,6 +1375,8 @@ public class CommandlineUI {
 	 */
 	public static void exit(final int exitcode) {
 		// TODO cleanup
+		if (printMetrics)
+			Metrics.print(System.out);
 		System.exit(exitcode);
 	}
 }
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class provides the data of a file, e.g. a spooled encrypted file.
+ * transferTo() uses FileChannel.transferTo(), which the operating system can
+ * serve without copying the data through the JVM (sendfile).
+ * 
+ * @author Kornelius Podranski
+ */
+public class FileSource implements ChannelSource {
+	private final File file;
+
+	public FileSource(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long length() {
+		return file.length();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public InputStream open(long offset) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(offset);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long transferTo(long offset, long count, WritableByteChannel channel)
+			throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel fc = in.getChannel();
+			count = Math.min(count, fc.size() - offset);
+			long done = 0;
+			while (done < count) {
+				long n = fc.transferTo(offset + done, count - done, channel);
+				if (n <= 0)
+					throw new IOException("\"" + file.getPath()
+							+ "\" truncated");
+				done += n;
+			}
+			return done;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This interface provides data which can be read again from any offset. It is
+ * used to resume interrupted transfers without keeping a copy of the data
+ * that has already been transferred.
+ * 
+ * @author Kornelius Podranski
+ */
+public interface SeekableSource {
+
+	/**
+	 * Returns the total length of the data.
+	 * 
+	 * @return length in bytes
+	 */
+	public long length();
+
+	/**
+	 * Opens a stream providing the data from offset to the end. The caller
+	 * has to close the stream.
+	 * 
+	 * @param offset
+	 *            position of the first byte, 0 <= offset <= length()
+	 * @return stream of the data starting at offset
+	 * @throws IOException
+	 *             if the data can not be read
+	 */
+	public InputStream open(long offset) throws IOException;
+}
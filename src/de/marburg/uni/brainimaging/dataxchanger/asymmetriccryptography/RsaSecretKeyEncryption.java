@@ -70,9 +70,24 @@ public class RsaSecretKeyEncryption {
 			throws NoSuchAlgorithmException, NoSuchPaddingException,
 			InvalidKeyException, IllegalBlockSizeException,
 			BadPaddingException, NoSuchProviderException {
+		return encryptSecretKey(sKey, pubKey, PROVIDER);
+	}
+
+	/**
+	 * Encrypts a secret key with the given RSA-public-key using the given JCE
+	 * provider (see encryptSecretKey(SecretKey, PublicKey)).
+	 * 
+	 * @param provider
+	 *            name of the JCE provider to use
+	 */
+	public static byte[] encryptSecretKey(SecretKey sKey, PublicKey pubKey,
+			String provider) throws NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidKeyException,
+			IllegalBlockSizeException, BadPaddingException,
+			NoSuchProviderException {
 		byte[] result = null;
 		Cipher cipher = Cipher.getInstance(
-				"RSA/ECB/OAEPWithSHA-1AndMGF1Padding", PROVIDER);
+				"RSA/ECB/OAEPWithSHA-1AndMGF1Padding", provider);
 		cipher.init(Cipher.ENCRYPT_MODE, pubKey);
 		result = cipher.doFinal(sKey.getEncoded());
 		return result;
@@ -106,10 +121,25 @@ public class RsaSecretKeyEncryption {
 			throws NoSuchAlgorithmException, NoSuchPaddingException,
 			InvalidKeyException, IllegalBlockSizeException,
 			BadPaddingException, NoSuchProviderException {
+		return decryptSecretKey(xsKey, privKey, PROVIDER);
+	}
+
+	/**
+	 * Decrypts an RSA-encrypted secret key with the given private-key using the
+	 * given JCE provider (see decryptSecretKey(byte[], PrivateKey)).
+	 * 
+	 * @param provider
+	 *            name of the JCE provider to use
+	 */
+	public static SecretKey decryptSecretKey(byte[] xsKey,
+			PrivateKey privKey, String provider)
+			throws NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, IllegalBlockSizeException,
+			BadPaddingException, NoSuchProviderException {
 		SecretKey sKey = null;
 		Cipher cipher;
 		cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding",
-				PROVIDER);
+				provider);
 		cipher.init(Cipher.DECRYPT_MODE, privKey);
 		byte[] encSKey = cipher.doFinal(xsKey);
 		sKey = new SecretKeySpec(encSKey, "AES");
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import de.marburg.uni.brainimaging.dataxchanger.StreamProcessor;
+
+/**
+ * This class compresses a stream with deflate. The stream is split into
+ * blocks which are compressed independently and in parallel, so compression
+ * keeps up with encryption and upload on multi-core machines. <br>
+ * The compressed stream starts with MAGIC followed by the blocks. Each block
+ * is written as (uncompressed length, compressed length, raw deflate data),
+ * lengths as 4 byte big endian integers. The stream can be decompressed with
+ * DeflateStreamDecompressor or InflatingOutputStream.
+ *
+ * @author Kornelius Podranski
+ */
+public class DeflateStreamCompressor implements StreamProcessor<Void> {
+
+	// name of the compression as recorded in receiver configuration files
+	public static final String COMPRESSION = "deflate-blocks";
+	// "DXZ1"
+	public static final int MAGIC = 0x44585a31;
+	// uncompressed size of one block
+	public static final int BLOCKSIZE = 1024 * 1024; // 1MB
+
+	private final int level;
+	private final int threads;
+
+	// stores exception for StreamProcessor interface
+	private Exception exception = null;
+
+	/**
+	 *
+	 * @param level
+	 *            deflate compression level (see java.util.zip.Deflater)
+	 * @param threads
+	 *            number of blocks compressed in parallel
+	 */
+	public DeflateStreamCompressor(int level, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive");
+		this.level = level;
+		this.threads = threads;
+	}
+
+	/**
+	 * Initializes this instance with the default compression level and one
+	 * thread per available processor.
+	 */
+	public DeflateStreamCompressor() {
+		this(Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * Compresses in and writes the compressed stream to out. Both streams are
+	 * closed afterwards.
+	 *
+	 * @param in
+	 *            data to compress
+	 * @param out
+	 *            stream compressed data is written to
+	 * @throws IOException
+	 */
+	public void compress(InputStream in, OutputStream out) throws IOException {
+		DataOutputStream dOut = new DataOutputStream(out);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// blocks in progress in the order they have to be written
+		LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		try {
+			dOut.writeInt(MAGIC);
+			for (byte[] block = readBlock(in); block != null; block = readBlock(in)) {
+				pending.add(executor.submit(new BlockCompression(block, level)));
+				// limit memory to two blocks per thread
+				if (pending.size() >= 2 * threads)
+					dOut.write(pending.removeFirst().get());
+			}
+			while (!pending.isEmpty())
+				dOut.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException("compression interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("compression failed: "
+					+ e.getCause().toString());
+		} finally {
+			executor.shutdownNow();
+		}
+		dOut.close();
+		in.close();
+	}
+
+	/**
+	 * reads the next block from in.
+	 *
+	 * @return the next block, shorter than BLOCKSIZE only at the end of in, or
+	 *         null if in is exhausted
+	 * @throws IOException
+	 */
+	private static byte[] readBlock(InputStream in) throws IOException {
+		byte[] buffer = new byte[BLOCKSIZE];
+		int count = 0;
+		while (count < BLOCKSIZE) {
+			int n = in.read(buffer, count, BLOCKSIZE - count);
+			if (n == -1)
+				break;
+			count += n;
+		}
+		if (count == 0)
+			return null;
+		if (count < BLOCKSIZE) {
+			byte[] block = new byte[count];
+			System.arraycopy(buffer, 0, block, 0, count);
+			return block;
+		}
+		return buffer;
+	}
+
+	/**
+	 * compresses one block including its block header.
+	 */
+	private static class BlockCompression implements Callable<byte[]> {
+		private final byte[] block;
+		private final int level;
+
+		BlockCompression(byte[] block, int level) {
+			this.block = block;
+			this.level = level;
+		}
+
+		public byte[] call() throws IOException {
+			Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setInput(block);
+				deflater.finish();
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+						block.length / 2 + 64);
+				byte[] buffer = new byte[64 * 1024];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					compressed.write(buffer, 0, n);
+				}
+				ByteArrayOutputStream result = new ByteArrayOutputStream(
+						compressed.size() + 8);
+				DataOutputStream dResult = new DataOutputStream(result);
+				dResult.writeInt(block.length);
+				dResult.writeInt(compressed.size());
+				compressed.writeTo(dResult);
+				dResult.close();
+				return result.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	// STREAMPROCESSOR INTERFACE
+	/**
+	 * compresses in and writes the result to out. <br>
+	 * {@inheritDoc}
+	 */
+	public boolean process(InputStream in, OutputStream out) {
+		try {
+			compress(in, out);
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Void getResult() {
+		return null;
+	}
+}
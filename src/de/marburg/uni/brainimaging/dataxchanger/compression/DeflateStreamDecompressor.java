@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import de.marburg.uni.brainimaging.dataxchanger.StreamProcessor;
+
+/**
+ * This class decompresses a stream written by DeflateStreamCompressor.
+ *
+ * @author Kornelius Podranski
+ */
+public class DeflateStreamDecompressor implements StreamProcessor<Void> {
+
+	// size of the streambuffer
+	public static final int BUFFERSIZE = 64 * 1024; // 64KB
+
+	// stores exception for StreamProcessor interface
+	private Exception exception = null;
+
+	/**
+	 * Decompresses in and writes the decompressed data to out. Both streams
+	 * are closed afterwards.
+	 *
+	 * @param in
+	 *            compressed data
+	 * @param out
+	 *            stream decompressed data is written to
+	 * @throws IOException
+	 *             if in is not a valid compressed stream
+	 */
+	public void decompress(InputStream in, OutputStream out)
+			throws IOException {
+		OutputStream iOut = new InflatingOutputStream(out);
+		byte[] buffer = new byte[BUFFERSIZE];
+		for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+			iOut.write(buffer, 0, n);
+		iOut.close();
+		in.close();
+	}
+
+	// STREAMPROCESSOR INTERFACE
+	/**
+	 * decompresses in and writes the result to out. <br>
+	 * {@inheritDoc}
+	 */
+	public boolean process(InputStream in, OutputStream out) {
+		try {
+			decompress(in, out);
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Void getResult() {
+		return null;
+	}
+}
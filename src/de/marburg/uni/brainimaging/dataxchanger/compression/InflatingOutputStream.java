@@ -0,0 +1,147 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.compression;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class decompresses a stream written by DeflateStreamCompressor while
+ * it is written. It allows decompression in the same pass as decryption,
+ * which writes to an OutputStream.
+ *
+ * @author Kornelius Podranski
+ */
+public class InflatingOutputStream extends FilterOutputStream {
+
+	// upper bound for block lengths to detect corrupt streams
+	private static final int MAXBLOCKSIZE = 64 * DeflateStreamCompressor.BLOCKSIZE;
+
+	private final Inflater inflater = new Inflater(true);
+	// buffer for the magic number and block headers
+	private final byte[] header = new byte[8];
+	private int headerCount = 0;
+	private boolean magicRead = false;
+	// compressed data of the current block, null while reading a header
+	private byte[] block = null;
+	private int blockCount = 0;
+	private int rawLength = 0;
+
+	public InflatingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n;
+			if (!magicRead) {
+				n = fillHeader(b, off, len, 4);
+				if (headerCount == 4) {
+					if (getInt(0) != DeflateStreamCompressor.MAGIC)
+						throw new IOException("not a compressed stream");
+					magicRead = true;
+					headerCount = 0;
+				}
+			} else if (block == null) {
+				n = fillHeader(b, off, len, 8);
+				if (headerCount == 8) {
+					rawLength = getInt(0);
+					int length = getInt(4);
+					if (rawLength < 0 || rawLength > MAXBLOCKSIZE
+							|| length < 0 || length > MAXBLOCKSIZE)
+						throw new IOException("corrupt block header");
+					block = new byte[length];
+					blockCount = 0;
+					headerCount = 0;
+					if (length == 0)
+						inflateBlock();
+				}
+			} else {
+				n = Math.min(len, block.length - blockCount);
+				System.arraycopy(b, off, block, blockCount, n);
+				blockCount += n;
+				if (blockCount == block.length)
+					inflateBlock();
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Checks that the stream ended at a block boundary and closes the
+	 * underlying stream.
+	 *
+	 * @throws IOException
+	 *             if the compressed stream is truncated
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!magicRead || block != null || headerCount != 0)
+				throw new IOException("compressed stream truncated");
+		} finally {
+			inflater.end();
+			super.close();
+		}
+	}
+
+	private int fillHeader(byte[] b, int off, int len, int size) {
+		int n = Math.min(len, size - headerCount);
+		System.arraycopy(b, off, header, headerCount, n);
+		headerCount += n;
+		return n;
+	}
+
+	private int getInt(int off) {
+		return (header[off] & 0xff) << 24 | (header[off + 1] & 0xff) << 16
+				| (header[off + 2] & 0xff) << 8 | (header[off + 3] & 0xff);
+	}
+
+	private void inflateBlock() throws IOException {
+		byte[] raw = new byte[rawLength];
+		inflater.reset();
+		inflater.setInput(block);
+		try {
+			int count = 0;
+			while (count < rawLength) {
+				int n = inflater.inflate(raw, count, rawLength - count);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				count += n;
+			}
+			if (count != rawLength)
+				throw new IOException("corrupt block");
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt block: " + e.getMessage());
+		}
+		out.write(raw);
+		block = null;
+	}
+}
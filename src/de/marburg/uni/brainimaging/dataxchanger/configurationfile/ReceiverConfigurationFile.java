@@ -56,6 +56,11 @@ public class ReceiverConfigurationFile extends Properties {
 	protected static final String FTPPORT = "ftpport";
 	protected static final String FTPUSER = "ftpuser";
 	protected static final String FTPPASSWORD = "ftppwd";
+	// optional keys
+	protected static final String COMPRESSION = "compression";
+	protected static final String TRANSFER = "transfer";
+	// replaces the ftp keys if the data is exchanged through a directory
+	protected static final String DIRECTORY = "directory";
 
 	private File file;
 
@@ -139,6 +144,56 @@ public class ReceiverConfigurationFile extends Properties {
 		setProperty(FTPPASSWORD, password);
 	}
 
+	/**
+	 * Returns the compression applied to the data before encryption.
+	 * 
+	 * @return name of the compression or null if the data is not compressed
+	 */
+	public String getCompression() {
+		return getProperty(COMPRESSION);
+	}
+
+	public void setCompression(String compression) {
+		if (compression == null)
+			remove(COMPRESSION);
+		else
+			setProperty(COMPRESSION, compression);
+	}
+
+	/**
+	 * Returns the format the data has been uploaded in.
+	 * 
+	 * @return name of the transfer format or null if the data has been
+	 *         uploaded as a single file
+	 */
+	public String getTransfer() {
+		return getProperty(TRANSFER);
+	}
+
+	public void setTransfer(String transfer) {
+		if (transfer == null)
+			remove(TRANSFER);
+		else
+			setProperty(TRANSFER, transfer);
+	}
+
+	/**
+	 * Returns the shared directory the data has been uploaded to.
+	 * 
+	 * @return path of the directory or null if the data has been uploaded to
+	 *         the ftp-server
+	 */
+	public String getDirectory() {
+		return getProperty(DIRECTORY);
+	}
+
+	public void setDirectory(String directory) {
+		if (directory == null)
+			remove(DIRECTORY);
+		else
+			setProperty(DIRECTORY, directory);
+	}
+
 	/**
 	 * loads the configuration file from disk. All variables of the instance
 	 * will be overwritten.
@@ -157,6 +212,8 @@ public class ReceiverConfigurationFile extends Properties {
 			throw new IllegalStateException("not all necessary elements could "
 					+ "be loaded");
 		// check for correct format/value-range
+		if (getDirectory() != null)
+			return;
 		try {
 			getFtpPort();
 		} catch (NumberFormatException e) {
@@ -190,10 +247,12 @@ public class ReceiverConfigurationFile extends Properties {
 		all.add(DIGEST);
 		all.add(DATAFILENAME);
 		all.add(FTPFILENAME);
-		all.add(FTPSERVER);
-		all.add(FTPPORT);
-		all.add(FTPUSER);
-		all.add(FTPPASSWORD);
+		if (getDirectory() == null) {
+			all.add(FTPSERVER);
+			all.add(FTPPORT);
+			all.add(FTPUSER);
+			all.add(FTPPASSWORD);
+		}
 
 		if (stringPropertyNames().containsAll(all))
 			return true;
@@ -0,0 +1,461 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.VR;
+
+/**
+ * This class provides the binary representation of a DicomWhitelist. The
+ * compiled whitelist is stored next to the text whitelist and memory-mapped
+ * on startup, so wildcards do not have to be expanded and values do not have
+ * to be parsed again on every run. <br>
+ * The rules of the whitelist form a trie of tag paths: every node holds the
+ * tags allowed in one DICOM-object, an entry of a sequence tag may point to
+ * the node holding the tags allowed in the items of this sequence. Nodes and
+ * entries are addressed by their offset in the binary image, so traversal
+ * does not allocate. <br>
+ * The layout of the binary file is (all numbers big endian):
+ * <ul>
+ * <li>header: magic number, format version, digest of the text whitelist,
+ * offset of the value table</li>
+ * <li>nodes, starting with the root node: number of entries followed by
+ * (tag, index of value or -1, offset of child node or -1) for every entry,
+ * sorted by tag</li>
+ * <li>value table: number of values followed by (VR code, length, bytes) for
+ * every value</li>
+ * </ul>
+ * A compiled whitelist is stale if its digest does not match the digest of
+ * the text whitelist it was compiled from. <br>
+ * Instances are immutable and may be shared by any number of threads without
+ * locking. The nodes are only accessed by absolute reads, the values are
+ * decoded once on construction and only handed out as copies.
+ *
+ * @author Kornelius Podranski
+ */
+public class CompiledDicomWhitelist {
+	// suffix appended to the filename of the text whitelist
+	public static final String SUFFIX = ".compiled";
+	// "DXWL"
+	public static final int MAGIC = 0x4458574c;
+	// increment on every change of the binary layout
+	public static final int FORMAT_VERSION = 2;
+	// digest of the text whitelist stored in the header
+	public static final String DIGEST = "SHA-256";
+	public static final int DIGESTSIZE = 32; // bytes
+	// returned for missing entries, values and nodes
+	public static final int NONE = -1;
+
+	private static final int HEADERSIZE = 4 + 4 + DIGESTSIZE + 4;
+	private static final int ENTRYSIZE = 4 + 4 + 4;
+	// the root node directly follows the header
+	private static final int ROOT = HEADERSIZE;
+
+	// complete binary image of the compiled whitelist (read-only)
+	private final ByteBuffer image;
+	// VR and encoded value by value index
+	private final VR[] vrs;
+	private final byte[][] values;
+
+	/**
+	 * A rule of the text whitelist as input for compile().
+	 */
+	public static class Rule {
+		// replacement value or null to preserve the original value
+		public DicomElement value = null;
+		// rules for the items of a sequence or null to preserve all items
+		public Map<Integer, Rule> children = null;
+	}
+
+	private CompiledDicomWhitelist(ByteBuffer image) {
+		this.image = image.asReadOnlyBuffer();
+		int offset = this.image.getInt(8 + DIGESTSIZE);
+		int count = this.image.getInt(offset);
+		offset += 4;
+		this.vrs = new VR[count];
+		this.values = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			vrs[i] = VR.valueOf(this.image.getInt(offset));
+			byte[] bytes = new byte[this.image.getInt(offset + 4)];
+			ByteBuffer value = this.image.duplicate();
+			value.position(offset + 8);
+			value.get(bytes);
+			values[i] = bytes;
+			offset += 8 + bytes.length;
+		}
+	}
+
+	/**
+	 * Compiles the given rules into the binary representation.
+	 *
+	 * @param rules
+	 *            the rules of the whitelist by tag as parsed by
+	 *            DicomWhitelist.
+	 * @param digest
+	 *            digest of the text whitelist the rules were parsed from
+	 * @return the compiled whitelist
+	 */
+	public static CompiledDicomWhitelist compile(Map<Integer, Rule> rules,
+			byte[] digest) {
+		if (digest.length != DIGESTSIZE)
+			throw new IllegalArgumentException("wrong digest size");
+		List<DicomElement> valueList = new ArrayList<DicomElement>();
+		int valueTable = ROOT + size(rules, valueList);
+		int size = valueTable + 4;
+		for (DicomElement value : valueList)
+			size += 4 + 4 + value.getBytes().length;
+
+		ByteBuffer image = ByteBuffer.allocate(size);
+		image.putInt(MAGIC);
+		image.putInt(FORMAT_VERSION);
+		image.put(digest);
+		image.putInt(valueTable);
+		valueList.clear();
+		layout(rules, image, ROOT, valueList);
+		image.position(valueTable);
+		image.putInt(valueList.size());
+		for (DicomElement value : valueList) {
+			byte[] bytes = value.getBytes();
+			image.putInt(value.vr().code());
+			image.putInt(bytes.length);
+			image.put(bytes);
+		}
+		image.flip();
+		return new CompiledDicomWhitelist(image);
+	}
+
+	/**
+	 * calculates the size of a node and all nodes below it and collects
+	 * their values.
+	 */
+	private static int size(Map<Integer, Rule> rules, List<DicomElement> values) {
+		int size = 4 + rules.size() * ENTRYSIZE;
+		for (Rule rule : rules.values()) {
+			if (rule.value != null)
+				values.add(rule.value);
+			if (rule.children != null)
+				size += size(rule.children, values);
+		}
+		return size;
+	}
+
+	/**
+	 * writes a node to offset, followed by the nodes below it.
+	 *
+	 * @return the offset behind the last node written
+	 */
+	private static int layout(Map<Integer, Rule> rules, ByteBuffer image,
+			int offset, List<DicomElement> values) {
+		int[] keys = new int[rules.size()];
+		int i = 0;
+		for (Integer key : rules.keySet())
+			keys[i++] = key;
+		Arrays.sort(keys);
+
+		image.putInt(offset, keys.length);
+		int entry = offset + 4;
+		int end = entry + keys.length * ENTRYSIZE;
+		for (int key : keys) {
+			Rule rule = rules.get(key);
+			int value = NONE;
+			if (rule.value != null) {
+				value = values.size();
+				values.add(rule.value);
+			}
+			int child = NONE;
+			if (rule.children != null) {
+				child = end;
+				end = layout(rule.children, image, end, values);
+			}
+			image.putInt(entry, key);
+			image.putInt(entry + 4, value);
+			image.putInt(entry + 8, child);
+			entry += ENTRYSIZE;
+		}
+		return end;
+	}
+
+	/**
+	 * Memory-maps a compiled whitelist from disk.
+	 *
+	 * @param file
+	 *            the compiled whitelist
+	 * @param digest
+	 *            digest of the current text whitelist
+	 * @return the compiled whitelist or null if the file does not exist, is
+	 *         stale or was written with another format version
+	 * @throws IOException
+	 */
+	public static CompiledDicomWhitelist load(File file, byte[] digest)
+			throws IOException {
+		if (!file.isFile() || file.length() < HEADERSIZE + 4)
+			return null;
+		ByteBuffer image;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			image = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if (image.getInt(0) != MAGIC || image.getInt(4) != FORMAT_VERSION)
+			return null;
+		byte[] storedDigest = new byte[DIGESTSIZE];
+		ByteBuffer header = image.duplicate();
+		header.position(8);
+		header.get(storedDigest);
+		if (!MessageDigest.isEqual(storedDigest, digest))
+			return null;
+		try {
+			return new CompiledDicomWhitelist(image);
+		} catch (RuntimeException e) {
+			// truncated or corrupt file, recompile
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the compiled whitelist to disk. The file is written to a
+	 * temporary file first and renamed afterwards, so concurrent runs never
+	 * see a partially written file.
+	 *
+	 * @param file
+	 *            destination of the compiled whitelist
+	 * @throws IOException
+	 */
+	public void store(File file) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getAbsoluteFile().getParentFile());
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.getChannel().write(image.duplicate());
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// renameTo does not replace existing files on all platforms
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("could not write compiled whitelist \""
+						+ file.getPath() + "\"");
+			}
+		}
+	}
+
+	/**
+	 * Returns the location of the compiled whitelist for a text whitelist.
+	 *
+	 * @param whitelist
+	 *            the text whitelist
+	 * @return the file the compiled whitelist is stored in
+	 */
+	public static File compiledFile(File whitelist) {
+		return new File(whitelist.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Calculates the digest identifying the content of a text whitelist.
+	 *
+	 * @param source
+	 *            content of the text whitelist
+	 * @return the digest of source
+	 * @throws IOException
+	 *             if the digest algorithm is not available
+	 */
+	public static byte[] digest(byte[] source) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST);
+			md.update(source);
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(DIGEST + " not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the digest of the text whitelist this whitelist was compiled
+	 * from. It identifies the version of the whitelist.
+	 *
+	 * @return the digest of the text whitelist
+	 */
+	public byte[] getDigest() {
+		byte[] digest = new byte[DIGESTSIZE];
+		ByteBuffer header = image.duplicate();
+		header.position(8);
+		header.get(digest);
+		return digest;
+	}
+
+	/**
+	 * Returns the root node, which holds the rules for the top level
+	 * DICOM-object.
+	 *
+	 * @return the root node
+	 */
+	public int getRootNode() {
+		return ROOT;
+	}
+
+	/**
+	 * Looks up the entry for tag in a node.
+	 *
+	 * @param node
+	 *            the node to search
+	 * @param tag
+	 *            the tag to look up
+	 * @return the entry of tag or NONE if tag is not allowed in node
+	 */
+	public int findEntry(int node, int tag) {
+		int low = 0;
+		int high = image.getInt(node) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = node + 4 + mid * ENTRYSIZE;
+			int midTag = image.getInt(entry);
+			if (midTag < tag)
+				low = mid + 1;
+			else if (midTag > tag)
+				high = mid - 1;
+			else
+				return entry;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Returns the node holding the rules for the items of a sequence.
+	 *
+	 * @param entry
+	 *            entry of the sequence tag
+	 * @return the node or NONE if all items are preserved unchanged
+	 */
+	public int getChildNode(int entry) {
+		return image.getInt(entry + 8);
+	}
+
+	/**
+	 * Returns the VR of the value of an entry.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @return the VR of the value or null if the entry has no value
+	 */
+	public VR getEntryVR(int entry) {
+		int value = image.getInt(entry + 4);
+		return value == NONE ? null : vrs[value];
+	}
+
+	/**
+	 * Returns a copy of the encoded value of an entry.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @return the little endian encoded value or null if the entry has no
+	 *         value
+	 */
+	public byte[] getEntryBytes(int entry) {
+		int value = image.getInt(entry + 4);
+		return value == NONE ? null : values[value].clone();
+	}
+
+	/**
+	 * Checks if a specific DICOM-tag is contained in the root node.
+	 *
+	 * @param tag
+	 *            the tag to look up
+	 * @return true if the tag was found, false otherwise
+	 */
+	public boolean hasTag(int tag) {
+		return findEntry(ROOT, tag) != NONE;
+	}
+
+	/**
+	 * Checks if the DICOM-tag is associated with a value in the root node.
+	 *
+	 * @param tag
+	 *            the tag to look up
+	 * @return true if a value is associated with the given tag, false if the
+	 *         tag has no value or is not part of this whitelist
+	 */
+	public boolean hasValue(int tag) {
+		int entry = findEntry(ROOT, tag);
+		return entry != NONE && image.getInt(entry + 4) != NONE;
+	}
+
+	/**
+	 * Returns the VR of the value associated with tag in the root node.
+	 *
+	 * @param tag
+	 *            the tag to look up
+	 * @return the VR of the value or null if the tag has no value or is not
+	 *         part of this whitelist
+	 */
+	public VR getVR(int tag) {
+		int entry = findEntry(ROOT, tag);
+		return entry == NONE ? null : getEntryVR(entry);
+	}
+
+	/**
+	 * Returns a copy of the encoded value associated with tag in the root
+	 * node.
+	 *
+	 * @param tag
+	 *            the tag to look up
+	 * @return the little endian encoded value or null if the tag has no value
+	 *         or is not part of this whitelist
+	 */
+	public byte[] getBytes(int tag) {
+		int entry = findEntry(ROOT, tag);
+		return entry == NONE ? null : getEntryBytes(entry);
+	}
+
+	/**
+	 * Creates a new DicomElement for the value associated with tag in the
+	 * root node.
+	 *
+	 * @param tag
+	 *            the tag to look up
+	 * @return the DicomElement for the value or null if the tag has no value
+	 *         or is not part of this whitelist
+	 */
+	public DicomElement getValue(int tag) {
+		byte[] bytes = getBytes(tag);
+		if (bytes == null)
+			return null;
+		return new BasicDicomObject().putBytes(tag, getVR(tag), bytes);
+	}
+}
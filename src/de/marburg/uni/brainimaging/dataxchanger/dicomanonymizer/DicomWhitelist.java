@@ -20,9 +20,13 @@
 package de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
@@ -34,16 +38,23 @@ import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
 import org.dcm4che2.data.VRMap;
 
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist.Rule;
+
 /**
  * This class provides a representation of a whitelist of DICOM-tags. The list
- * will be read from disk.
+ * will be read from disk. <br>
+ * The text whitelist is compiled into a binary representation on first use
+ * (see CompiledDicomWhitelist). Later runs memory-map the compiled whitelist
+ * as long as the text whitelist has not been changed. <br>
+ * Instances are immutable snapshots of the whitelist and can be shared by any
+ * number of anonymizer threads without locking.
  * 
  * @author Kornelius Podranski
  */
-public class DicomWhitelist {
+public final class DicomWhitelist {
 	public static final boolean bigEdian = false;
-	private File file;
-	private Map<Integer, DicomElement> tagList;
+	private final File file;
+	private final CompiledDicomWhitelist tagList;
 
 	/**
 	 * Creates an instance of this class containing the tags of the given file.
@@ -57,8 +68,7 @@ public class DicomWhitelist {
 	public DicomWhitelist(File file) throws IOException,
 			IllegalArgumentException {
 		this.file = file;
-		tagList = new HashMap<Integer, DicomElement>();
-		read();
+		this.tagList = read(file);
 		check();
 	}
 
@@ -73,41 +83,98 @@ public class DicomWhitelist {
 			throw new IllegalStateException();
 		// check if whitelist contains "Transfer Syntax UID" necessary for
 		// writing files
-		if (!tagList.containsKey(Tag.TransferSyntaxUID))
+		if (!tagList.hasTag(Tag.TransferSyntaxUID))
 			throw new IllegalArgumentException(
 					"0002,0010 Transfer Syntax UID missing in whitelist");
 
 	}
 
 	/**
-	 * reads a DICOM-tag-whitelist from disk.
+	 * reads a DICOM-tag-whitelist from disk. If an up to date compiled
+	 * whitelist exists it is used, otherwise the text whitelist is parsed and
+	 * compiled.
 	 * 
+	 * @param file
+	 *            the text whitelist
+	 * @return the compiled whitelist
 	 * @throws IOException
 	 */
-	private void read() throws IOException {
+	private static CompiledDicomWhitelist read(File file) throws IOException {
 		if (file == null)
 			throw new IllegalStateException();
-		// if (!file.exists())
-		// throw new FileNotFoundException();
-		// if (!file.canRead())
-		// throw new IOException();
-		FileReader fin = new FileReader(file);
-		BufferedReader in = new BufferedReader(fin);
+		byte[] source = readFile(file);
+		byte[] digest = CompiledDicomWhitelist.digest(source);
+		File compiledFile = CompiledDicomWhitelist.compiledFile(file);
+		CompiledDicomWhitelist compiled = CompiledDicomWhitelist.load(
+				compiledFile, digest);
+		if (compiled != null)
+			return compiled;
+
+		compiled = CompiledDicomWhitelist.compile(parse(source), digest);
+		try {
+			compiled.store(compiledFile);
+		} catch (IOException e) {
+			// the compiled whitelist is only a cache, so a read-only
+			// directory is no reason to fail
+		}
+		return compiled;
+	}
+
+	/**
+	 * parses the content of a text whitelist.
+	 * 
+	 * @param source
+	 *            content of the text whitelist
+	 * @return rules of the top level DICOM-object by tag
+	 * @throws IOException
+	 *             if a line is not valid
+	 */
+	private static Map<Integer, Rule> parse(byte[] source) throws IOException {
+		Map<Integer, Rule> rules = new HashMap<Integer, Rule>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(source)));
 		for (String line = in.readLine(); line != null; line = in.readLine()) {
-			if (!line.startsWith("#") || !line.isEmpty())
-				tagList.putAll(parseTag((line)));
+			if (!line.startsWith("#") && !line.isEmpty())
+				parseTag(line, rules);
 		}
 		in.close();
+		return rules;
+	}
+
+	/**
+	 * reads the complete content of a file.
+	 * 
+	 * @param file
+	 *            the file to read
+	 * @return the content of file
+	 * @throws IOException
+	 */
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				(int) file.length());
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+				out.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
 	}
 
 	/**
-	 * parses a tag-sting of the form (gggg,eeee)=value into a map used for
+	 * parses a tag-sting of the form (gggg,eeee)=value into the rules used for
 	 * internal representation. <br>
 	 * The tag has to be in the well known notation with surrounding braces,
 	 * hexadecimal numbers and a comma seperating group and element number. <br>
+	 * Tags inside sequences are given as path of tags seperated by '/', e.g.
+	 * (gggg,eeee)/(gggg,eeee)=value. The sequence tags of the path are
+	 * whitelisted implicitly. If rules for the items of a sequence exist, the
+	 * items are filtered by these rules, otherwise the items are preserved
+	 * unchanged. <br>
 	 * An 'x' may be used as a wildcard for any digit of the tag and is replaced
-	 * by all possible numbers resulting an a map containing more than one
-	 * entry. <br>
+	 * by all possible numbers resulting in more than one rule. <br>
 	 * The value or euqal sign+value may be omitted. If the equal sign is
 	 * present and no value is given an explicit null value is assumed. If the
 	 * equal sign and value are not present preservation of the original value
@@ -115,67 +182,94 @@ public class DicomWhitelist {
 	 * 
 	 * @param tag
 	 *            the tag representation as described above
-	 * @return a map of DicomElements for the given tag-string
+	 * @param rules
+	 *            rules of the top level DICOM-object the new rules are added
+	 *            to
 	 * @throws IOException
 	 *             if the tag string is not valid
 	 */
-	private static Map<Integer, DicomElement> parseTag(String tag)
+	private static void parseTag(String tag, Map<Integer, Rule> rules)
 			throws IOException {
-		Map<Integer, DicomElement> map = new HashMap<Integer, DicomElement>();
+		int separator = tag.indexOf('=');
+		String path = separator == -1 ? tag : tag.substring(0, separator);
 
 		// handling of x as wildcard number
 		// tag = tag.replaceAll("x", "0"); // x-values are represented as 0 in
 		// dcm4che
-		int xPosition = tag.indexOf('x');
+		int xPosition = path.indexOf('x');
 		if (xPosition != -1) {
 			for (int i = 0; i < 16; i++) {
 				String newTag = tag.substring(0, xPosition)
 						+ Integer.toHexString(i) + tag.substring(xPosition + 1);
-				Map<Integer, DicomElement> m = parseTag(newTag);
-				map.putAll(m);
+				parseTag(newTag, rules);
 			}
-			return map;
+			return;
 		}
 
-		// transform key into dcm4chee int-value
-		ByteBuffer buffer = ByteBuffer.allocate(4);
-		buffer.put(parseUnsignedByte(tag.substring(0, 2)));
-		buffer.put(parseUnsignedByte(tag.substring(2, 4)));
-		buffer.put(parseUnsignedByte(tag.substring(5, 7)));
-		buffer.put(parseUnsignedByte(tag.substring(7, 9)));
-		// buffer.flip();
-		int key = buffer.getInt(0);
+		// walk down the path, creating rules for the sequences
+		String[] segments = path.split("/");
+		Map<Integer, Rule> node = rules;
+		Rule rule = null;
+		int key = 0;
+		for (int i = 0; i < segments.length; i++) {
+			key = parseKey(segments[i]);
+			rule = node.get(key);
+			if (rule == null) {
+				rule = new Rule();
+				node.put(key, rule);
+			}
+			if (i < segments.length - 1) {
+				if (rule.children == null)
+					rule.children = new HashMap<Integer, Rule>();
+				node = rule.children;
+			}
+		}
 
 		// TODO check if tag is known and supported (optional, because rules out
 		// private tags)
 
 		// process value of tag
-		DicomElement dicomElement = null; // value is null by default
-		if (tag.length() > 9) { // is a value provided?
-			if (tag.charAt(9) != '=') // separator must be =
-				throw new IOException(); // TODO
+		if (separator != -1) { // is a value provided?
 			// get VR of tag
 			VRMap vrMap = VRMap.getVRMap();
 			VR vr = vrMap.vrOf(key);
-			// System.out.println(vr.toString()); //DEBUG
 			// TODO if vr is UN (tag is not known/private) -> error
 
 			// create DicomObject to parse value into a DicomElement
 			DicomObject dicomObject = new BasicDicomObject();
-			if (tag.length() == 10) { // if no more chars it is an explicit null
-										// value
+			if (separator == tag.length() - 1) { // if no more chars it is an
+													// explicit null value
 				// TODO if null and vr does not allow null -> error
-				dicomElement = dicomObject.putNull(key, vr);
+				rule.value = dicomObject.putNull(key, vr);
 			} else { // a value is provided
-				String value = tag.substring(10);
-				dicomElement = dicomObject.putString(key, vr, value);
-				// put into value object
+				String value = tag.substring(separator + 1);
+				rule.value = dicomObject.putString(key, vr, value);
 			}
 		}
-		// Map<Integer, DicomElement> map = new HashMap<Integer,
-		// DicomElement>();
-		map.put(key, dicomElement);
-		return map;
+	}
+
+	/**
+	 * transforms a tag of the form gggg,eeee into the dcm4che int-value.
+	 * 
+	 * @param tag
+	 *            the tag
+	 * @return the int-value of the tag
+	 * @throws IOException
+	 *             if the tag is not valid
+	 */
+	private static int parseKey(String tag) throws IOException {
+		if (tag.length() != 9 || tag.charAt(4) != ',')
+			throw new IOException("invalid tag \"" + tag + "\"");
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		try {
+			buffer.put(parseUnsignedByte(tag.substring(0, 2)));
+			buffer.put(parseUnsignedByte(tag.substring(2, 4)));
+			buffer.put(parseUnsignedByte(tag.substring(5, 7)));
+			buffer.put(parseUnsignedByte(tag.substring(7, 9)));
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid tag \"" + tag + "\"");
+		}
+		return buffer.getInt(0);
 	}
 
 	/**
@@ -189,6 +283,75 @@ public class DicomWhitelist {
 		return (byte) Integer.parseInt(s, 16);
 	}
 
+	/**
+	 * Returns a digest of the text whitelist identifying this version of the
+	 * whitelist.
+	 * 
+	 * @return the digest of the text whitelist
+	 */
+	public byte[] getDigest() {
+		return tagList.getDigest();
+	}
+
+	/**
+	 * Returns the root node of the whitelist, which holds the rules for the
+	 * top level DICOM-object. Nodes and entries are int handles, so the
+	 * whitelist can be traversed without allocation.
+	 * 
+	 * @return the root node
+	 */
+	public int getRootNode() {
+		return tagList.getRootNode();
+	}
+
+	/**
+	 * Looks up the entry for tag in a node.
+	 * 
+	 * @param node
+	 *            the node to search
+	 * @param tag
+	 *            the tag to look up
+	 * @return the entry of tag or CompiledDicomWhitelist.NONE if the tag is not
+	 *         allowed in node
+	 */
+	public int findEntry(int node, int tag) {
+		return tagList.findEntry(node, tag);
+	}
+
+	/**
+	 * Returns the node holding the rules for the items of a sequence.
+	 * 
+	 * @param entry
+	 *            entry of the sequence tag
+	 * @return the node or CompiledDicomWhitelist.NONE if all items are
+	 *         preserved unchanged
+	 */
+	public int getChildNode(int entry) {
+		return tagList.getChildNode(entry);
+	}
+
+	/**
+	 * Returns the VR of the value of an entry.
+	 * 
+	 * @param entry
+	 *            the entry
+	 * @return the VR of the value or null if the entry has no value
+	 */
+	public VR getEntryVR(int entry) {
+		return tagList.getEntryVR(entry);
+	}
+
+	/**
+	 * Returns a copy of the encoded value of an entry.
+	 * 
+	 * @param entry
+	 *            the entry
+	 * @return the encoded value or null if the entry has no value
+	 */
+	public byte[] getEntryBytes(int entry) {
+		return tagList.getEntryBytes(entry);
+	}
+
 	/**
 	 * Checks if a specific DICOM-tag is contained in this whitelist.
 	 * 
@@ -197,7 +360,7 @@ public class DicomWhitelist {
 	 * @return true if the tag was found in this whitelist, false otherwise
 	 */
 	public boolean hasTag(int tag) {
-		return tagList.containsKey(tag);
+		return tagList.hasTag(tag);
 	}
 
 	/**
@@ -212,11 +375,43 @@ public class DicomWhitelist {
 	public boolean hasValue(int tag) throws IllegalArgumentException {
 		if (!hasTag(tag))
 			throw new IllegalArgumentException();
-		return tagList.get(tag) != null;
+		return tagList.hasValue(tag);
+	}
+
+	/**
+	 * Returns the VR of the value associated with a certain tag.
+	 * 
+	 * @param tag
+	 *            the tag to look up
+	 * @return the VR of the value or null if the tag has no value
+	 * @throws IllegalArgumentException
+	 *             if the tag is not part of this whitelist.
+	 */
+	public VR getVR(int tag) {
+		if (!hasTag(tag))
+			throw new IllegalArgumentException();
+		return tagList.getVR(tag);
+	}
+
+	/**
+	 * Returns a copy of the encoded value associated with a certain tag. The
+	 * caller may keep or modify the returned array.
+	 * 
+	 * @param tag
+	 *            the tag to look up
+	 * @return the encoded value or null if the tag has no value
+	 * @throws IllegalArgumentException
+	 *             if the tag is not part of this whitelist.
+	 */
+	public byte[] getBytes(int tag) {
+		if (!hasTag(tag))
+			throw new IllegalArgumentException();
+		return tagList.getBytes(tag);
 	}
 
 	/**
 	 * Looks up the DicomElement representing a certain tag in this whitelist.
+	 * Every call returns a new DicomElement.
 	 * 
 	 * @param tag
 	 *            the tag to look up
@@ -228,6 +423,6 @@ public class DicomWhitelist {
 	public DicomElement getValue(int tag) {
 		if (!hasTag(tag))
 			throw new IllegalArgumentException();
-		return tagList.get(tag);
+		return tagList.getValue(tag);
 	}
 }
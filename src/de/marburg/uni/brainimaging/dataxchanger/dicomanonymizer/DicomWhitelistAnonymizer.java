@@ -19,33 +19,97 @@
 
 package de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Iterator;
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputHandler;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.DicomOutputStream;
 
 import de.marburg.uni.brainimaging.dataxchanger.StreamProcessor;
+import de.marburg.uni.brainimaging.dataxchanger.pseudonymization.PseudonymStore;
 
 /**
  * This class provides a functionality to apply a DicomWhitelist to a
- * DICOM-object.
+ * DICOM-object. <br>
+ * Any number of instances may share one DicomWhitelist, no element of the
+ * whitelist is shared with the resulting DICOM-objects. <br>
+ * If a PseudonymStore is given, the identifiers in PSEUDONYMIZED_TAGS are
+ * replaced by their pseudonym instead of the constant value of the whitelist,
+ * so studies of one patient stay linked. If a UidRemapper is given, UIDs
+ * copied from the source are remapped.
  * 
  * @author Kornelius Podranski
  */
 public class DicomWhitelistAnonymizer implements StreamProcessor<Void> {
 
+	// size of the buffer used to copy pixel data
+	public static final int BUFFERSIZE = 64 * 1024; // 64KB
+	// identifiers replaced by pseudonyms if the whitelist replaces them
+	public static final int[] PSEUDONYMIZED_TAGS = { Tag.PatientName,
+			Tag.PatientID };
+
 	// stores occoured exceptions for StreamProcessor interface
 	private Exception processException = null;
 	// stores the whitelist for StreamProcessor interface
-	private DicomWhitelist whitelist;
+	private final DicomWhitelist whitelist;
+	// alternatively provides the active whitelist for StreamProcessor
+	// interface
+	private final ReloadingDicomWhitelist reloadingWhitelist;
+	// provides pseudonyms for StreamProcessor interface, may be null
+	private PseudonymStore pseudonyms = null;
+	// remaps UIDs for StreamProcessor interface, may be null
+	private UidRemapper uids = null;
 
 	public DicomWhitelistAnonymizer(DicomWhitelist whitelist) {
 		this.whitelist = whitelist;
+		this.reloadingWhitelist = null;
+	}
+
+	/**
+	 * Initializes this instance with a whitelist that may be reloaded. The
+	 * whitelist active when process() is called is used for the whole file.
+	 * 
+	 * @param whitelist
+	 *            provides the active whitelist
+	 */
+	public DicomWhitelistAnonymizer(ReloadingDicomWhitelist whitelist) {
+		this.whitelist = null;
+		this.reloadingWhitelist = whitelist;
+	}
+
+	/**
+	 * Sets the store providing pseudonyms for replaced identifiers. The store
+	 * may be shared by any number of instances.
+	 * 
+	 * @param pseudonyms
+	 *            the store or null to replace identifiers by the constant
+	 *            values of the whitelist
+	 */
+	public void setPseudonymStore(PseudonymStore pseudonyms) {
+		this.pseudonyms = pseudonyms;
+	}
+
+	/**
+	 * Sets the remapper for UIDs copied from the source. The remapper is not
+	 * thread safe and must not be shared with other instances running
+	 * concurrently.
+	 * 
+	 * @param uids
+	 *            the remapper or null to copy UIDs unchanged
+	 */
+	public void setUidRemapper(UidRemapper uids) {
+		this.uids = uids;
 	}
 
 	/**
@@ -53,7 +117,10 @@ public class DicomWhitelistAnonymizer implements StreamProcessor<Void> {
 	 * writes the resulting DICOM-object to out. Applying means changing the
 	 * values of data elements if a value is given in the whitelist for a
 	 * certain data element and removing data elements if they are not part of
-	 * the whitelist.
+	 * the whitelist. <br>
+	 * If the whitelist preserves the pixel data and the transfer syntax, only
+	 * the header is parsed and re-encoded. The pixel data is copied from in to
+	 * out unchanged (see anonymizeHeader()).
 	 * 
 	 * @param in
 	 *            stream providing a dicom object
@@ -65,39 +132,341 @@ public class DicomWhitelistAnonymizer implements StreamProcessor<Void> {
 	 */
 	public static void anonymize(InputStream in, OutputStream out,
 			DicomWhitelist whitelist) throws IOException {
+		anonymize(in, out, whitelist, null, null);
+	}
+
+	/**
+	 * Applies the given DicomWhitelist like anonymize(in, out, whitelist).
+	 * Identifiers in PSEUDONYMIZED_TAGS replaced by the whitelist are replaced
+	 * by their pseudonym instead. UIDs copied from the source, including those
+	 * in sequence items, are remapped.
+	 * 
+	 * @param in
+	 *            stream providing a dicom object
+	 * @param out
+	 *            stream the resulting dicom object will be written to
+	 * @param whitelist
+	 *            whitelist to apply to the dicom object
+	 * @param pseudonyms
+	 *            store providing the pseudonyms, may be null
+	 * @param uids
+	 *            remapper for UIDs, may be null
+	 * @throws IOException
+	 */
+	public static void anonymize(InputStream in, OutputStream out,
+			DicomWhitelist whitelist, PseudonymStore pseudonyms,
+			UidRemapper uids) throws IOException {
+		if (canSplice(whitelist)) {
+			anonymizeHeader(in, out, whitelist, pseudonyms, uids);
+			return;
+		}
+
 		DicomInputStream dIn = new DicomInputStream(in);
 		DicomObject dcmObj = dIn.readDicomObject();
 		dIn.close();
 
+		DicomObject anonDcmObj = filter(dcmObj, whitelist, pseudonyms, uids);
+
+		try {
+			DicomOutputStream dOut = new DicomOutputStream(out);
+			dOut.writeDicomFile(anonDcmObj);
+			dOut.close();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("could not write DICOM-file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * checks if the whitelist preserves pixel data and transfer syntax, so
+	 * the pixel data can be spliced.
+	 */
+	private static boolean canSplice(DicomWhitelist whitelist) {
+		return whitelist.hasTag(Tag.PixelData)
+				&& !whitelist.hasValue(Tag.PixelData)
+				&& !whitelist.hasValue(Tag.TransferSyntaxUID);
+	}
+
+	/**
+	 * Anonymizes a DICOM-object parsing only the elements in front of the pixel
+	 * data. The anonymized header is written in the transfer syntax of the
+	 * source, followed by the pixel data element copied byte-for-byte from in.
+	 * Elements following the pixel data (e.g. trailing padding) are parsed and
+	 * filtered again. <br>
+	 * The cost is proportional to the size of the header instead of the size
+	 * of the file. For deflated transfer syntaxes the pixel data is inflated
+	 * and deflated again, because the deflate stream covers the whole dataset.
+	 * 
+	 * @param in
+	 *            stream providing a dicom object
+	 * @param out
+	 *            stream the resulting dicom object will be written to
+	 * @param whitelist
+	 *            whitelist to apply to the dicom object. must preserve pixel
+	 *            data and transfer syntax.
+	 * @param pseudonyms
+	 *            store providing the pseudonyms, may be null
+	 * @param uids
+	 *            remapper for UIDs, may be null
+	 * @throws IOException
+	 */
+	public static void anonymizeHeader(InputStream in, OutputStream out,
+			DicomWhitelist whitelist, PseudonymStore pseudonyms,
+			UidRemapper uids) throws IOException {
+		DicomInputStream dIn = new DicomInputStream(in);
+		PixelDataStopHandler stop = new PixelDataStopHandler();
+		dIn.setHandler(stop);
+		DicomObject header = dIn.readDicomObject();
+		TransferSyntax ts = dIn.getTransferSyntax();
+
+		DicomObject anonHeader = filter(header, whitelist, pseudonyms, uids);
+
+		try {
+			DicomOutputStream dOut = new DicomOutputStream(out);
+			// keep the deflater open for the spliced elements
+			dOut.setAutoFinish(false);
+			dOut.writeDicomFile(anonHeader);
+			if (stop.stopped) {
+				// splice pixel data
+				int length = dIn.valueLength();
+				dOut.writeHeader(Tag.PixelData, dIn.vr(), length);
+				if (length == -1)
+					copyFragments(dIn, dOut, ts.bigEndian());
+				else
+					copy(dIn, dOut, length & 0xffffffffL);
+
+				// filter elements behind the pixel data
+				DicomObject trailer = new BasicDicomObject();
+				dIn.setHandler(dIn);
+				dIn.readDicomObject(trailer, -1);
+				writeElements(filter(trailer, whitelist, pseudonyms, uids),
+						dOut);
+			}
+			dOut.finish();
+			dOut.close();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("could not write DICOM-file: "
+					+ e.getMessage());
+		} finally {
+			dIn.close();
+		}
+	}
+
+	/**
+	 * Creates a new DICOM-object containing the elements of dcmObj allowed by
+	 * the whitelist.
+	 * 
+	 * @param dcmObj
+	 *            the source DICOM-object
+	 * @param whitelist
+	 *            whitelist to apply to the dicom object
+	 * @param pseudonyms
+	 *            store providing the pseudonyms, may be null
+	 * @param uids
+	 *            remapper for UIDs, may be null
+	 * @return the anonymized DICOM-object
+	 * @throws IOException
+	 *             if the pseudonym store can not be read or written
+	 */
+	private static DicomObject filter(DicomObject dcmObj,
+			DicomWhitelist whitelist, PseudonymStore pseudonyms,
+			UidRemapper uids) throws IOException {
+		return filter(dcmObj, whitelist, whitelist.getRootNode(), pseudonyms,
+				uids);
+	}
+
+	/**
+	 * Creates a new DICOM-object containing the elements of dcmObj allowed by
+	 * a node of the whitelist. Items of sequences with rules of their own are
+	 * filtered in the same pass, other whitelisted sequences are copied with
+	 * all their items. <br>
+	 * The source is parsed completely before it is filtered, and a new
+	 * BasicDicomObject is created for every filtered item. Filtering in a
+	 * DicomInputHandler while parsing would save these copies. As long as the
+	 * pixel data is spliced only the header is parsed, which keeps the copies
+	 * small. AnonymizerBenchmark measures the cost per item with its
+	 * sequenceItems parameter.
+	 * 
+	 * @param dcmObj
+	 *            the source DICOM-object or sequence item
+	 * @param whitelist
+	 *            whitelist to apply to the dicom object
+	 * @param node
+	 *            the node of the whitelist holding the rules for dcmObj
+	 * @param pseudonyms
+	 *            store providing the pseudonyms, may be null
+	 * @param uids
+	 *            remapper for UIDs, may be null
+	 * @return the anonymized DICOM-object
+	 * @throws IOException
+	 *             if the pseudonym store can not be read or written
+	 */
+	private static DicomObject filter(DicomObject dcmObj,
+			DicomWhitelist whitelist, int node, PseudonymStore pseudonyms,
+			UidRemapper uids) throws IOException {
 		DicomObject anonDcmObj = new BasicDicomObject();
 		Iterator<DicomElement> it = dcmObj.iterator();
 		while (it.hasNext()) {
 			DicomElement e = it.next();
 			// System.out.println("debug: " + e.toString());
 			int tag = e.tag();
-			if (whitelist.hasTag(tag)) {
-				if (whitelist.hasValue(tag)) { // replace value with constant
-					anonDcmObj.add(whitelist.getValue(tag));
-					// DicomElement valueElement = whitelist.getValue(tag);
-					// VR valueVr = valueElement.vr();
-					// byte[] valueValue = valueElement.getBytes();
-					// anonDcmObj.putBytes(tag, valueVr, valueValue);
-				} else { // copy value from source
-					anonDcmObj.add(e);
-					// VR vr = e.vr();
-					// byte[] value = e.getBytes();
-					// anonDcmObj.putBytes(tag, vr, value);
-				}
+			int entry = whitelist.findEntry(node, tag);
+			if (entry == CompiledDicomWhitelist.NONE)
+				continue;
+			VR vr = whitelist.getEntryVR(entry);
+			int childNode = whitelist.getChildNode(entry);
+			if (vr != null && pseudonyms != null && isPseudonymized(tag)
+					&& !e.isEmpty()) { // replace value with pseudonym
+				String original = e.getString(
+						dcmObj.getSpecificCharacterSet(), false);
+				anonDcmObj.putString(tag, e.vr(),
+						pseudonyms.pseudonym(Tag.toString(tag) + original));
+			} else if (vr != null) { // replace value with constant
+				anonDcmObj.putBytes(tag, vr, whitelist.getEntryBytes(entry));
+			} else if (childNode != CompiledDicomWhitelist.NONE
+					&& e.hasDicomObjects()) { // filter items
+				int count = e.countItems();
+				DicomElement sq = anonDcmObj.putSequence(tag, count);
+				for (int i = 0; i < count; i++)
+					sq.addDicomObject(filter(e.getDicomObject(i), whitelist,
+							childNode, pseudonyms, uids));
+			} else { // copy value from source
+				copyElement(anonDcmObj, e, uids);
 			}
 		}
+		return anonDcmObj;
+	}
 
-		try {
-			DicomOutputStream dOut = new DicomOutputStream(out);
-			dOut.writeDicomFile(anonDcmObj);
-			dOut.close();
-		} catch (IllegalArgumentException e) {
-			throw new IOException("could not write DICOM-file: "
-					+ e.getMessage());
+	/**
+	 * Adds a copy of an element to dcmObj. UIDs and UIDs in sequence items are
+	 * remapped.
+	 * 
+	 * @param dcmObj
+	 *            the DICOM-object to add the element to
+	 * @param e
+	 *            the element to copy
+	 * @param uids
+	 *            remapper for UIDs, may be null
+	 */
+	private static void copyElement(DicomObject dcmObj, DicomElement e,
+			UidRemapper uids) {
+		if (uids != null && e.vr() == VR.UI && !e.isEmpty()) {
+			dcmObj.putBytes(e.tag(), VR.UI, uids.remap(e.getBytes()));
+		} else if (uids != null && e.hasDicomObjects()) {
+			int count = e.countItems();
+			DicomElement sq = dcmObj.putSequence(e.tag(), count);
+			for (int i = 0; i < count; i++) {
+				DicomObject item = new BasicDicomObject();
+				Iterator<DicomElement> it = e.getDicomObject(i).iterator();
+				while (it.hasNext())
+					copyElement(item, it.next(), uids);
+				sq.addDicomObject(item);
+			}
+		} else {
+			dcmObj.add(e);
+		}
+	}
+
+	private static boolean isPseudonymized(int tag) {
+		for (int t : PSEUDONYMIZED_TAGS)
+			if (t == tag)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Writes the elements of dcmObj to an DicomOutputStream already writing a
+	 * dataset. Only used for the elements behind the pixel data, which must
+	 * not be sequences.
+	 * 
+	 * @param dcmObj
+	 *            the elements to write
+	 * @param dOut
+	 *            stream to write to
+	 * @throws IOException
+	 *             if dcmObj contains a sequence
+	 */
+	private static void writeElements(DicomObject dcmObj,
+			DicomOutputStream dOut) throws IOException {
+		Iterator<DicomElement> it = dcmObj.iterator();
+		while (it.hasNext()) {
+			DicomElement e = it.next();
+			if (e.hasItems())
+				throw new IOException("sequence behind pixel data not "
+						+ "supported: " + Tag.toString(e.tag()));
+			byte[] value = e.getBytes();
+			dOut.writeHeader(e.tag(), e.vr(), value.length);
+			dOut.write(value);
+		}
+	}
+
+	/**
+	 * Copies the items of encapsulated pixel data including the sequence
+	 * delimitation item unchanged from in to out.
+	 * 
+	 * @param in
+	 *            stream positioned behind the pixel data header
+	 * @param out
+	 *            stream the items are written to
+	 * @param bigEndian
+	 *            byte order of the transfer syntax
+	 * @throws IOException
+	 */
+	private static void copyFragments(InputStream in, OutputStream out,
+			boolean bigEndian) throws IOException {
+		byte[] itemHeader = new byte[8];
+		ByteBuffer buffer = ByteBuffer.wrap(itemHeader).order(
+				bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		int tag;
+		do {
+			readFully(in, itemHeader);
+			out.write(itemHeader);
+			tag = (buffer.getShort(0) & 0xffff) << 16
+					| (buffer.getShort(2) & 0xffff);
+			if (tag == Tag.Item)
+				copy(in, out, buffer.getInt(4) & 0xffffffffL);
+		} while (tag != Tag.SequenceDelimitationItem);
+	}
+
+	/**
+	 * Copies exactly length bytes from in to out.
+	 * 
+	 * @throws IOException
+	 *             if in ends before length bytes are copied
+	 */
+	private static void copy(InputStream in, OutputStream out, long length)
+			throws IOException {
+		byte[] buffer = new byte[BUFFERSIZE];
+		while (length > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (n == -1)
+				throw new EOFException("pixel data truncated");
+			out.write(buffer, 0, n);
+			length -= n;
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] b) throws IOException {
+		for (int off = 0; off < b.length;) {
+			int n = in.read(b, off, b.length - off);
+			if (n == -1)
+				throw new EOFException("pixel data truncated");
+			off += n;
+		}
+	}
+
+	/**
+	 * stops parsing at the top level pixel data element.
+	 */
+	private static class PixelDataStopHandler implements DicomInputHandler {
+		boolean stopped = false;
+
+		public boolean readValue(DicomInputStream in) throws IOException {
+			if (in.tag() == Tag.PixelData && in.level() == 0) {
+				stopped = true;
+				return false;
+			}
+			return in.readValue(in);
 		}
 	}
 
@@ -108,7 +477,9 @@ public class DicomWhitelistAnonymizer implements StreamProcessor<Void> {
 	 */
 	public boolean process(InputStream in, OutputStream out) {
 		try {
-			anonymize(in, out, whitelist);
+			DicomWhitelist active = reloadingWhitelist == null ? whitelist
+					: reloadingWhitelist.current();
+			anonymize(in, out, active, pseudonyms, uids);
 		} catch (Exception e) {
 			processException = e;
 			return false;
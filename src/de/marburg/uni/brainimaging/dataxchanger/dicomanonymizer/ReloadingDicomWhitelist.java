@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class watches a whitelist file and reloads it when it changes. The
+ * whitelist is read and compiled by a background thread, afterwards the
+ * active DicomWhitelist is swapped atomically. Users fetch the active
+ * whitelist with current() once per file, so files in progress finish with
+ * the old rules while new files use the new ones. <br>
+ * A change is only read once modification time and size of the file have
+ * stayed the same for one interval, so a file still being written by an
+ * editor or a copy is not picked up half-written. <br>
+ * If the changed whitelist can not be read or is not valid, the old whitelist
+ * stays active and the exception can be retrieved via getException().
+ *
+ * @author Kornelius Podranski
+ */
+public class ReloadingDicomWhitelist implements Runnable {
+	// default interval between two checks of the whitelist file
+	public static final long INTERVAL = 1000; // ms
+
+	private final File file;
+	private final long interval;
+	private final AtomicReference<DicomWhitelist> whitelist;
+	// exception of the last reload, null if it succeeded
+	private volatile Exception exception = null;
+	private volatile boolean running = false;
+	private Thread thread;
+
+	// state of the file the active whitelist was read from
+	private long lastModified;
+	private long length;
+	// state of the changed file at the last check, -1 if unchanged
+	private long changedModified = -1;
+	private long changedLength = -1;
+
+	/**
+	 *
+	 * @param file
+	 *            the text whitelist to watch
+	 * @param whitelist
+	 *            the whitelist already read from file
+	 * @param interval
+	 *            milliseconds between two checks of file
+	 */
+	public ReloadingDicomWhitelist(File file, DicomWhitelist whitelist,
+			long interval) {
+		this.file = file;
+		this.interval = interval;
+		this.whitelist = new AtomicReference<DicomWhitelist>(whitelist);
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+	}
+
+	/**
+	 * Initializes this instance using the default interval.
+	 *
+	 * @param file
+	 *            the text whitelist to watch
+	 * @param whitelist
+	 *            the whitelist already read from file
+	 */
+	public ReloadingDicomWhitelist(File file, DicomWhitelist whitelist) {
+		this(file, whitelist, INTERVAL);
+	}
+
+	/**
+	 * Returns the active whitelist. Never blocks, not even while a reload is
+	 * in progress.
+	 *
+	 * @return the active whitelist
+	 */
+	public DicomWhitelist current() {
+		return whitelist.get();
+	}
+
+	/**
+	 * Returns the exception of the last reload.
+	 *
+	 * @return the exception of the last reload or null if it succeeded
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * Starts watching the whitelist file in a background thread.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(this, "whitelist-reload");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the whitelist file.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Checks the whitelist file once and reloads it if it has changed and has
+	 * not changed since the last check.
+	 *
+	 * @return true if a new whitelist has been activated, false otherwise
+	 */
+	public synchronized boolean reload() {
+		long modified = file.lastModified();
+		long size = file.length();
+		if (modified == lastModified && size == length) {
+			changedModified = -1;
+			changedLength = -1;
+			return false;
+		}
+		if (modified != changedModified || size != changedLength) {
+			// still being written, wait for the next check
+			changedModified = modified;
+			changedLength = size;
+			return false;
+		}
+		try {
+			DicomWhitelist reloaded = new DicomWhitelist(file);
+			// written to while it was read
+			if (file.lastModified() != modified || file.length() != size)
+				return false;
+			whitelist.set(reloaded);
+			exception = null;
+			return true;
+		} catch (Exception e) {
+			// keep the old rules
+			exception = e;
+			return false;
+		} finally {
+			// do not retry until the file changes again
+			if (file.lastModified() == modified && file.length() == size) {
+				lastModified = modified;
+				length = size;
+			}
+			changedModified = -1;
+			changedLength = -1;
+		}
+	}
+
+	/**
+	 * checks the whitelist file every interval until stop() is called.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			reload();
+		}
+	}
+}
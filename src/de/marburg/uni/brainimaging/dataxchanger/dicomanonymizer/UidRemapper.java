@@ -0,0 +1,208 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class replaces DICOM UIDs by UIDs derived from a keyed hash. The
+ * 128 most significant bits of HMAC-SHA256(key, uid) are formatted as a UUID
+ * (version 8, variant 10) and written as a "2.25." UID. <br>
+ * The same key always yields the same mapping, so parallel workers and other
+ * hosts remap the UIDs of a study consistently without sharing any state.
+ * UIDs defined by the DICOM standard (below "1.2.840.10008.") are kept.
+ * <br>
+ * Instances reuse their buffers and are not thread safe. Use one instance per
+ * thread.
+ * 
+ * @author Kornelius Podranski
+ */
+public class UidRemapper {
+	// name of the mac algorithm
+	public static final String MAC = "HmacSHA256";
+	// crypto-provider to use
+	public static final String PROVIDER = 
+			org.bouncycastle.jce.provider.BouncyCastleProvider.PROVIDER_NAME;
+	// minimal length of the key in bytes
+	public static final int MINKEYSIZE = 16;
+	// root of the remapped UIDs
+	public static final String ROOT = "2.25.";
+	// root of UIDs defined by the DICOM standard, these are not remapped
+	public static final String DICOMROOT = "1.2.840.10008.";
+
+	// maximal length of a remapped UID: root and 2^128 in decimal
+	private static final int UIDSIZE = 5 + 39;
+	private static final byte[] ROOTBYTES = ascii(ROOT);
+	private static final byte[] DICOMROOTBYTES = ascii(DICOMROOT);
+
+	private final Mac mac;
+	// buffers reused for every UID
+	private final byte[] hash;
+	private final int[] words = new int[4];
+	private final byte[] digits = new byte[39];
+	private byte[] buffer = new byte[2 * (UIDSIZE + 1)];
+
+	/**
+	 * 
+	 * @param key
+	 *            secret key of the mapping, at least MINKEYSIZE bytes
+	 * @throws NoSuchAlgorithmException
+	 *             if no provider for MAC is found
+	 * @throws NoSuchProviderException
+	 *             if the PROVIDER is not found
+	 * @throws InvalidKeyException
+	 *             if the key can not be used
+	 */
+	public UidRemapper(byte[] key) throws NoSuchAlgorithmException,
+			NoSuchProviderException, InvalidKeyException {
+		if (key.length < MINKEYSIZE)
+			throw new InvalidKeyException("key must be at least " + MINKEYSIZE
+					+ " bytes");
+		this.mac = Mac.getInstance(MAC, PROVIDER);
+		this.mac.init(new SecretKeySpec(key, MAC));
+		this.hash = new byte[mac.getMacLength()];
+	}
+
+	/**
+	 * Remaps the value of an element with VR UI. Multiple values separated by
+	 * '\' are remapped one by one, padding is removed.
+	 * 
+	 * @param value
+	 *            the encoded value
+	 * @return the encoded remapped value, padded to even length
+	 */
+	public byte[] remap(byte[] value) {
+		int length = 0;
+		int start = 0;
+		for (int i = 0; i <= value.length; i++) {
+			if (i < value.length && value[i] != '\\')
+				continue;
+			// separator, the remapped or passed through value and padding
+			ensureCapacity(length + 1 + Math.max(UIDSIZE, i - start) + 1);
+			if (start > 0)
+				buffer[length++] = '\\';
+			length = remap(value, start, i, length);
+			start = i + 1;
+		}
+		if (length % 2 != 0)
+			buffer[length++] = 0;
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Remaps a single UID.
+	 * 
+	 * @param uid
+	 *            the UID
+	 * @return the remapped UID
+	 */
+	public String remap(String uid) {
+		byte[] remapped = remap(ascii(uid));
+		int length = remapped.length;
+		while (length > 0 && remapped[length - 1] == 0)
+			length--;
+		return new String(remapped, 0, length);
+	}
+
+	/**
+	 * remaps value[from, to) and writes the result to buffer at off.
+	 * 
+	 * @return the end of the written UID in buffer
+	 */
+	private int remap(byte[] value, int from, int to, int off) {
+		// strip padding
+		while (to > from && (value[to - 1] == 0 || value[to - 1] == ' '))
+			to--;
+		while (from < to && value[from] == ' ')
+			from++;
+		if (from == to)
+			return off;
+		if (startsWith(value, from, to, DICOMROOTBYTES)) {
+			System.arraycopy(value, from, buffer, off, to - from);
+			return off + to - from;
+		}
+
+		mac.update(value, from, to - from);
+		try {
+			mac.doFinal(hash, 0);
+		} catch (ShortBufferException e) {
+			// hash is sized to the mac length
+			throw new IllegalStateException(e);
+		}
+		// UUID version 8 (custom) and variant 10
+		hash[6] = (byte) (hash[6] & 0x0f | 0x80);
+		hash[8] = (byte) (hash[8] & 0x3f | 0x80);
+		for (int i = 0; i < 4; i++)
+			words[i] = (hash[4 * i] & 0xff) << 24
+					| (hash[4 * i + 1] & 0xff) << 16
+					| (hash[4 * i + 2] & 0xff) << 8 | (hash[4 * i + 3] & 0xff);
+
+		System.arraycopy(ROOTBYTES, 0, buffer, off, ROOTBYTES.length);
+		off += ROOTBYTES.length;
+		// convert the 128 bit integer to decimal, least significant first
+		int count = 0;
+		do {
+			long remainder = 0;
+			for (int i = 0; i < 4; i++) {
+				long dividend = remainder << 32 | (words[i] & 0xffffffffL);
+				words[i] = (int) (dividend / 10);
+				remainder = dividend % 10;
+			}
+			digits[count++] = (byte) ('0' + remainder);
+		} while ((words[0] | words[1] | words[2] | words[3]) != 0);
+		while (count > 0)
+			buffer[off++] = digits[--count];
+		return off;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer.length < capacity) {
+			byte[] newBuffer = new byte[Math.max(capacity, 2 * buffer.length)];
+			System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+			buffer = newBuffer;
+		}
+	}
+
+	private static boolean startsWith(byte[] value, int from, int to,
+			byte[] prefix) {
+		if (to - from < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+			if (value[from + i] != prefix[i])
+				return false;
+		return true;
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+}
@@ -0,0 +1,726 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+import de.marburg.uni.brainimaging.dataxchanger.metrics.Metrics;
+import de.marburg.uni.brainimaging.dataxchanger.metrics.StageMetrics;
+
+/**
+ * This class provides an FTP client like FtpClient, but without a thread of
+ * its own: the connections of the session are non-blocking and served by an
+ * FtpEventLoop together with those of many other sessions. Operations return
+ * at once, their results are delivered through Futures. <br>
+ * Commands which do not depend on each other's replies are pipelined, i.e.
+ * sent together without waiting: USER, PASS and TYPE on login, RNFR and RNTO
+ * on completing an upload. Operations of one session run one after another,
+ * in the order they were started. Transfers always use passive mode (EPSV).
+ * The data of an upload is read from its source on a reader thread of the
+ * loop, one buffer at a time. <br>
+ * A failed operation closes the session, the operations waiting behind it
+ * fail as well.
+ * 
+ * @author Kornelius Podranski
+ */
+public class AsyncFtpClient {
+	// size of the buffer of a data connection
+	public static final int BUFFERSIZE = 64 * 1024; // 64KB
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	// port in the reply to EPSV: (|||port|)
+	private static final Pattern EPSVREPLY = Pattern
+			.compile("\\(\\|\\|\\|(\\d+)\\|\\)");
+
+	/**
+	 * handles the reply to a command.
+	 */
+	private interface ReplyHandler {
+		/**
+		 * @return true if this was the final reply to the command, false if
+		 *         it was preliminary (1xx)
+		 */
+		boolean reply(int code, String text) throws IOException;
+	}
+
+	private final FtpEventLoop loop;
+	private final InetSocketAddress address;
+	private final String username;
+	private final String password;
+
+	// state of the session, only used on the thread of the loop
+	private SocketChannel control;
+	private SelectionKey controlKey;
+	// commands not yet written completely
+	private final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+	// handlers of the commands sent, in order
+	private final LinkedList<ReplyHandler> replies = new LinkedList<ReplyHandler>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+	private final StringBuilder line = new StringBuilder();
+	// code and text of a multi-line reply in progress
+	private String multiline = null;
+	private final StringBuilder replyText = new StringBuilder();
+	private final LinkedList<Operation> operations = new LinkedList<Operation>();
+	private Operation current = null;
+	// data connection of the running operation
+	private Upload upload = null;
+	private IOException broken = null;
+
+	/**
+	 * The address is resolved here, so the loop never waits for DNS.
+	 * 
+	 * @param loop
+	 *            the loop serving the connections of this session
+	 * @param address
+	 *            the domain name or ip-address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 */
+	public AsyncFtpClient(FtpEventLoop loop, String address, int port,
+			String username, String password) {
+		this.loop = loop;
+		this.address = new InetSocketAddress(address, port > 0 ? port : 21);
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Connects to the FTP-server and logs in. Like FtpClient.connect() a
+	 * refused connection or login fails with an FtpConnectException.
+	 * 
+	 * @return completes when the session is ready for transfers
+	 */
+	public Future<Void> connect() {
+		final Result<Void> result = new Result<Void>() {
+			@Override
+			void fail(Exception exception) {
+				super.fail(new FtpConnectException(
+						"Could not connect to server", exception));
+			}
+		};
+		start(new Operation(result) {
+			void start() throws IOException {
+				control = SocketChannel.open();
+				control.configureBlocking(false);
+				controlKey = loop.register(control, SelectionKey.OP_CONNECT,
+						new ControlHandler());
+				if (control.connect(address))
+					connected();
+				// the greeting is the reply to connecting
+				replies.add(new ReplyHandler() {
+					public boolean reply(int code, String text)
+							throws IOException {
+						if (code / 100 == 1)
+							return false;
+						if (code != 220)
+							throw new IOException(text);
+						login(result);
+						return true;
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Uploads source to the FTP-server's root directory under a new unique
+	 * name (see UniqueFilename). Like FtpClient.put(InputStream) the data is
+	 * uploaded to the name with PARTSUFFIX and renamed when complete.
+	 * 
+	 * @param source
+	 *            data to be uploaded
+	 * @return completes with the path of the file on the FTP-server
+	 */
+	public Future<String> put(final SeekableSource source) {
+		final Result<String> result = new Result<String>();
+		start(new Operation(result) {
+			void start() throws IOException {
+				upload = new Upload(source, UniqueFilename.next(), result);
+				upload.start();
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Logs out and closes the session.
+	 * 
+	 * @return completes when the session is closed
+	 */
+	public Future<Void> quit() {
+		final Result<Void> result = new Result<Void>();
+		start(new Operation(result) {
+			void start() throws IOException {
+				send("QUIT", new ReplyHandler() {
+					public boolean reply(int code, String text) {
+						result.set(null);
+						current = null;
+						fail(new IOException("session closed"));
+						return true;
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * sends the login commands pipelined.
+	 */
+	private void login(final Result<Void> result) throws IOException {
+		final boolean[] loggedIn = { false };
+		send("USER " + username, new ReplyHandler() {
+			public boolean reply(int code, String text) throws IOException {
+				if (code == 230)
+					loggedIn[0] = true; // no password needed
+				else if (code != 331)
+					throw new IOException("FTP server did not accept "
+							+ "credentials: " + text);
+				return true;
+			}
+		});
+		send("PASS " + password, new ReplyHandler() {
+			public boolean reply(int code, String text) throws IOException {
+				if (code != 230 && code != 202 && !loggedIn[0])
+					throw new IOException("FTP server did not accept "
+							+ "credentials: " + text);
+				return true;
+			}
+		});
+		send("TYPE I", new ReplyHandler() {
+			public boolean reply(int code, String text) throws IOException {
+				if (code != 200)
+					throw new IOException(text);
+				complete(result, null);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * an upload in progress.
+	 */
+	private class Upload implements FtpEventLoop.Handler {
+		private final SeekableSource source;
+		private final String filename;
+		private final Result<String> result;
+		private SocketChannel data;
+		private SelectionKey dataKey;
+		// opened and read on reader threads only
+		private InputStream in;
+		private ByteBuffer buffer;
+		// a reader thread is filling buffer
+		private boolean reading = false;
+		private boolean closed = false;
+		private boolean sent = false;
+
+		Upload(SeekableSource source, String filename, Result<String> result) {
+			this.source = source;
+			this.filename = filename;
+			this.result = result;
+		}
+
+		void start() throws IOException {
+			send("EPSV", new ReplyHandler() {
+				public boolean reply(int code, String text) throws IOException {
+					Matcher m = EPSVREPLY.matcher(text);
+					if (code != 229 || !m.find())
+						throw new IOException("passive mode refused: " + text);
+					openData(Integer.parseInt(m.group(1)));
+					return true;
+				}
+			});
+		}
+
+		private void openData(int port) throws IOException {
+			InetAddress host = control.socket().getInetAddress();
+			data = SocketChannel.open();
+			data.configureBlocking(false);
+			dataKey = loop.register(data, SelectionKey.OP_CONNECT, this);
+			if (data.connect(new InetSocketAddress(host, port)))
+				dataConnected();
+		}
+
+		private void dataConnected() throws IOException {
+			dataKey.interestOps(0);
+			send("STOR " + filename + FtpClient.PARTSUFFIX, new ReplyHandler() {
+				public boolean reply(int code, String text) throws IOException {
+					if (code / 100 == 1) {
+						// server is ready for the data
+						buffer = ByteBuffer.allocate(BUFFERSIZE);
+						fill();
+						return false;
+					}
+					if (code != 226 && code != 250)
+						throw new IOException(text);
+					if (!sent)
+						throw new IOException("transfer ended early: " + text);
+					rename();
+					return true;
+				}
+			});
+		}
+
+		private void rename() throws IOException {
+			send("RNFR " + filename + FtpClient.PARTSUFFIX, new ReplyHandler() {
+				public boolean reply(int code, String text) throws IOException {
+					if (code != 350)
+						throw new IOException("could not rename uploaded file: "
+								+ text);
+					return true;
+				}
+			});
+			send("RNTO " + filename, new ReplyHandler() {
+				public boolean reply(int code, String text) throws IOException {
+					if (code != 250)
+						throw new IOException("could not rename uploaded file: "
+								+ text);
+					complete(result, filename);
+					return true;
+				}
+			});
+		}
+
+		/**
+		 * reads the next buffer on a reader thread. The data connection
+		 * waits until filled() is called on the thread of the loop.
+		 */
+		private void fill() throws IOException {
+			dataKey.interestOps(0);
+			reading = true;
+			try {
+				loop.read(new Runnable() {
+					public void run() {
+						int n = -1;
+						IOException error = null;
+						try {
+							if (in == null)
+								in = source.open(0);
+							buffer.clear();
+							n = in.read(buffer.array());
+						} catch (IOException e) {
+							error = e;
+						}
+						final int count = n;
+						final IOException exception = error;
+						try {
+							loop.execute(new FtpEventLoop.Task() {
+								public void run() {
+									filled(count, exception);
+								}
+
+								public void failed(IOException e) {
+									reading = false;
+									closeSource();
+									fail(e);
+								}
+							});
+						} catch (IllegalStateException e) {
+							// the loop is closed, nobody waits for the data
+							closeSource();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				reading = false;
+				throw new IOException("event loop closed");
+			}
+		}
+
+		/**
+		 * continues the transfer with the buffer read by fill().
+		 */
+		private void filled(int n, IOException error) {
+			reading = false;
+			if (closed) {
+				closeSource();
+				return;
+			}
+			try {
+				if (error != null)
+					throw error;
+				if (n == -1) {
+					// closing the data connection ends the transfer
+					closeSource();
+					data.close();
+					sent = true;
+					return;
+				}
+				buffer.limit(n);
+				dataKey.interestOps(SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		public void ready(SelectionKey key) throws IOException {
+			if (key.isConnectable()) {
+				data.finishConnect();
+				dataConnected();
+				return;
+			}
+			data.write(buffer);
+			// otherwise the socket is full, wait for OP_WRITE
+			if (!buffer.hasRemaining())
+				fill();
+		}
+
+		public void failed(IOException e) {
+			fail(e);
+		}
+
+		void close() {
+			closed = true;
+			// a pending read closes the source when it is done
+			if (!reading)
+				closeSource();
+			try {
+				if (data != null)
+					data.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+
+		private void closeSource() {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+	}
+
+	/**
+	 * reads replies and writes commands on the control connection.
+	 */
+	private class ControlHandler implements FtpEventLoop.Handler {
+		public void ready(SelectionKey key) throws IOException {
+			if (key.isConnectable()) {
+				control.finishConnect();
+				connected();
+				return;
+			}
+			if (key.isWritable())
+				flush();
+			if (key.isReadable()) {
+				readBuffer.clear();
+				int n = control.read(readBuffer);
+				if (n == -1)
+					throw new IOException("connection closed by FTP server");
+				readBuffer.flip();
+				parse(readBuffer);
+			}
+		}
+
+		public void failed(IOException e) {
+			fail(e);
+		}
+	}
+
+	private void connected() throws IOException {
+		controlKey.interestOps(SelectionKey.OP_READ);
+		flush();
+	}
+
+	/**
+	 * queues command and the handler of its reply and writes what the
+	 * connection takes.
+	 */
+	private void send(String command, ReplyHandler handler) throws IOException {
+		writes.add(CHARSET.encode(command + "\r\n"));
+		int space = command.indexOf(' ');
+		replies.add(new MeteredReply(Metrics.ftpCommand(space == -1 ? command
+				: command.substring(0, space)), handler));
+		if (control.isConnected())
+			flush();
+	}
+
+	private void flush() throws IOException {
+		while (!writes.isEmpty()) {
+			ByteBuffer head = writes.getFirst();
+			control.write(head);
+			if (head.hasRemaining()) {
+				controlKey.interestOps(SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+				return;
+			}
+			writes.removeFirst();
+		}
+		controlKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * splits the bytes read into lines and lines into replies.
+	 */
+	private void parse(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			char c = (char) (bytes.get() & 0xff);
+			if (c != '\n') {
+				if (c != '\r')
+					line.append(c);
+				continue;
+			}
+			String text = line.toString();
+			line.setLength(0);
+			if (multiline == null) {
+				if (text.length() < 3)
+					throw new IOException("invalid reply: " + text);
+				if (text.length() > 3 && text.charAt(3) == '-') {
+					multiline = text.substring(0, 3) + " ";
+					replyText.setLength(0);
+					replyText.append(text);
+					continue;
+				}
+				reply(text.substring(0, 3), text);
+			} else {
+				replyText.append('\n').append(text);
+				if (text.startsWith(multiline)) {
+					String code = multiline.substring(0, 3);
+					multiline = null;
+					reply(code, replyText.toString());
+				}
+			}
+			if (broken != null)
+				return;
+		}
+	}
+
+	/**
+	 * passes a complete reply to the handler of the oldest command.
+	 */
+	private void reply(String code, String text) throws IOException {
+		int value;
+		try {
+			value = Integer.parseInt(code);
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid reply: " + text);
+		}
+		ReplyHandler handler = replies.peek();
+		if (handler == null)
+			throw new IOException("unexpected reply: " + text);
+		if (handler.reply(value, text) && replies.peek() == handler)
+			replies.removeFirst();
+	}
+
+	/**
+	 * records a command from sending it until its final reply in the metrics
+	 * of the command. Commands are queued when sent, so the time includes
+	 * waiting for the replies of pipelined commands.
+	 */
+	private static class MeteredReply implements ReplyHandler {
+		private final StageMetrics metrics;
+		private final ReplyHandler handler;
+		private final long begin;
+		private boolean done = false;
+
+		MeteredReply(StageMetrics metrics, ReplyHandler handler) {
+			this.metrics = metrics;
+			this.handler = handler;
+			this.begin = metrics.begin();
+		}
+
+		public boolean reply(int code, String text) throws IOException {
+			boolean last;
+			try {
+				last = handler.reply(code, text);
+			} catch (IOException e) {
+				abandon();
+				throw e;
+			}
+			if (last && !done) {
+				done = true;
+				if (code >= 400)
+					metrics.fail(begin);
+				else
+					metrics.end(begin, 0);
+			}
+			return last;
+		}
+
+		void abandon() {
+			if (!done)
+				metrics.fail(begin);
+			done = true;
+		}
+	}
+
+	/**
+	 * an operation of the session with its result.
+	 */
+	private abstract class Operation {
+		final Result<?> future;
+
+		Operation(Result<?> future) {
+			this.future = future;
+		}
+
+		abstract void start() throws IOException;
+	}
+
+	/**
+	 * queues operation on the thread of the loop.
+	 */
+	private void start(final Operation operation) {
+		loop.execute(new FtpEventLoop.Task() {
+			public void run() {
+				if (broken != null) {
+					operation.future.fail(broken);
+					return;
+				}
+				operations.add(operation);
+				next();
+			}
+
+			public void failed(IOException e) {
+				operation.future.fail(e);
+				fail(e);
+			}
+		});
+	}
+
+	/**
+	 * starts the next operation unless one is running.
+	 */
+	private void next() {
+		if (current != null || operations.isEmpty())
+			return;
+		current = operations.removeFirst();
+		try {
+			current.start();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private <T> void complete(Result<T> result, T value) {
+		result.set(value);
+		current = null;
+		upload = null;
+		next();
+	}
+
+	/**
+	 * closes the session and fails all operations.
+	 */
+	private void fail(IOException e) {
+		if (broken != null)
+			return;
+		broken = e;
+		closeChannels();
+		if (current != null)
+			current.future.fail(e);
+		current = null;
+		for (Operation operation : operations)
+			operation.future.fail(e);
+		operations.clear();
+	}
+
+	private void closeChannels() {
+		if (upload != null)
+			upload.close();
+		upload = null;
+		try {
+			if (control != null)
+				control.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+		writes.clear();
+		for (ReplyHandler handler : replies)
+			if (handler instanceof MeteredReply)
+				((MeteredReply) handler).abandon();
+		replies.clear();
+	}
+
+	/**
+	 * the result of an operation, set on the thread of the loop.
+	 */
+	private static class Result<T> implements Future<T> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private T value;
+		private Exception exception;
+
+		void set(T value) {
+			this.value = value;
+			done.countDown();
+		}
+
+		void fail(Exception exception) {
+			if (done.getCount() == 0)
+				return;
+			this.exception = exception;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public T get() throws InterruptedException, ExecutionException {
+			done.await();
+			return value();
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return value();
+		}
+
+		private T value() throws ExecutionException {
+			if (exception != null)
+				throw new ExecutionException(exception);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class describes a file uploaded as chunks. The manifest is stored on
+ * the FTP-server next to the chunks as a text file:
+ * 
+ * <pre>
+ * dataXchanger chunk manifest 1
+ * size SIZE
+ * chunksize CHUNKSIZE
+ * CHUNKNAME
+ * ...
+ * </pre>
+ * 
+ * Chunk n holds the bytes from n * CHUNKSIZE of the file, all chunks but the
+ * last are CHUNKSIZE bytes long.
+ * 
+ * @author Kornelius Podranski
+ */
+public class ChunkManifest {
+	// first line of a manifest
+	public static final String HEADER = "dataXchanger chunk manifest 1";
+
+	private final long size;
+	private final long chunkSize;
+	private final List<String> chunks;
+
+	/**
+	 * 
+	 * @param size
+	 *            size of the whole file in bytes
+	 * @param chunkSize
+	 *            size of a chunk in bytes
+	 * @param chunks
+	 *            paths of the chunks on the FTP-server in order
+	 */
+	public ChunkManifest(long size, long chunkSize, List<String> chunks) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunk size must be positive");
+		if (chunks.size() != count(size, chunkSize))
+			throw new IllegalArgumentException("wrong number of chunks");
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunks = Collections.unmodifiableList(new ArrayList<String>(
+				chunks));
+	}
+
+	/**
+	 * Returns the number of chunks a file is split into.
+	 * 
+	 * @param size
+	 *            size of the file in bytes
+	 * @param chunkSize
+	 *            size of a chunk in bytes
+	 * @return number of chunks, at least 1
+	 */
+	public static int count(long size, long chunkSize) {
+		return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public List<String> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Returns the position of a chunk in the file.
+	 * 
+	 * @param chunk
+	 *            index of the chunk
+	 * @return offset of the first byte of the chunk
+	 */
+	public long getOffset(int chunk) {
+		return chunk * chunkSize;
+	}
+
+	/**
+	 * Returns the length of a chunk.
+	 * 
+	 * @param chunk
+	 *            index of the chunk
+	 * @return length of the chunk in bytes
+	 */
+	public long getLength(int chunk) {
+		return Math.min(chunkSize, size - getOffset(chunk));
+	}
+
+	/**
+	 * Writes this manifest to out. out is not closed.
+	 * 
+	 * @param out
+	 *            stream to write to
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		writer.write(HEADER + "\n");
+		writer.write("size " + size + "\n");
+		writer.write("chunksize " + chunkSize + "\n");
+		for (String chunk : chunks)
+			writer.write(chunk + "\n");
+		writer.flush();
+	}
+
+	/**
+	 * Reads a manifest written by write().
+	 * 
+	 * @param in
+	 *            stream to read from
+	 * @return the manifest
+	 * @throws IOException
+	 *             if in does not contain a valid manifest
+	 */
+	public static ChunkManifest read(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		if (!HEADER.equals(reader.readLine()))
+			throw new IOException("not a chunk manifest");
+		long size = parseLong(reader.readLine(), "size ");
+		long chunkSize = parseLong(reader.readLine(), "chunksize ");
+		List<String> chunks = new ArrayList<String>();
+		for (String line = reader.readLine(); line != null; line = reader
+				.readLine()) {
+			if (line.length() > 0)
+				chunks.add(line);
+		}
+		try {
+			return new ChunkManifest(size, chunkSize, chunks);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid chunk manifest: " + e.getMessage());
+		}
+	}
+
+	private static long parseLong(String line, String prefix)
+			throws IOException {
+		if (line == null || !line.startsWith(prefix))
+			throw new IOException("invalid chunk manifest: missing \""
+					+ prefix.trim() + "\"");
+		try {
+			return Long.parseLong(line.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid chunk manifest: " + line);
+		}
+	}
+}
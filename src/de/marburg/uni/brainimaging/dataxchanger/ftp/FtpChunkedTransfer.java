@@ -0,0 +1,444 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+
+/**
+ * This class transfers a file as chunks of a fixed size, which are stored as
+ * separate files on the FTP-server and transferred in parallel. A
+ * ChunkManifest listing the chunks is uploaded last, its path replaces the
+ * path of the file in the receiver configuration file. <br>
+ * Unlike resumed or segmented transfers this needs neither REST nor APPE:
+ * every chunk is a single STOR or RETR. A failed chunk is transferred again
+ * as a whole over a new session, up to CHUNKATTEMPTS times. If the upload
+ * fails, the chunks already on the FTP-server are deleted. <br>
+ * Transfers may share an executor (see newExecutor()), so concurrent uploads
+ * do not open a set of sessions each.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FtpChunkedTransfer {
+	// name of the transfer format as recorded in receiver configuration files
+	public static final String TRANSFER = "chunked";
+	// attempts to transfer a single chunk
+	public static final int CHUNKATTEMPTS = 3;
+
+	private final String address;
+	private final int port;
+	private final String username;
+	private final String password;
+	private final boolean active;
+	private final FtpSessionPool pool;
+	private final int threads;
+	// shared executor transferring the chunks, null for one per transfer
+	private final ExecutorService executor;
+
+	// stores exception on error during transfer
+	private Exception exception = null;
+	// stores the path of the uploaded manifest
+	private String result = null;
+
+	/**
+	 * 
+	 * @param address
+	 *            the doamin name or ip-address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 * @param active
+	 *            use active or passive ftp
+	 * @param pool
+	 *            the pool providing the sessions
+	 * @param threads
+	 *            number of chunks transferred in parallel
+	 */
+	public FtpChunkedTransfer(String address, int port, String username,
+			String password, boolean active, FtpSessionPool pool, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive");
+		this.address = address;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.active = active;
+		this.pool = pool;
+		this.threads = threads;
+		this.executor = null;
+	}
+
+	/**
+	 * Initializes this instance to transfer the chunks with a shared
+	 * executor.
+	 * 
+	 * @param address
+	 *            the doamin name or ip-address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 * @param active
+	 *            use active or passive ftp
+	 * @param pool
+	 *            the pool providing the sessions
+	 * @param executor
+	 *            executor transferring the chunks of all transfers sharing
+	 *            it, see newExecutor()
+	 */
+	public FtpChunkedTransfer(String address, int port, String username,
+			String password, boolean active, FtpSessionPool pool,
+			ExecutorService executor) {
+		this.address = address;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.active = active;
+		this.pool = pool;
+		this.threads = 1;
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates an executor to share between transfers. Its threads do not
+	 * keep the virtual machine alive.
+	 * 
+	 * @param threads
+	 *            number of chunks transferred in parallel by all transfers
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ftp-chunk");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Uploads source as chunks followed by the manifest. The path of the
+	 * manifest can be retrieved via getResult().
+	 * 
+	 * @param source
+	 *            data to upload
+	 * @param chunkSize
+	 *            size of a chunk in bytes
+	 * @return true on success, false otherwise. the exception can be
+	 *         retrieved via getException().
+	 */
+	public boolean upload(final SeekableSource source, long chunkSize) {
+		ExecutorService executor = this.executor != null ? this.executor
+				: Executors.newFixedThreadPool(threads);
+		List<String> names = new ArrayList<String>();
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		try {
+			final long size = source.length();
+			int count = ChunkManifest.count(size, chunkSize);
+			for (int i = 0; i < count; i++) {
+				final long offset = i * chunkSize;
+				final long length = Math.min(chunkSize, size - offset);
+				final String name = UniqueFilename.next();
+				names.add(name);
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return run(new SessionTask<String>() {
+							public String run(FtpClient client)
+									throws IOException {
+								// a new attempt overwrites the partial file
+								client.store(new Range(source, offset, length),
+										name + FtpClient.PARTSUFFIX);
+								return client.complete(name);
+							}
+						});
+					}
+				}));
+			}
+			List<String> chunks = new ArrayList<String>();
+			for (Future<String> chunk : results)
+				chunks.add(get(chunk));
+
+			ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+			new ChunkManifest(size, chunkSize, chunks).write(manifest);
+			final byte[] bytes = manifest.toByteArray();
+			result = run(new SessionTask<String>() {
+				public String run(FtpClient client) throws IOException {
+					return client.put(new ByteArrayInputStream(bytes));
+				}
+			});
+		} catch (Exception e) {
+			exception = e;
+			deleteChunks(names, results);
+			return false;
+		} finally {
+			if (executor != this.executor)
+				executor.shutdownNow();
+		}
+		return true;
+	}
+
+	/**
+	 * deletes the chunks of a failed upload, complete or partial. Chunks not
+	 * started yet are cancelled, running ones are waited for.
+	 */
+	private void deleteChunks(List<String> names,
+			List<Future<String>> results) {
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < results.size(); i++) {
+			Future<String> chunk = results.get(i);
+			if (chunk.cancel(false))
+				continue;
+			try {
+				paths.add(get(chunk));
+			} catch (Exception e) {
+				paths.add(names.get(i) + FtpClient.PARTSUFFIX);
+			}
+		}
+		if (paths.isEmpty())
+			return;
+		FtpClient client = null;
+		try {
+			client = pool.acquire(address, port, username, password, active);
+			for (String path : paths)
+				client.delete(path);
+			pool.release(client);
+		} catch (IOException e) {
+			// the chunks are left on the FTP-server
+			if (client != null)
+				pool.invalidate(client);
+		}
+	}
+
+	/**
+	 * Downloads the chunks listed in a manifest in parallel and writes each
+	 * to its position in file.
+	 * 
+	 * @param manifestPath
+	 *            the path of the manifest on the FTP-server
+	 * @param file
+	 *            the local file, created or overwritten
+	 * @return true on success, false otherwise. the exception can be
+	 *         retrieved via getException().
+	 */
+	public boolean download(final String manifestPath, File file) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		RandomAccessFile raf = null;
+		try {
+			byte[] bytes = run(new SessionTask<byte[]>() {
+				public byte[] run(FtpClient client) throws IOException {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					client.get(manifestPath, out);
+					return out.toByteArray();
+				}
+			});
+			final ChunkManifest manifest = ChunkManifest
+					.read(new ByteArrayInputStream(bytes));
+
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(manifest.getSize());
+			final FileChannel channel = raf.getChannel();
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < manifest.getChunks().size(); i++) {
+				final String chunk = manifest.getChunks().get(i);
+				final long offset = manifest.getOffset(i);
+				final long length = manifest.getLength(i);
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						return run(new SessionTask<Void>() {
+							public Void run(FtpClient client)
+									throws IOException {
+								client.retrieve(chunk, length, channel, offset);
+								return null;
+							}
+						});
+					}
+				}));
+			}
+			for (Future<Void> chunk : results)
+				get(chunk);
+			channel.force(false);
+			raf.close();
+			raf = null;
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		} finally {
+			executor.shutdownNow();
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the path of the manifest of the last upload.
+	 * 
+	 * @return the path of the manifest on the FTP-server
+	 */
+	public String getResult() {
+		return result;
+	}
+
+	/**
+	 * Returns the exception of the last transfer.
+	 * 
+	 * @return the exception or null if the transfer succeeded
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * an operation on a session.
+	 */
+	private interface SessionTask<T> {
+		T run(FtpClient client) throws IOException;
+	}
+
+	/**
+	 * runs task on a session from the pool, with a new session for every
+	 * attempt.
+	 */
+	private <T> T run(SessionTask<T> task) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			FtpClient client = pool.acquire(address, port, username, password,
+					active);
+			try {
+				T result = task.run(client);
+				pool.release(client);
+				return result;
+			} catch (IOException e) {
+				pool.invalidate(client);
+				if (attempt == CHUNKATTEMPTS)
+					throw e;
+			}
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause()
+					: e;
+		}
+	}
+
+	/**
+	 * a range of a SeekableSource.
+	 */
+	private static class Range implements SeekableSource {
+		private final SeekableSource source;
+		private final long offset;
+		private final long length;
+
+		Range(SeekableSource source, long offset, long length) {
+			this.source = source;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public long length() {
+			return length;
+		}
+
+		public InputStream open(long position) throws IOException {
+			return new BoundedInputStream(source.open(offset + position),
+					length - position);
+		}
+	}
+
+	/**
+	 * ends after a given number of bytes.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long remaining) {
+			super(in);
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b != -1)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n != -1)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
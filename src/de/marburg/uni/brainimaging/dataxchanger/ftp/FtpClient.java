@@ -19,16 +19,27 @@
 
 package de.marburg.uni.brainimaging.dataxchanger.ftp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPConnectionClosedException;
-import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
 
+import de.marburg.uni.brainimaging.dataxchanger.ChannelSource;
+import de.marburg.uni.brainimaging.dataxchanger.CountingOutputStream;
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+
 /**
  * This class provides a simple FTP client, which uploads files to or download
  * files from an FTP-Server.
@@ -37,12 +48,33 @@ import org.apache.commons.net.ftp.FTPReply;
  */
 public class FtpClient {
 
+	// suffix of files while they are uploaded
+	public static final String PARTSUFFIX = ".part";
+	// attempts to resume an interrupted transfer
+	public static final int RESUMEATTEMPTS = 3;
+	// size of the buffer for range downloads
+	public static final int BUFFERSIZE = 64 * 1024; // 64KB
+	// port in the reply to EPSV: (|||port|)
+	private static final Pattern EPSVREPLY = Pattern
+			.compile("\\(\\|\\|\\|(\\d+)\\|\\)");
+	// address and port in the reply to PASV: (h1,h2,h3,h4,p1,p2)
+	private static final Pattern PASVREPLY = Pattern
+			.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+
 	FTPClient ftp;
 	String address;
 	int port;
 	String username;
 	String password;
 	boolean active = false;
+	// session state, reset on connect so it is only sent once per session
+	private boolean binary = false;
+	private boolean modeSet = false;
+	// time of the last successful command (ms)
+	long lastUsed = 0;
+	// records the commands of the control connection
+	private final MeteredCommandListener commands =
+			new MeteredCommandListener();
 
 	/**
 	 * 
@@ -81,6 +113,7 @@ public class FtpClient {
 		this.username = username;
 		this.password = password;
 		ftp = new FTPClient();
+		ftp.addProtocolCommandListener(commands);
 		// ftp.addProtocolCommandListener(new PrintCommandListener(
 		// new PrintWriter(System.out), true)); // debugging
 	}
@@ -88,9 +121,10 @@ public class FtpClient {
 	/**
 	 * Try to open a connection to the FTP-Server and authenticate.
 	 * 
-	 * @throws IOException
+	 * @throws FtpConnectException
+	 *             if the server can not be reached or refuses the session
 	 */
-	public void connect() throws IOException {
+	public void connect() throws FtpConnectException {
 		try {
 			int reply;
 
@@ -113,6 +147,9 @@ public class FtpClient {
 				ftp.logout();
 				throw new IOException("FTP server did not accept credentials");
 			}
+			binary = false;
+			modeSet = false;
+			lastUsed = System.currentTimeMillis();
 		} catch (IOException e) {
 			if (ftp.isConnected()) {
 				try {
@@ -121,7 +158,7 @@ public class FtpClient {
 					// do nothing
 				}
 			}
-			throw new IOException("Could not connect to server");
+			throw new FtpConnectException("Could not connect to server", e);
 		}
 	}
 
@@ -146,8 +183,44 @@ public class FtpClient {
 	}
 
 	/**
-	 * Uploads in to the FTP-server's root directory. The filename will be the
-	 * next available number.
+	 * Closes the connection to the FTP-Server without logging out. Used for
+	 * broken sessions, errors are ignored.
+	 */
+	public void close() {
+		if (ftp.isConnected()) {
+			try {
+				ftp.disconnect();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+		commands.abandon();
+	}
+
+	/**
+	 * Checks that the session is connected and the control connection is
+	 * working.
+	 * 
+	 * @return true if the server answered a NOOP, false otherwise
+	 */
+	public boolean isAlive() {
+		if (!ftp.isConnected())
+			return false;
+		try {
+			if (!FTPReply.isPositiveCompletion(ftp.noop()))
+				return false;
+		} catch (IOException e) {
+			return false;
+		}
+		lastUsed = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Uploads in to the FTP-server's root directory. The filename will be a
+	 * new unique name (see UniqueFilename). The data is uploaded to the name
+	 * with PARTSUFFIX and renamed when complete, so the file never appears
+	 * partially written under its final name.
 	 * 
 	 * @param in
 	 *            data to be uploaded
@@ -158,14 +231,224 @@ public class FtpClient {
 	 */
 	public String put(InputStream in) throws FTPConnectionClosedException,
 			IOException {
-		String filename = nextFileNumber();
-		if (filename == null) {
-			throw new IOException("no free filenames available");
-		}
-		put(in, filename);
+		String filename = UniqueFilename.next();
+		put(in, filename + PARTSUFFIX);
+		return complete(filename);
+	}
+
+	/**
+	 * Uploads source like put(InputStream), resuming the upload if it is
+	 * interrupted.
+	 * 
+	 * @param source
+	 *            data to be uploaded
+	 * @return the path of the file on the FTP-Server
+	 * @throws IOException
+	 *             if the upload fails RESUMEATTEMPTS times
+	 */
+	public String put(SeekableSource source) throws IOException {
+		String filename = UniqueFilename.next();
+		put(source, filename + PARTSUFFIX);
+		return complete(filename);
+	}
+
+	/**
+	 * Renames the uploaded filename + PARTSUFFIX to filename. Most servers
+	 * overwrite an existing file on RNTO, so filename has to be unique (see
+	 * UniqueFilename).
+	 * 
+	 * @param filename
+	 *            the final name of the file
+	 * @return filename
+	 * @throws IOException
+	 *             if the file can not be renamed
+	 */
+	public String complete(String filename) throws IOException {
+		if (!ftp.rename(filename + PARTSUFFIX, filename))
+			throw new IOException("could not rename uploaded file: "
+					+ ftp.getReplyString());
+		lastUsed = System.currentTimeMillis();
 		return filename;
 	}
 
+	/**
+	 * Uploads source to path. If the transfer is interrupted, the session is
+	 * reopened, the size of the partial file is queried (SIZE) and the upload
+	 * continues from there (APPE). If the server does not report the size,
+	 * the upload starts over. Afterwards the size of the remote file is
+	 * checked. <br>
+	 * In passive mode a ChannelSource is written to the data connection
+	 * directly (see storeChannel()).
+	 * 
+	 * @param source
+	 *            data to be uploaded
+	 * @param path
+	 *            filename to create for data on the FTP-server.
+	 * @throws IOException
+	 *             if the upload fails RESUMEATTEMPTS times or the remote file
+	 *             has the wrong size
+	 */
+	public void put(SeekableSource source, String path) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			try {
+				if (!ftp.isConnected())
+					connect();
+				long offset = attempt == 0 ? 0 : remoteSize(path);
+				if (offset > source.length())
+					offset = -1;
+				if (!active && source instanceof ChannelSource) {
+					prepareTransfer();
+					storeChannel((ChannelSource) source, Math.max(offset, 0),
+							path);
+					break;
+				}
+				InputStream in = source.open(Math.max(offset, 0));
+				try {
+					prepareTransfer();
+					if (offset > 0)
+						ftp.appendFile(path, in); // resume upload
+					else
+						ftp.storeFile(path, in); // upload file
+					check(ftp);
+				} finally {
+					in.close();
+				}
+				break;
+			} catch (IOException e) {
+				close();
+				if (attempt == RESUMEATTEMPTS)
+					throw e;
+			}
+		}
+		long size = remoteSize(path);
+		if (size != -1 && size != source.length())
+			throw new IOException("uploaded file has " + size
+					+ " bytes instead of " + source.length());
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Uploads source to path in a single transfer (STOR). Unlike put(source,
+	 * path) an interrupted upload is neither resumed nor retried and the
+	 * partial file is left on the FTP-server.
+	 * 
+	 * @param source
+	 *            data to be uploaded
+	 * @param path
+	 *            filename to create for data on the FTP-server.
+	 * @throws IOException
+	 *             if the upload fails
+	 */
+	public void store(SeekableSource source, String path) throws IOException {
+		if (!ftp.isConnected())
+			throw new IOException("not connected");
+		prepareTransfer();
+		if (!active && source instanceof ChannelSource) {
+			storeChannel((ChannelSource) source, 0, path);
+		} else {
+			InputStream in = source.open(0);
+			try {
+				ftp.storeFile(path, in); // upload file
+				check(ftp);
+			} finally {
+				in.close();
+			}
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Deletes a file on the FTP-server.
+	 * 
+	 * @param path
+	 *            the path of the file on the FTP-server
+	 * @return true if the file was deleted, false if the server refused
+	 * @throws IOException
+	 */
+	public boolean delete(String path) throws IOException {
+		if (!ftp.isConnected())
+			throw new IOException("not connected");
+		boolean deleted = ftp.deleteFile(path);
+		lastUsed = System.currentTimeMillis();
+		return deleted;
+	}
+
+	/**
+	 * uploads source from offset to path (STOR, or APPE if offset is not 0)
+	 * over a passive data connection opened as a SocketChannel. The source
+	 * writes to the channel itself, e.g. with FileChannel.transferTo().
+	 */
+	private void storeChannel(ChannelSource source, long offset, String path)
+			throws IOException {
+		SocketChannel data = openDataChannel();
+		try {
+			int reply = ftp.sendCommand(offset > 0 ? "APPE" : "STOR", path);
+			if (!FTPReply.isPositivePreliminary(reply))
+				throw new IOException(ftp.getReplyString());
+			long length = source.length();
+			while (offset < length) {
+				long n = source.transferTo(offset, length - offset, data);
+				if (n <= 0)
+					throw new EOFException("source ended at " + offset
+							+ " of " + length + " bytes");
+				offset += n;
+			}
+		} finally {
+			data.close();
+		}
+		if (!ftp.completePendingCommand())
+			throw new IOException(ftp.getReplyString());
+	}
+
+	/**
+	 * opens a passive data connection (EPSV, or PASV if the server does not
+	 * support EPSV).
+	 */
+	private SocketChannel openDataChannel() throws IOException {
+		InetAddress host = ftp.getRemoteAddress();
+		int port;
+		if (FTPReply.isPositiveCompletion(ftp.epsv())) {
+			Matcher m = EPSVREPLY.matcher(ftp.getReplyString());
+			if (!m.find())
+				throw new IOException("can not parse EPSV reply: "
+						+ ftp.getReplyString());
+			port = Integer.parseInt(m.group(1));
+		} else if (FTPReply.isPositiveCompletion(ftp.pasv())) {
+			Matcher m = PASVREPLY.matcher(ftp.getReplyString());
+			if (!m.find())
+				throw new IOException("can not parse PASV reply: "
+						+ ftp.getReplyString());
+			host = InetAddress.getByName(m.group(1) + "." + m.group(2) + "."
+					+ m.group(3) + "." + m.group(4));
+			port = Integer.parseInt(m.group(5)) << 8
+					| Integer.parseInt(m.group(6));
+		} else {
+			throw new IOException("passive mode refused: "
+					+ ftp.getReplyString());
+		}
+		return SocketChannel.open(new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Queries the size of a file on the FTP-server.
+	 * 
+	 * @param path
+	 *            the path of the file on the FTP-server
+	 * @return the size in bytes or -1 if the server does not report it
+	 * @throws IOException
+	 */
+	public long remoteSize(String path) throws IOException {
+		prepareTransfer(); // SIZE depends on the transfer type
+		String size = ftp.getSize(path);
+		if (size == null)
+			return -1;
+		try {
+			return Long.parseLong(size.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	/**
 	 * 
 	 * @param in
@@ -179,28 +462,20 @@ public class FtpClient {
 	public void put(InputStream in, String path)
 			throws FTPConnectionClosedException, IOException {
 		if (ftp.isConnected()) {
-			ftp.noop(); // check that control connection is working OK
-			check(ftp);
-			ftp.setFileType(FTP.BINARY_FILE_TYPE); // set binary transfer mode
-			check(ftp);
-			if (active) {
-				ftp.enterLocalActiveMode(); // set active mode
-				check(ftp);
-			} else {
-				ftp.enterLocalPassiveMode(); // set passive mode
-				check(ftp);
-				ftp.setUseEPSVwithIPv4(true); // set passive mode
-				check(ftp);
-			}
+			prepareTransfer();
 			ftp.storeFile(path, in); // upload file
 			check(ftp);
+			lastUsed = System.currentTimeMillis();
 		} else {
 			throw new IOException("not connected");
 		}
 	}
 
 	/**
-	 * Downloads a file from the FTP-Server and wites it to out.
+	 * Downloads a file from the FTP-Server and wites it to out. If the
+	 * transfer is interrupted, the session is reopened and the download
+	 * continues behind the bytes already written to out (REST). Afterwards the
+	 * number of bytes is checked against the size of the remote file.
 	 * 
 	 * @param path
 	 *            the path (on the FTP-server) of the file to download
@@ -212,77 +487,197 @@ public class FtpClient {
 	 */
 	public void get(String path, OutputStream out)
 			throws FTPConnectionClosedException, IOException {
-		if (ftp.isConnected()) {
-			ftp.noop(); // check that control connection is working OK
-			check(ftp);
-			ftp.setFileType(FTP.BINARY_FILE_TYPE); // set binary transfer mode
-			check(ftp);
-			if (active) {
-				ftp.enterLocalActiveMode(); // set active mode
-				check(ftp);
-			} else {
-				ftp.enterLocalPassiveMode(); // set passive mode
-				check(ftp);
-				ftp.setUseEPSVwithIPv4(true); // set passive mode
+		if (!ftp.isConnected())
+			throw new IOException("not connected");
+		CountingOutputStream cOut = new CountingOutputStream(out);
+		long size = -1;
+		for (int attempt = 0;; attempt++) {
+			try {
+				if (!ftp.isConnected())
+					connect();
+				if (attempt == 0)
+					size = remoteSize(path);
+				prepareTransfer();
+				ftp.setRestartOffset(cOut.getCount()); // resume download
+				ftp.retrieveFile(path, cOut); // download file
 				check(ftp);
+				break;
+			} catch (IOException e) {
+				close();
+				// without the size a resumed download can not be verified
+				if (attempt == RESUMEATTEMPTS || size == -1)
+					throw e;
 			}
-			ftp.retrieveFile(path, out); // download file
-			check(ftp);
-		} else {
-			throw new IOException("not connected");
 		}
+		if (size != -1 && cOut.getCount() != size)
+			throw new IOException("downloaded " + cOut.getCount()
+					+ " bytes instead of " + size);
+		lastUsed = System.currentTimeMillis();
 	}
 
 	/**
-	 * this method tries to find filenames in the form of a positive (long)
-	 * number in the current directory of the ftp-server and tries to determine
-	 * the next free "number". this number might be greater or less than the
-	 * existing filenames, but alway in the range 0 to Long.MAX_VALUE. <br>
-	 * If no free Number is found null will be returned. <br>
-	 * The FTPClient must be connected before calling this method!
+	 * Downloads a range of a file from the FTP-Server (REST) and writes it to
+	 * the same position of channel. The transfer is stopped at the end of the
+	 * range. An interrupted transfer is resumed behind the bytes already
+	 * written. <br>
+	 * channel is written with positional writes only, so several ranges of one
+	 * file may be downloaded into the same channel concurrently.
 	 * 
-	 * @return the next free filename
+	 * @param path
+	 *            the path (on the FTP-server) of the file to download
+	 * @param offset
+	 *            position of the first byte of the range
+	 * @param length
+	 *            length of the range in bytes
+	 * @param channel
+	 *            channel the range is written to at offset
 	 * @throws IOException
-	 *             see FTPClient.listFiles() or if not connected
+	 *             if the download fails RESUMEATTEMPTS times
 	 */
-	// caching of the numbers would be nice but is not applicable if the ftp
-	// server can be used concurrent
-	private String nextFileNumber() throws IOException {
-		long min = Long.MAX_VALUE;
-		long max = -1L;
-		if (ftp.isConnected()) {
-			if (active) {
-				ftp.enterLocalActiveMode(); // set active mode
-				check(ftp);
-			} else {
-				ftp.enterLocalPassiveMode(); // set passive mode
-				check(ftp);
-				ftp.setUseEPSVwithIPv4(true); // set passive mode
-				check(ftp);
-			}
-			for (FTPFile f : ftp.listFiles(null)) {
+	public void get(String path, long offset, long length, FileChannel channel)
+			throws IOException {
+		get(path, offset, length, channel, offset);
+	}
+
+	/**
+	 * Downloads a range of a file from the FTP-Server like get(path, offset,
+	 * length, channel), but writes it to position of channel.
+	 * 
+	 * @param path
+	 *            the path (on the FTP-server) of the file to download
+	 * @param offset
+	 *            position of the first byte of the range in the remote file
+	 * @param length
+	 *            length of the range in bytes
+	 * @param channel
+	 *            channel the range is written to
+	 * @param position
+	 *            position in channel the range is written to
+	 * @throws IOException
+	 *             if the download fails RESUMEATTEMPTS times
+	 */
+	public void get(String path, long offset, long length,
+			FileChannel channel, long position) throws IOException {
+		byte[] buffer = new byte[BUFFERSIZE];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long done = 0;
+		for (int attempt = 0;; attempt++) {
+			try {
+				if (!ftp.isConnected())
+					connect();
+				prepareTransfer();
+				ftp.setRestartOffset(offset + done);
+				InputStream in = ftp.retrieveFileStream(path);
+				if (in == null) {
+					check(ftp);
+					throw new IOException(ftp.getReplyString());
+				}
 				try {
-					long i = Long.parseLong(f.getName());
-					max = i > max ? i : max;
-					min = i < min && i >= 0 ? i : min;
-				} catch (NumberFormatException e) {
-					// do nothing
+					while (done < length) {
+						int n = in.read(buffer, 0,
+								(int) Math.min(buffer.length, length - done));
+						if (n == -1)
+							throw new EOFException("range of \"" + path
+									+ "\" truncated");
+						bb.clear();
+						bb.limit(n);
+						while (bb.hasRemaining())
+							channel.write(bb, position + done + bb.position());
+						done += n;
+					}
+				} finally {
+					in.close();
 				}
+				// the reply may report the transfer stopped before the end of
+				// the file, which is intended
+				ftp.completePendingCommand();
+				break;
+			} catch (IOException e) {
+				close();
+				if (attempt == RESUMEATTEMPTS)
+					throw e;
 			}
-		} else {
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Downloads a whole file from the FTP-server in a single transfer (RETR)
+	 * and writes it to position of channel. Unlike the range get() an
+	 * interrupted download is neither resumed nor retried.
+	 * 
+	 * @param path
+	 *            the path (on the FTP-server) of the file to download
+	 * @param length
+	 *            the expected length of the file in bytes
+	 * @param channel
+	 *            channel the file is written to
+	 * @param position
+	 *            position in channel the file is written to
+	 * @throws IOException
+	 *             if the download fails or the file is not length bytes long
+	 */
+	public void retrieve(String path, long length, FileChannel channel,
+			long position) throws IOException {
+		if (!ftp.isConnected())
 			throw new IOException("not connected");
+		prepareTransfer();
+		InputStream in = ftp.retrieveFileStream(path);
+		if (in == null) {
+			check(ftp);
+			throw new IOException(ftp.getReplyString());
+		}
+		byte[] buffer = new byte[BUFFERSIZE];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long done = 0;
+		try {
+			for (int n; (n = in.read(buffer)) != -1; done += n) {
+				if (done + n > length)
+					throw new IOException("\"" + path + "\" is longer than "
+							+ length + " bytes");
+				bb.clear();
+				bb.limit(n);
+				while (bb.hasRemaining())
+					channel.write(bb, position + done + bb.position());
+			}
+		} finally {
+			in.close();
+		}
+		if (!ftp.completePendingCommand())
+			throw new IOException(ftp.getReplyString());
+		if (done != length)
+			throw new EOFException("\"" + path + "\" truncated at " + done
+					+ " of " + length + " bytes");
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * sets binary transfer mode and the data connection mode unless they are
+	 * already set in this session. The control connection is not checked
+	 * with NOOP, a broken connection shows in the transfer command.
+	 */
+	private void prepareTransfer() throws IOException {
+		if (!binary) {
+			ftp.setFileType(FTP.BINARY_FILE_TYPE); // set binary transfer mode
+			check(ftp);
+			binary = true;
+		}
+		setMode();
+	}
+
+	/**
+	 * sets active or passive mode unless it is already set in this session.
+	 */
+	private void setMode() throws IOException {
+		if (modeSet)
+			return;
+		if (active) {
+			ftp.enterLocalActiveMode(); // set active mode
+		} else {
+			ftp.enterLocalPassiveMode(); // set passive mode
+			ftp.setUseEPSVwithIPv4(true); // set passive mode
 		}
-		// first fill small numbers
-		if (min < Long.MAX_VALUE && min > 0)
-			return Long.toString(min - 1);
-		// then fill big numbers
-		if (max >= 0 && max < Long.MAX_VALUE)
-			return Long.toString(max + 1);
-		// maybe there is no number filename yet, then start with 0
-		if (max == -1 && min == Long.MAX_VALUE)
-			return "0";
-		// if we reach here all is filled up or something else went wrong
-		return null;
+		modeSet = true;
 	}
 
 	/**
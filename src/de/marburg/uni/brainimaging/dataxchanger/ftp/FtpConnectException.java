@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown if a session to the FTP-server can not be opened,
+ * e.g. because the server refuses connections or logins.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FtpConnectException extends IOException {
+	// UID for Serializable interface
+	private static final long serialVersionUID = 1L;
+
+	public FtpConnectException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
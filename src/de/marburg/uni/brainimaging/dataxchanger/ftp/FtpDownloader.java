@@ -36,6 +36,8 @@ public class FtpDownloader extends FtpClient implements StreamProcessor<Void> {
 	private Exception exception = null;
 	// the path of the file to retrieve
 	private String path;
+	// provides sessions, null to connect for every file
+	private FtpSessionPool pool = null;
 
 	public FtpDownloader(String address, int port, String username,
 			String password, boolean active, String path) {
@@ -43,6 +45,19 @@ public class FtpDownloader extends FtpClient implements StreamProcessor<Void> {
 		this.path = path;
 	}
 
+	/**
+	 * Initializes this instance taking its session from a pool instead of
+	 * connecting for every file.
+	 * 
+	 * @param pool
+	 *            the pool providing the session
+	 */
+	public FtpDownloader(String address, int port, String username,
+			String password, boolean active, String path, FtpSessionPool pool) {
+		this(address, port, username, password, active, path);
+		this.pool = pool;
+	}
+
 	/**
 	 * Downloads the file defined on initialisation from a FTP-server and
 	 * streams it to out. <br>
@@ -50,6 +65,8 @@ public class FtpDownloader extends FtpClient implements StreamProcessor<Void> {
 	 * {@inheritDoc}
 	 */
 	public boolean process(InputStream in, OutputStream out) {
+		if (pool != null)
+			return processPooled(in, out);
 		try {
 			connect();
 			get(path, out);
@@ -61,6 +78,28 @@ public class FtpDownloader extends FtpClient implements StreamProcessor<Void> {
 		return true;
 	}
 
+	/**
+	 * transfers using a session from the pool.
+	 */
+	private boolean processPooled(InputStream in, OutputStream out) {
+		FtpClient client;
+		try {
+			client = pool.acquire(address, port, username, password, active);
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		}
+		try {
+			client.get(path, out);
+		} catch (Exception e) {
+			pool.invalidate(client);
+			exception = e;
+			return false;
+		}
+		pool.release(client);
+		return true;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class runs a selector on its own thread, which serves the control and
+ * data connections of many AsyncFtpClients. A few loops are enough for
+ * hundreds of sessions, sessions can be spread over several loops to use
+ * more cores. <br>
+ * Channels and their handlers are only touched on the thread of the loop,
+ * other threads pass work to it with execute(). Work that may block, like
+ * reading and encrypting the data of an upload, runs on reader threads, so
+ * it never stalls the other sessions of the loop. <br>
+ * An exception thrown by a task or a handler fails only that task or the
+ * handler of the channel, the loop keeps running. Tasks still queued when
+ * the loop stops are failed instead of run.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FtpEventLoop implements Runnable {
+
+	/**
+	 * is called on the thread of the loop when its channel is ready.
+	 */
+	interface Handler {
+		void ready(SelectionKey key) throws IOException;
+
+		void failed(IOException e);
+	}
+
+	/**
+	 * work passed with execute() which has to learn if it is not run to its
+	 * end. failed() is called on the thread of the loop.
+	 */
+	interface Task extends Runnable {
+		void failed(IOException e);
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	// run the blocking reads of the sources of uploads
+	private final ExecutorService readers;
+	// work passed from other threads
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens the selector and starts the thread of the loop with a reader
+	 * thread per processor.
+	 * 
+	 * @throws IOException
+	 *             if the selector can not be opened
+	 */
+	public FtpEventLoop() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Opens the selector and starts the thread of the loop.
+	 * 
+	 * @param readers
+	 *            number of threads reading the data of uploads
+	 * @throws IOException
+	 *             if the selector can not be opened
+	 */
+	public FtpEventLoop(int readers) throws IOException {
+		if (readers < 1)
+			throw new IllegalArgumentException("readers must be positive");
+		this.readers = Executors.newFixedThreadPool(readers,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ftp-reader");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		selector = Selector.open();
+		thread = new Thread(this, "ftp-event-loop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs task on the thread of the loop.
+	 * 
+	 * @param task
+	 *            the work to do
+	 * @throws IllegalStateException
+	 *             if the loop has been closed
+	 */
+	public void execute(Runnable task) {
+		// the loop drains the queue under the same lock when it stops
+		synchronized (tasks) {
+			if (closed)
+				throw new IllegalStateException("event loop closed");
+			tasks.add(task);
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * runs task, which may block, on a reader thread. Results are passed
+	 * back to the loop with execute().
+	 */
+	void read(Runnable task) {
+		readers.execute(task);
+	}
+
+	/**
+	 * registers channel with the selector. Must be called on the thread of
+	 * the loop.
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+			throws IOException {
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * Stops the loop. All channels still registered are closed and their
+	 * handlers fail, as do the tasks not run yet.
+	 */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		readers.shutdown();
+	}
+
+	/**
+	 * the loop, runs on the thread started by the constructor.
+	 */
+	public void run() {
+		while (!closed) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				break;
+			}
+			// tasks left when the loop is closed are failed below
+			for (Runnable task; !closed && (task = tasks.poll()) != null;) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					fail(task, new IOException(e.toString(), e));
+				}
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Handler handler = (Handler) key.attachment();
+				try {
+					if (key.isValid())
+						handler.ready(key);
+				} catch (IOException e) {
+					key.cancel();
+					handler.failed(e);
+				} catch (RuntimeException e) {
+					// e.g. a key cancelled by the failure of its session
+					key.cancel();
+					handler.failed(new IOException(e.toString(), e));
+				}
+			}
+		}
+		IOException e = new IOException("event loop closed");
+		synchronized (tasks) {
+			// also if the selector failed, execute() takes no more tasks
+			closed = true;
+			for (Runnable task : tasks)
+				fail(task, e);
+			tasks.clear();
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException f) {
+				// do nothing
+			}
+			((Handler) key.attachment()).failed(e);
+		}
+		try {
+			selector.close();
+		} catch (IOException f) {
+			// do nothing
+		}
+	}
+
+	/**
+	 * fails task if it can be failed.
+	 */
+	private static void fail(Runnable task, IOException e) {
+		if (task instanceof Task)
+			((Task) task).failed(e);
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class downloads a file from an FTP-server in segments over several
+ * sessions in parallel. Each segment is fetched from its offset (REST) and
+ * written to its position in a preallocated local file, so a single
+ * window-limited data connection does not bound the throughput. <br>
+ * Files smaller than two segments of MINSEGMENTSIZE are downloaded over one
+ * session.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FtpSegmentedDownloader {
+	// minimal size of a segment
+	public static final long MINSEGMENTSIZE = 8 * 1024 * 1024; // 8MB
+
+	private final String address;
+	private final int port;
+	private final String username;
+	private final String password;
+	private final boolean active;
+	private final String path;
+	private final FtpSessionPool pool;
+	private final int segments;
+
+	// stores exception on error during download
+	private Exception exception = null;
+
+	/**
+	 * 
+	 * @param address
+	 *            the doamin name or ip-address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 * @param active
+	 *            use active or passive ftp
+	 * @param path
+	 *            the path of the file to retrieve
+	 * @param pool
+	 *            the pool providing the sessions
+	 * @param segments
+	 *            maximum number of segments downloaded in parallel
+	 */
+	public FtpSegmentedDownloader(String address, int port, String username,
+			String password, boolean active, String path, FtpSessionPool pool,
+			int segments) {
+		if (segments < 1)
+			throw new IllegalArgumentException("segments must be positive");
+		this.address = address;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.active = active;
+		this.path = path;
+		this.pool = pool;
+		this.segments = segments;
+	}
+
+	/**
+	 * Downloads the file defined on initialisation to file.
+	 * 
+	 * @param file
+	 *            the local file, created or overwritten
+	 * @return true on success, false otherwise. the exception can be
+	 *         retrieved via getException().
+	 */
+	public boolean download(File file) {
+		RandomAccessFile raf = null;
+		ExecutorService executor = null;
+		try {
+			long size;
+			FtpClient client = pool.acquire(address, port, username, password,
+					active);
+			try {
+				size = client.remoteSize(path);
+			} catch (IOException e) {
+				pool.invalidate(client);
+				throw e;
+			}
+			pool.release(client);
+			if (size == -1)
+				throw new IOException("FTP server does not report the size "
+						+ "of \"" + path + "\"");
+
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size);
+			final FileChannel channel = raf.getChannel();
+			int count = (int) Math.max(1,
+					Math.min(segments, size / MINSEGMENTSIZE));
+			long segmentSize = (size + count - 1) / count;
+			executor = Executors.newFixedThreadPool(count);
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (long offset = 0; offset < size; offset += segmentSize) {
+				final long start = offset;
+				final long length = Math.min(segmentSize, size - offset);
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						downloadSegment(start, length, channel);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e
+							.getCause() : e;
+				}
+			}
+			channel.force(false);
+			raf.close();
+			raf = null;
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * downloads one segment using a session from the pool.
+	 */
+	private void downloadSegment(long offset, long length, FileChannel channel)
+			throws IOException {
+		FtpClient client = pool.acquire(address, port, username, password,
+				active);
+		try {
+			client.get(path, offset, length, channel);
+		} catch (IOException e) {
+			pool.invalidate(client);
+			throw e;
+		}
+		pool.release(client);
+	}
+
+	/**
+	 * Returns the exception of the last download.
+	 * 
+	 * @return the exception or null if the download succeeded
+	 */
+	public Exception getException() {
+		return exception;
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps logged-in FTP sessions open across files. Sessions are
+ * pooled by server, port, username and mode. A session idle for longer than
+ * the check interval is checked with NOOP before it is handed out again,
+ * broken sessions are dropped and replaced by new ones. <br>
+ * Sessions must be given back with release() after a successful transfer or
+ * with invalidate() after an error. The pool may be used by several threads.
+ * The number of sessions open at the same time can be capped per server, so
+ * parallel transfers respect the connection limits of the server.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FtpSessionPool {
+	// idle time after which a session is checked before reuse
+	public static final long CHECKINTERVAL = 10000; // ms
+	// maximum number of idle sessions kept per server
+	public static final int MAXIDLE = 8;
+
+	// idle sessions, most recently used last
+	private final Map<String, LinkedList<FtpClient>> idle = new HashMap<String, LinkedList<FtpClient>>();
+	// sessions open per server, idle or in use
+	private final Map<String, Integer> open = new HashMap<String, Integer>();
+	private final long checkInterval;
+	// maximum number of open sessions per server, 0 for no limit
+	private int maxSessions = 0;
+	private boolean closed = false;
+
+	/**
+	 * 
+	 * @param checkInterval
+	 *            idle time in milliseconds after which a session is checked
+	 *            before reuse
+	 */
+	public FtpSessionPool(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Initializes this instance using the default check interval.
+	 */
+	public FtpSessionPool() {
+		this(CHECKINTERVAL);
+	}
+
+	/**
+	 * Caps the number of sessions open to one server at the same time.
+	 * acquire() blocks while the cap is reached.
+	 * 
+	 * @param maxSessions
+	 *            maximum number of open sessions per server, 0 for no limit
+	 */
+	public synchronized void setMaxSessions(int maxSessions) {
+		if (maxSessions < 0)
+			throw new IllegalArgumentException(
+					"maxSessions must not be negative");
+		this.maxSessions = maxSessions;
+		notifyAll();
+	}
+
+	/**
+	 * Returns a logged-in session, reusing an idle one if possible. Blocks
+	 * while the cap of open sessions to the server is reached and no session
+	 * is idle.
+	 * 
+	 * @param address
+	 *            the doamin name or ip-address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 * @param active
+	 *            use active or passive ftp
+	 * @return a connected session
+	 * @throws IOException
+	 *             if a new session can not be opened or the thread is
+	 *             interrupted while waiting
+	 */
+	public FtpClient acquire(String address, int port, String username,
+			String password, boolean active) throws IOException {
+		String key = key(address, port, username, active);
+		while (true) {
+			FtpClient client;
+			synchronized (this) {
+				while (true) {
+					if (closed)
+						throw new IOException("session pool closed");
+					LinkedList<FtpClient> sessions = idle.get(key);
+					client = sessions == null ? null : sessions.pollLast();
+					if (client != null)
+						break;
+					if (maxSessions == 0 || count(key) < maxSessions) {
+						// reserve a slot for a new session
+						open.put(key, count(key) + 1);
+						break;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("interrupted waiting for session");
+					}
+				}
+			}
+			if (client == null)
+				break;
+			if (System.currentTimeMillis() - client.lastUsed < checkInterval
+					|| client.isAlive())
+				return client;
+			client.close();
+			closed(key);
+		}
+		FtpClient client = new FtpClient(address, port, username, password,
+				active);
+		try {
+			client.connect();
+		} catch (IOException e) {
+			closed(key);
+			throw e;
+		}
+		return client;
+	}
+
+	/**
+	 * Gives a working session back to the pool.
+	 * 
+	 * @param client
+	 *            a session returned by acquire()
+	 */
+	public void release(FtpClient client) {
+		synchronized (this) {
+			if (!closed) {
+				String key = key(client);
+				LinkedList<FtpClient> sessions = idle.get(key);
+				if (sessions == null) {
+					sessions = new LinkedList<FtpClient>();
+					idle.put(key, sessions);
+				}
+				if (sessions.size() < MAXIDLE) {
+					sessions.addLast(client);
+					// wake a thread waiting for a session
+					notifyAll();
+					return;
+				}
+			}
+		}
+		logout(client);
+		closed(key(client));
+	}
+
+	/**
+	 * Drops a session after an error.
+	 * 
+	 * @param client
+	 *            a session returned by acquire()
+	 */
+	public void invalidate(FtpClient client) {
+		client.close();
+		closed(key(client));
+	}
+
+	/**
+	 * Logs out all idle sessions. Sessions released afterwards are logged out
+	 * immediately.
+	 */
+	public void close() {
+		List<FtpClient> sessions = new ArrayList<FtpClient>();
+		synchronized (this) {
+			closed = true;
+			for (LinkedList<FtpClient> l : idle.values())
+				sessions.addAll(l);
+			idle.clear();
+			notifyAll();
+		}
+		for (FtpClient client : sessions)
+			logout(client);
+	}
+
+	/**
+	 * counts a session as closed and wakes threads waiting for a slot.
+	 */
+	private synchronized void closed(String key) {
+		int n = count(key) - 1;
+		if (n > 0)
+			open.put(key, n);
+		else
+			open.remove(key);
+		notifyAll();
+	}
+
+	private int count(String key) {
+		Integer n = open.get(key);
+		return n == null ? 0 : n;
+	}
+
+	private static void logout(FtpClient client) {
+		try {
+			client.disconnect();
+		} catch (IOException e) {
+			// do nothing
+		}
+		client.close();
+	}
+
+	private static String key(FtpClient client) {
+		return key(client.address, client.port, client.username, client.active);
+	}
+
+	private static String key(String address, int port, String username,
+			boolean active) {
+		return address + ":" + port + ":" + username + ":" + active;
+	}
+}
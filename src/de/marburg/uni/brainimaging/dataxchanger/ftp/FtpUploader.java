@@ -22,6 +22,7 @@ package de.marburg.uni.brainimaging.dataxchanger.ftp;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
 import de.marburg.uni.brainimaging.dataxchanger.StreamProcessor;
 
 /**
@@ -36,12 +37,27 @@ public class FtpUploader extends FtpClient implements StreamProcessor<String> {
 	private Exception exception = null;
 	// stores result of put()
 	private String result = null;
+	// provides sessions, null to connect for every file
+	private FtpSessionPool pool = null;
 
 	public FtpUploader(String address, int port, String username,
 			String password, boolean active) {
 		super(address, port, username, password, active);
 	}
 
+	/**
+	 * Initializes this instance taking its session from a pool instead of
+	 * connecting for every file.
+	 * 
+	 * @param pool
+	 *            the pool providing the session
+	 */
+	public FtpUploader(String address, int port, String username,
+			String password, boolean active, FtpSessionPool pool) {
+		this(address, port, username, password, active);
+		this.pool = pool;
+	}
+
 	/**
 	 * Uploads a stream to an FTP-server. after upload the file-path on the
 	 * server can be retrieved via getResult(). <br>
@@ -49,6 +65,8 @@ public class FtpUploader extends FtpClient implements StreamProcessor<String> {
 	 * {@inheritDoc}
 	 */
 	public boolean process(InputStream in, OutputStream out) {
+		if (pool != null)
+			return processPooled(in, out);
 		try {
 			connect();
 			result = put(in);
@@ -60,6 +78,67 @@ public class FtpUploader extends FtpClient implements StreamProcessor<String> {
 		return true;
 	}
 
+	/**
+	 * transfers using a session from the pool.
+	 */
+	private boolean processPooled(InputStream in, OutputStream out) {
+		FtpClient client;
+		try {
+			client = pool.acquire(address, port, username, password, active);
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		}
+		try {
+			result = client.put(in);
+		} catch (Exception e) {
+			pool.invalidate(client);
+			exception = e;
+			return false;
+		}
+		pool.release(client);
+		return true;
+	}
+
+	/**
+	 * Uploads source to an FTP-server like process(), but resumes the upload
+	 * if it is interrupted (see FtpClient.put(SeekableSource)). After upload
+	 * the file-path on the server can be retrieved via getResult().
+	 * 
+	 * @param source
+	 *            data to be uploaded
+	 * @return true on success, false otherwise. the exception can be
+	 *         retrieved via getException().
+	 */
+	public boolean process(SeekableSource source) {
+		FtpClient client = this;
+		try {
+			if (pool != null)
+				client = pool.acquire(address, port, username, password,
+						active);
+			else
+				connect();
+		} catch (Exception e) {
+			exception = e;
+			return false;
+		}
+		try {
+			result = client.put(source);
+			if (pool == null)
+				disconnect();
+		} catch (Exception e) {
+			if (pool != null)
+				pool.invalidate(client);
+			else
+				close();
+			exception = e;
+			return false;
+		}
+		if (pool != null)
+			pool.release(client);
+		return true;
+	}
+
 	/**
 	 * returns the path of the created file on the server. <br>
 	 * {@inheritDoc}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
+
+import de.marburg.uni.brainimaging.dataxchanger.metrics.Metrics;
+import de.marburg.uni.brainimaging.dataxchanger.metrics.StageMetrics;
+
+/**
+ * This class records the FTP-commands of one control connection in the
+ * metrics of the command (see Metrics.ftpCommand()). A command lasts from
+ * sending it until its final reply, i.e. preliminary 1xx replies are
+ * skipped. 4xx and 5xx replies count as errors.
+ * 
+ * @author Kornelius Podranski
+ */
+class MeteredCommandListener implements ProtocolCommandListener {
+
+	// the command waiting for its final reply or null
+	private StageMetrics pending = null;
+	private long begin;
+
+	public void commandSent(ProtocolCommandEvent event) {
+		// the reply of an earlier command got lost, e.g. on a timeout
+		abandon();
+		pending = Metrics.ftpCommand(event.getCommand());
+		begin = pending.begin();
+	}
+
+	public void replyReceived(ProtocolCommandEvent event) {
+		int code = event.getReplyCode();
+		// no command for the greeting of the server
+		if (pending == null || code < 200)
+			return;
+		if (code >= 400)
+			pending.fail(begin);
+		else
+			pending.end(begin, 0);
+		pending = null;
+	}
+
+	/**
+	 * counts a command still waiting for its reply as failed, called when
+	 * the connection is closed.
+	 */
+	void abandon() {
+		if (pending != null)
+			pending.fail(begin);
+		pending = null;
+	}
+}
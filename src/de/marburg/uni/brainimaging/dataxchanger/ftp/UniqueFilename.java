@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.ftp;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class creates filenames for the FTP-server which are unique without
+ * looking at the files already on the server. A name consists of the current
+ * time, a random node id chosen once per process and a counter:
+ * TTTTTTTTTTTT-NNNNNNNNNNNN-CCCCCCCC (hexadecimal). Names sort by the time
+ * of their creation. Concurrent senders pick different node ids with
+ * overwhelming probability, the counter keeps the names of one process
+ * apart.
+ * 
+ * @author Kornelius Podranski
+ */
+public class UniqueFilename {
+	// random node id of this process (48 bit)
+	private static final long NODE = new SecureRandom().nextLong()
+			& 0xffffffffffffL;
+	private static final AtomicLong COUNTER = new AtomicLong();
+
+	/**
+	 * Returns a new unique filename.
+	 * 
+	 * @return a filename not returned before by any process
+	 */
+	public static String next() {
+		return String.format("%012x-%012x-%08x", System.currentTimeMillis(),
+				NODE, COUNTER.getAndIncrement() & 0xffffffffL);
+	}
+}
@@ -43,9 +43,10 @@ public class Sha512StreamDigest implements StreamProcessor<byte[]> {
 	public static final String PROVIDER = 
 			org.bouncycastle.jce.provider.BouncyCastleProvider.PROVIDER_NAME;
 	// size of the streambuffer
-	public static final int BUFFERSIZE = 1024; // 1MB
+	public static final int BUFFERSIZE = 1024; // 1KB
 
 	private MessageDigest md;
+	private final int bufferSize;
 
 	// store exception for StreamProcessor interface
 	Exception exception;
@@ -59,7 +60,26 @@ public class Sha512StreamDigest implements StreamProcessor<byte[]> {
 	 */
 	public Sha512StreamDigest() throws NoSuchAlgorithmException,
 			NoSuchProviderException {
-		this.md = MessageDigest.getInstance(DIGEST, PROVIDER);
+		this(PROVIDER, BUFFERSIZE);
+	}
+
+	/**
+	 * 
+	 * @param provider
+	 *            name of the crypto-provider to use
+	 * @param bufferSize
+	 *            size of the streambuffer in bytes
+	 * @throws NoSuchAlgorithmException
+	 *             if provider does not support "SHA-512"
+	 * @throws NoSuchProviderException
+	 *             if provider is not installed
+	 */
+	public Sha512StreamDigest(String provider, int bufferSize)
+			throws NoSuchAlgorithmException, NoSuchProviderException {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be positive");
+		this.md = MessageDigest.getInstance(DIGEST, provider);
+		this.bufferSize = bufferSize;
 	}
 
 	/**
@@ -74,18 +94,18 @@ public class Sha512StreamDigest implements StreamProcessor<byte[]> {
 	 * @throws IOException
 	 */
 	public byte[] digest(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[bufferSize];
 		if (out == null) {
 			DigestInputStream dIn = new DigestInputStream(in, md);
-			for (int b = 0; b != -1; b = dIn.read())
+			while (dIn.read(buffer, 0, bufferSize) != -1)
 				;
 			dIn.close();
 		} else {
 			DigestOutputStream dOut = new DigestOutputStream(out, md);
-			byte[] buffer = new byte[BUFFERSIZE];
-			int inCount = in.read(buffer, 0, BUFFERSIZE);
+			int inCount = in.read(buffer, 0, bufferSize);
 			while (inCount != -1) {
 				dOut.write(buffer, 0, inCount);
-				inCount = in.read(buffer, 0, BUFFERSIZE);
+				inCount = in.read(buffer, 0, bufferSize);
 			}
 			dOut.close();
 		}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.metrics;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import de.marburg.uni.brainimaging.dataxchanger.CountingInputStream;
+import de.marburg.uni.brainimaging.dataxchanger.CountingOutputStream;
+import de.marburg.uni.brainimaging.dataxchanger.StreamProcessor;
+
+/**
+ * This class records every call to process() of another StreamProcessor in
+ * a StageMetrics. The bytes processed are the bytes read from in, or written
+ * to out if in is null.
+ * 
+ * @author Kornelius Podranski
+ */
+public class MeteredStreamProcessor<T> implements StreamProcessor<T> {
+
+	private final StageMetrics metrics;
+	private final StreamProcessor<T> processor;
+
+	public MeteredStreamProcessor(StageMetrics metrics,
+			StreamProcessor<T> processor) {
+		this.metrics = metrics;
+		this.processor = processor;
+	}
+
+	// STREAMPROCESSOR INTERFACE
+	/**
+	 * runs process() of the decorated processor. <br>
+	 * {@inheritDoc}
+	 */
+	public boolean process(InputStream in, OutputStream out) {
+		CountingInputStream cIn = in == null ? null
+				: new CountingInputStream(in);
+		CountingOutputStream cOut = out == null ? null
+				: new CountingOutputStream(out);
+		long begin = metrics.begin();
+		boolean success = false;
+		try {
+			success = processor.process(cIn, cOut);
+		} finally {
+			if (success)
+				metrics.end(begin, cIn != null ? cIn.getCount()
+						: cOut != null ? cOut.getCount() : 0);
+			else
+				metrics.fail(begin);
+		}
+		return success;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Exception getException() {
+		return processor.getException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T getResult() {
+		return processor.getResult();
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.metrics;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.marburg.uni.brainimaging.dataxchanger.StreamProcessor;
+
+/**
+ * This class provides the StageMetrics of the process. Each is registered as
+ * MBean on first use, so long batches can be watched live with a JMX client
+ * like jconsole, e.g. as
+ * de.marburg.uni.brainimaging.dataxchanger:type=Stage,name=encrypt or
+ * de.marburg.uni.brainimaging.dataxchanger:type=FtpCommand,name=STOR.
+ * print() writes them in a form scripts can read, e.g. when the process
+ * ends before a JMX client could read them.
+ * 
+ * @author Kornelius Podranski
+ */
+public final class Metrics {
+	// JMX domain of the MBeans
+	public static final String DOMAIN =
+			"de.marburg.uni.brainimaging.dataxchanger";
+	// stages of send and receive
+	public static final String ANONYMIZE = "anonymize";
+	public static final String COMPRESS = "compress";
+	public static final String ENCRYPT = "encrypt";
+	public static final String WRAP = "rsa-wrap";
+	public static final String UPLOAD = "upload";
+	public static final String DOWNLOAD = "download";
+	public static final String DIGEST = "digest";
+	public static final String UNWRAP = "rsa-unwrap";
+	public static final String DECRYPT = "decrypt";
+
+	private static final ConcurrentMap<String, StageMetrics> metrics =
+			new ConcurrentHashMap<String, StageMetrics>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * @param name
+	 *            name of the stage
+	 * @return metrics of the stage
+	 */
+	public static StageMetrics stage(String name) {
+		return get("Stage", name);
+	}
+
+	/**
+	 * @param command
+	 *            the FTP-command, e.g. STOR
+	 * @return metrics of the command
+	 */
+	public static StageMetrics ftpCommand(String command) {
+		return get("FtpCommand", command.toUpperCase());
+	}
+
+	/**
+	 * Decorates processor with the metrics of a stage.
+	 * 
+	 * @param name
+	 *            name of the stage
+	 * @param processor
+	 *            the processor running the stage
+	 * @return processor recording its calls to process()
+	 */
+	public static <T> StreamProcessor<T> meter(String name,
+			StreamProcessor<T> processor) {
+		return new MeteredStreamProcessor<T>(stage(name), processor);
+	}
+
+	/**
+	 * Prints one line of key=value pairs per stage and FTP-command, e.g.
+	 * "metrics type=Stage name=encrypt count=2 errors=0 bytes=1024
+	 * seconds=0.012 max_ms=7". seconds is the summed latency of the
+	 * completed operations, so operations running concurrently are each
+	 * counted.
+	 * 
+	 * @param out
+	 *            stream to print to
+	 */
+	public static void print(PrintStream out) {
+		for (Map.Entry<String, StageMetrics> entry : new TreeMap<String, StageMetrics>(
+				metrics).entrySet()) {
+			String[] key = entry.getKey().split("/", 2);
+			StageMetrics stage = entry.getValue();
+			out.printf(Locale.US, "metrics type=%s name=%s count=%d "
+					+ "errors=%d bytes=%d seconds=%.3f max_ms=%d\n", key[0],
+					key[1], stage.getCount(), stage.getErrors(),
+					stage.getBytes(), stage.getMeanLatency()
+							* stage.getCount() / 1000, stage.getMaxLatency());
+		}
+		out.flush();
+	}
+
+	private static StageMetrics get(String type, String name) {
+		String key = type + "/" + name;
+		StageMetrics stage = metrics.get(key);
+		if (stage != null)
+			return stage;
+		stage = new StageMetrics();
+		StageMetrics existing = metrics.putIfAbsent(key, stage);
+		if (existing != null)
+			return existing;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(stage,
+					new ObjectName(DOMAIN + ":type=" + type + ",name=" + name));
+		} catch (JMException e) {
+			// metrics are only collected for monitoring, so they never stop
+			// a transfer. the stage is still counted, only not published.
+		}
+		return stage;
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class collects counters and a latency histogram of one stage, e.g.
+ * the encryption or an FTP-command. Every operation of the stage is enclosed
+ * by begin() and end() or fail(). Instances are thread-safe and lock-free, so
+ * they can be shared by all threads running the stage. <br>
+ * Bucket i of the histogram holds latencies up to 2^i ms.
+ * 
+ * @author Kornelius Podranski
+ */
+public class StageMetrics implements StageMetricsMBean {
+	// number of histogram buckets, the last one is unbounded (> 2^22 ms)
+	public static final int BUCKETS = 24;
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	// summed latency of the completed operations (ns)
+	private final AtomicLong latency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * marks the start of an operation.
+	 * 
+	 * @return start time to pass to end() or fail()
+	 */
+	public long begin() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * marks the successful end of an operation.
+	 * 
+	 * @param begin
+	 *            value returned by begin()
+	 * @param processed
+	 *            number of bytes processed by the operation
+	 */
+	public void end(long begin, long processed) {
+		long nanos = System.nanoTime() - begin;
+		inFlight.decrementAndGet();
+		count.incrementAndGet();
+		bytes.addAndGet(processed);
+		latency.addAndGet(nanos);
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		for (long max = maxLatency.get(); millis > max
+				&& !maxLatency.compareAndSet(max, millis); max = maxLatency
+				.get())
+			;
+		histogram.incrementAndGet(bucket(millis));
+	}
+
+	/**
+	 * marks the failure of an operation.
+	 * 
+	 * @param begin
+	 *            value returned by begin()
+	 */
+	public void fail(long begin) {
+		inFlight.decrementAndGet();
+		errors.incrementAndGet();
+	}
+
+	/**
+	 * index of the bucket holding millis.
+	 */
+	private static int bucket(long millis) {
+		int i = millis <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(millis - 1);
+		return Math.min(i, BUCKETS - 1);
+	}
+
+	// STAGEMETRICSMBEAN INTERFACE
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public double getBytesPerOperationSecond() {
+		long nanos = latency.get();
+		return nanos == 0 ? 0 : bytes.get() * 1e9 / nanos;
+	}
+
+	public double getMeanLatency() {
+		long n = count.get();
+		return n == 0 ? 0 : latency.get() / 1e6 / n;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	public long getLatency50thPercentile() {
+		return percentile(0.5);
+	}
+
+	public long getLatency90thPercentile() {
+		return percentile(0.9);
+	}
+
+	public long getLatency99thPercentile() {
+		return percentile(0.99);
+	}
+
+	public long[] getLatencyBuckets() {
+		long[] buckets = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS - 1; i++)
+			buckets[i] = 1L << i;
+		buckets[BUCKETS - 1] = Long.MAX_VALUE;
+		return buckets;
+	}
+
+	public long[] getLatencyHistogram() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			snapshot[i] = histogram.get(i);
+		return snapshot;
+	}
+
+	public void reset() {
+		count.set(0);
+		errors.set(0);
+		bytes.set(0);
+		latency.set(0);
+		maxLatency.set(0);
+		for (int i = 0; i < BUCKETS; i++)
+			histogram.set(i, 0);
+	}
+
+	/**
+	 * upper bound of the bucket holding the given fraction of the latencies,
+	 * or the maximum latency if that is lower.
+	 */
+	private long percentile(double fraction) {
+		long[] snapshot = getLatencyHistogram();
+		long total = 0;
+		for (long n : snapshot)
+			total += n;
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(1L << i, getMaxLatency());
+		}
+		return getMaxLatency();
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.metrics;
+
+/**
+ * JMX management interface of StageMetrics. Latencies are given in
+ * milliseconds, percentiles as the upper bound of the histogram bucket they
+ * fall into.
+ * 
+ * @author Kornelius Podranski
+ */
+public interface StageMetricsMBean {
+
+	/**
+	 * @return number of operations completed successfully
+	 */
+	public long getCount();
+
+	/**
+	 * @return number of operations failed
+	 */
+	public long getErrors();
+
+	/**
+	 * @return number of operations running
+	 */
+	public int getInFlight();
+
+	/**
+	 * @return bytes processed by the operations completed successfully
+	 */
+	public long getBytes();
+
+	/**
+	 * @return bytes per second of a single operation, i.e. getBytes() divided
+	 *         by the summed latency of the completed operations. Operations
+	 *         running concurrently are not added up, so this is not the
+	 *         throughput of the stage.
+	 */
+	public double getBytesPerOperationSecond();
+
+	public double getMeanLatency();
+
+	public long getMaxLatency();
+
+	public long getLatency50thPercentile();
+
+	public long getLatency90thPercentile();
+
+	public long getLatency99thPercentile();
+
+	/**
+	 * @return upper bounds of the histogram buckets, the last bucket has no
+	 *         upper bound
+	 */
+	public long[] getLatencyBuckets();
+
+	/**
+	 * @return number of operations per histogram bucket
+	 */
+	public long[] getLatencyHistogram();
+
+	/**
+	 * sets all counters except getInFlight() to zero.
+	 */
+	public void reset();
+}
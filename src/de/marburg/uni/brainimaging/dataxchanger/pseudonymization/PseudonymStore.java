@@ -0,0 +1,478 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.pseudonymization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class provides a persistent mapping of original identifiers (e.g.
+ * patient IDs) to random pseudonyms. The same identifier always gets the same
+ * pseudonym, so studies of one patient stay linked after anonymization. <br>
+ * The mapping consists of two files:
+ * <ul>
+ * <li>the log (PATH): every mapping is appended as (key length, pseudonym
+ * length, key, pseudonym, CRC32) and forced to disk before the pseudonym is
+ * handed out. The log is the authoritative copy.</li>
+ * <li>the index (PATH.index): a memory-mapped open addressing hash table of
+ * (offset of record in log, 64 bit hash of key). It lives outside the Java
+ * heap, so millions of entries do not burden the garbage collector.</li>
+ * </ul>
+ * On open, records behind the part of the log covered by the index are
+ * added to the index, a torn record at the end of the log is cut off. If the
+ * index is missing or damaged, it is rebuilt from the log. The header of
+ * the index is only advanced after the slots are on disk, so records
+ * covered by the header are always in the index. <br>
+ * The log is locked exclusively while the store is open, a second process
+ * opening the same store fails. <br>
+ * Lookups of existing pseudonyms run concurrently, new pseudonyms are created
+ * one at a time.
+ * 
+ * @author Kornelius Podranski
+ */
+public class PseudonymStore {
+	// suffix appended to the filename of the log
+	public static final String INDEXSUFFIX = ".index";
+	// "DXPS"
+	public static final int LOGMAGIC = 0x44585053;
+	// "DXPI"
+	public static final int INDEXMAGIC = 0x44585049;
+	public static final int FORMAT_VERSION = 1;
+	// number of random bytes of a pseudonym
+	public static final int PSEUDONYMSIZE = 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int LOGHEADERSIZE = 4 + 4;
+	// magic, version, capacity, count, covered log length
+	private static final int INDEXHEADERSIZE = 4 + 4 + 4 + 4 + 8;
+	// record offset (0 = empty), hash
+	private static final int SLOTSIZE = 8 + 8;
+	private static final int INITIALCAPACITY = 1 << 16;
+	// upper bound for keys and pseudonyms to detect corrupt records
+	private static final int MAXLENGTH = 64 * 1024;
+
+	private final File logFile;
+	private final File indexFile;
+	private final RandomAccessFile log;
+	private final FileChannel logChannel;
+	// exclusive lock on the log, released on close
+	private FileLock fileLock;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final SecureRandom random = new SecureRandom();
+
+	private RandomAccessFile index;
+	private MappedByteBuffer slots;
+	private int capacity;
+	private int count;
+	private long logLength;
+
+	/**
+	 * Opens the pseudonym store at path. The files are created if they do not
+	 * exist.
+	 * 
+	 * @param file
+	 *            the log of the store, the index is kept next to it
+	 * @throws IOException
+	 *             if the files can not be read or written or the log is no
+	 *             pseudonym store
+	 */
+	public PseudonymStore(File file) throws IOException {
+		this.logFile = file;
+		this.indexFile = new File(file.getPath() + INDEXSUFFIX);
+		this.log = new RandomAccessFile(file, "rw");
+		this.logChannel = log.getChannel();
+		try {
+			try {
+				fileLock = logChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// already opened in this virtual machine
+			}
+			if (fileLock == null)
+				throw new IOException("pseudonym store \"" + file.getPath()
+						+ "\" is in use by another process");
+			if (log.length() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(LOGHEADERSIZE);
+				header.putInt(LOGMAGIC).putInt(FORMAT_VERSION).flip();
+				writeFully(header, 0);
+				logChannel.force(true);
+			}
+			ByteBuffer header = readFully(0, LOGHEADERSIZE);
+			if (header.getInt(0) != LOGMAGIC)
+				throw new IOException("\"" + file.getPath()
+						+ "\" is no pseudonym store");
+			if (header.getInt(4) != FORMAT_VERSION)
+				throw new IOException("unsupported version of pseudonym store \""
+						+ file.getPath() + "\"");
+			openIndex();
+			recover();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the pseudonym of an identifier. A new random pseudonym is
+	 * created and persisted if the identifier is not known yet.
+	 * 
+	 * @param original
+	 *            the original identifier
+	 * @return the pseudonym of original
+	 * @throws IOException
+	 *             if the store can not be read or written
+	 */
+	public String pseudonym(String original) throws IOException {
+		byte[] key = original.getBytes(UTF8);
+		long hash = hash(key);
+		lock.readLock().lock();
+		try {
+			String pseudonym = lookup(key, hash);
+			if (pseudonym != null)
+				return pseudonym;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			// another thread may have been faster
+			String pseudonym = lookup(key, hash);
+			if (pseudonym != null)
+				return pseudonym;
+			pseudonym = newPseudonym();
+			long offset = append(key, pseudonym.getBytes(UTF8));
+			logChannel.force(false);
+			insert(offset, hash);
+			checkpoint(log.length());
+			return pseudonym;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of identifiers in this store.
+	 * 
+	 * @return the number of mapped identifiers
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes the store.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (slots != null)
+				slots.force();
+			slots = null;
+			if (index != null)
+				index.close();
+			index = null;
+			// closing the channel releases fileLock
+			log.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * looks up key in the index. must be called holding the lock.
+	 * 
+	 * @return the pseudonym or null if key is not known
+	 */
+	private String lookup(byte[] key, long hash) throws IOException {
+		int mask = capacity - 1;
+		for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+			int slot = INDEXHEADERSIZE + i * SLOTSIZE;
+			long offset = slots.getLong(slot);
+			if (offset == 0)
+				return null;
+			if (slots.getLong(slot + 8) == hash) {
+				ByteBuffer lengths = readFully(offset, 8);
+				int keyLength = lengths.getInt(0);
+				if (keyLength == key.length) {
+					ByteBuffer record = readFully(offset + 8, keyLength
+							+ lengths.getInt(4));
+					byte[] recordKey = new byte[keyLength];
+					record.get(recordKey);
+					if (Arrays.equals(key, recordKey)) {
+						byte[] pseudonym = new byte[record.remaining()];
+						record.get(pseudonym);
+						return new String(pseudonym, UTF8);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * adds a record to the index. must be called holding the write lock. The
+	 * header is not touched, see checkpoint.
+	 */
+	private void insert(long offset, long hash) throws IOException {
+		if (2 * (count + 1) > capacity)
+			resize(2 * capacity);
+		putSlot(slots, capacity, offset, hash);
+		count++;
+	}
+
+	/**
+	 * marks the log up to coveredLength as indexed. The slots are forced
+	 * before the header is written, so a crash never leaves a header that
+	 * covers records missing in the slots.
+	 */
+	private void checkpoint(long coveredLength) {
+		slots.force();
+		logLength = coveredLength;
+		slots.putInt(12, count);
+		slots.putLong(16, logLength);
+		slots.force();
+	}
+
+	private static void putSlot(ByteBuffer slots, int capacity, long offset,
+			long hash) {
+		int mask = capacity - 1;
+		int i = (int) hash & mask;
+		while (slots.getLong(INDEXHEADERSIZE + i * SLOTSIZE) != 0)
+			i = (i + 1) & mask;
+		slots.putLong(INDEXHEADERSIZE + i * SLOTSIZE, offset);
+		slots.putLong(INDEXHEADERSIZE + i * SLOTSIZE + 8, hash);
+	}
+
+	/**
+	 * appends a record to the log.
+	 * 
+	 * @return the offset of the new record
+	 */
+	private long append(byte[] key, byte[] pseudonym) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(8 + key.length
+				+ pseudonym.length + 4);
+		record.putInt(key.length).putInt(pseudonym.length);
+		record.put(key).put(pseudonym);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		record.flip();
+		long offset = log.length();
+		writeFully(record, offset);
+		return offset;
+	}
+
+	/**
+	 * opens the index, creating a new one if it is missing or damaged.
+	 */
+	private void openIndex() throws IOException {
+		if (indexFile.length() >= INDEXHEADERSIZE) {
+			index = new RandomAccessFile(indexFile, "rw");
+			slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					index.length());
+			capacity = slots.getInt(8);
+			count = slots.getInt(12);
+			logLength = slots.getLong(16);
+			if (slots.getInt(0) == INDEXMAGIC
+					&& slots.getInt(4) == FORMAT_VERSION
+					&& capacity > 0
+					&& Integer.bitCount(capacity) == 1
+					&& index.length() == INDEXHEADERSIZE + (long) capacity
+							* SLOTSIZE && logLength >= LOGHEADERSIZE
+					&& logLength <= log.length())
+				return;
+			slots = null;
+			index.close();
+		}
+		// rebuild from the log
+		createIndex(INITIALCAPACITY);
+	}
+
+	/**
+	 * replaces the index by an empty one with the given capacity.
+	 */
+	private void createIndex(int newCapacity) throws IOException {
+		if (index != null)
+			index.close();
+		indexFile.delete();
+		index = new RandomAccessFile(indexFile, "rw");
+		index.setLength(INDEXHEADERSIZE + (long) newCapacity * SLOTSIZE);
+		slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				index.length());
+		slots.putInt(0, INDEXMAGIC);
+		slots.putInt(4, FORMAT_VERSION);
+		slots.putInt(8, newCapacity);
+		slots.putInt(12, 0);
+		slots.putLong(16, LOGHEADERSIZE);
+		capacity = newCapacity;
+		count = 0;
+		logLength = LOGHEADERSIZE;
+	}
+
+	/**
+	 * doubles the capacity of the index. The new index is written to a
+	 * temporary file and renamed, so a crash leaves a usable index.
+	 */
+	private void resize(int newCapacity) throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		tmp.delete();
+		RandomAccessFile newIndex = new RandomAccessFile(tmp, "rw");
+		newIndex.setLength(INDEXHEADERSIZE + (long) newCapacity * SLOTSIZE);
+		MappedByteBuffer newSlots = newIndex.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, newIndex.length());
+		for (int i = 0; i < capacity; i++) {
+			long offset = slots.getLong(INDEXHEADERSIZE + i * SLOTSIZE);
+			if (offset != 0)
+				putSlot(newSlots, newCapacity, offset,
+						slots.getLong(INDEXHEADERSIZE + i * SLOTSIZE + 8));
+		}
+		newSlots.putInt(0, INDEXMAGIC);
+		newSlots.putInt(4, FORMAT_VERSION);
+		newSlots.putInt(8, newCapacity);
+		newSlots.putInt(12, count);
+		newSlots.putLong(16, logLength);
+		newSlots.force();
+		index.close();
+		if (!tmp.renameTo(indexFile)) {
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile)) {
+				newIndex.close();
+				throw new IOException("could not replace index \""
+						+ indexFile.getPath() + "\"");
+			}
+		}
+		index = newIndex;
+		slots = newSlots;
+		capacity = newCapacity;
+	}
+
+	/**
+	 * adds the records of the log not covered by the index and cuts off a
+	 * torn record at the end of the log.
+	 */
+	private void recover() throws IOException {
+		long offset = logLength;
+		long end = log.length();
+		while (offset < end) {
+			long next = validRecord(offset, end);
+			if (next == -1) {
+				// torn or corrupt record written during a crash
+				log.setLength(offset);
+				logChannel.force(true);
+				break;
+			}
+			ByteBuffer lengths = readFully(offset, 8);
+			byte[] key = new byte[lengths.getInt(0)];
+			readFully(offset + 8, key.length).get(key);
+			long hash = hash(key);
+			// slots may have reached the disk without the header, the count
+			// in the header does not include them either
+			if (lookup(key, hash) == null)
+				insert(offset, hash);
+			else
+				count++;
+			offset = next;
+		}
+		checkpoint(log.length());
+	}
+
+	/**
+	 * checks the record at offset.
+	 * 
+	 * @return the offset of the next record or -1 if the record is not valid
+	 */
+	private long validRecord(long offset, long end) throws IOException {
+		if (offset + 8 > end)
+			return -1;
+		ByteBuffer lengths = readFully(offset, 8);
+		int keyLength = lengths.getInt(0);
+		int pseudonymLength = lengths.getInt(4);
+		if (keyLength < 0 || keyLength > MAXLENGTH || pseudonymLength < 0
+				|| pseudonymLength > MAXLENGTH)
+			return -1;
+		long next = offset + 8 + keyLength + pseudonymLength + 4;
+		if (next > end)
+			return -1;
+		ByteBuffer record = readFully(offset, (int) (next - offset));
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.limit() - 4);
+		if (record.getInt(record.limit() - 4) != (int) crc.getValue())
+			return -1;
+		return next;
+	}
+
+	private String newPseudonym() {
+		byte[] bytes = new byte[PSEUDONYMSIZE];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(2 * PSEUDONYMSIZE);
+		for (byte b : bytes)
+			sb.append(String.format("%02X", b & 0xff));
+		return sb.toString();
+	}
+
+	/**
+	 * 64 bit FNV-1a hash. Any value is valid, empty slots are marked by the
+	 * record offset.
+	 */
+	private static long hash(byte[] key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (logChannel.read(buffer, position + buffer.position()) == -1)
+				throw new IOException("unexpected end of pseudonym store \""
+						+ logFile.getPath() + "\"");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void writeFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining())
+			logChannel.write(buffer, position + buffer.position());
+	}
+}
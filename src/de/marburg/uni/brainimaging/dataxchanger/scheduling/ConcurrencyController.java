@@ -0,0 +1,178 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.scheduling;
+
+/**
+ * This class adapts the number of concurrent transfers between a lower and
+ * an upper bound (AIMD). Transfers are measured in windows of at least WINDOW
+ * milliseconds and limit transfers:
+ * <ul>
+ * <li>the limit grows by one while the throughput grows by MINGAIN, but only
+ * if transfers actually waited for the limit.</li>
+ * <li>an increase which did not pay off is taken back.</li>
+ * <li>the limit is halved if more than MAXERRORRATE of the transfers failed,
+ * and at once if the server refused a connection.</li>
+ * </ul>
+ * 
+ * @author Kornelius Podranski
+ */
+public class ConcurrencyController {
+	// minimal length of a measurement window
+	public static final long WINDOW = 2000; // ms
+	// relative gain of throughput that justifies another increase
+	private static final double MINGAIN = 0.05;
+	// fraction of failed transfers in a window that causes a decrease
+	private static final double MAXERRORRATE = 0.1;
+
+	private final int min;
+	private final int max;
+	private int limit;
+	private int running = 0;
+	// the current window
+	private long windowStart;
+	private long bytes = 0;
+	private int completed = 0;
+	private int errors = 0;
+	private boolean saturated = false;
+	private boolean decreased = false;
+	// throughput of the last window in bytes per second, -1 for none
+	private double lastThroughput = -1;
+	// the last window ended with an increase
+	private boolean increased = false;
+
+	/**
+	 * Starts with min concurrent transfers.
+	 * 
+	 * @param min
+	 *            lower bound of concurrent transfers
+	 * @param max
+	 *            upper bound of concurrent transfers
+	 */
+	public ConcurrencyController(int min, int max) {
+		if (min < 1 || max < min)
+			throw new IllegalArgumentException("invalid bounds");
+		this.min = min;
+		this.max = max;
+		this.limit = min;
+		this.windowStart = now();
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Waits until another transfer may start.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		if (running >= limit)
+			saturated = true;
+		while (running >= limit)
+			wait();
+		running++;
+		if (running == limit)
+			saturated = true;
+	}
+
+	/**
+	 * Ends a transfer started with acquire().
+	 */
+	public synchronized void release() {
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Records a successful transfer.
+	 * 
+	 * @param bytes
+	 *            number of bytes transferred
+	 */
+	public synchronized void succeeded(long bytes) {
+		this.bytes += bytes;
+		completed++;
+		update();
+	}
+
+	/**
+	 * Records a failed transfer.
+	 */
+	public synchronized void failed() {
+		errors++;
+		update();
+	}
+
+	/**
+	 * Records a refused connection. The limit is halved at once, but only
+	 * once per window, as refusals come in bursts.
+	 */
+	public synchronized void refused() {
+		errors++;
+		if (!decreased) {
+			decrease();
+			decreased = true;
+		}
+	}
+
+	/**
+	 * ends the window if it is long enough and adjusts the limit.
+	 */
+	private void update() {
+		long elapsed = now() - windowStart;
+		// every slot should have completed a transfer in the window
+		if (elapsed < WINDOW || completed + errors < limit)
+			return;
+		double throughput = bytes * 1000.0 / elapsed;
+		int total = completed + errors;
+		if ((double) errors / total > MAXERRORRATE) {
+			if (!decreased)
+				decrease();
+		} else if (increased && throughput < lastThroughput * (1 + MINGAIN)) {
+			// more transfers did not help
+			limit = Math.max(min, limit - 1);
+			increased = false;
+		} else if (saturated && !decreased && limit < max) {
+			limit++;
+			increased = true;
+			notifyAll();
+		} else {
+			increased = false;
+		}
+		lastThroughput = throughput;
+		windowStart = now();
+		bytes = 0;
+		completed = 0;
+		errors = 0;
+		saturated = false;
+		decreased = false;
+	}
+
+	private void decrease() {
+		limit = Math.max(min, limit / 2);
+		increased = false;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.scheduling;
+
+/**
+ * This class implements a token bucket rate limit. Tokens (bytes) are added
+ * at a fixed rate up to the capacity of the bucket, a transfer takes as many
+ * tokens as it transfers bytes. <br>
+ * Instances are not thread safe, TransferScheduler uses them under its lock.
+ * 
+ * @author Kornelius Podranski
+ */
+public class TokenBucket {
+	private static final long NANOS = 1000000000L;
+
+	private final long rate;
+	private final long capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * 
+	 * @param rate
+	 *            tokens added per second
+	 * @param capacity
+	 *            maximum number of tokens, i.e. the largest burst
+	 */
+	public TokenBucket(long rate, long capacity) {
+		if (rate < 1 || capacity < 1)
+			throw new IllegalArgumentException(
+					"rate and capacity must be positive");
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Returns the time until n tokens are available.
+	 * 
+	 * @param n
+	 *            number of tokens, at most the capacity
+	 * @return nanoseconds to wait, 0 if the tokens are available now
+	 */
+	public long delay(long n) {
+		refill();
+		double missing = Math.min(n, capacity) - tokens;
+		if (missing <= 0)
+			return 0;
+		return (long) Math.ceil(missing * NANOS / rate);
+	}
+
+	/**
+	 * Takes n tokens. Should only be called after delay(n) returned 0.
+	 * 
+	 * @param n
+	 *            number of tokens
+	 */
+	public void take(long n) {
+		refill();
+		tokens -= n;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (double) (now - lastRefill)
+				* rate / NANOS);
+		lastRefill = now;
+	}
+}
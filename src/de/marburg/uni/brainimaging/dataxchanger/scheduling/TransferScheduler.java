@@ -0,0 +1,338 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.scheduling;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.marburg.uni.brainimaging.dataxchanger.ChannelSource;
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+
+/**
+ * This class shares the upload bandwidth between concurrent transfers.
+ * Transfers read their data through throttled streams or write it to
+ * throttled channels, which ask the scheduler for every QUANTUM of bytes.
+ * <br>
+ * The scheduler serves waiting transfers
+ * <ul>
+ * <li>by priority: a transfer of a higher priority class always goes first,
+ * lower classes use the leftover capacity.</li>
+ * <li>in turns within a class: transfers share the bandwidth equally
+ * (start-time fair queuing).</li>
+ * </ul>
+ * The rate of all transfers can be limited by a token bucket. All
+ * transfers of one run go to the same server or directory, so there are
+ * no limits per destination.
+ * 
+ * @author Kornelius Podranski
+ */
+public class TransferScheduler {
+	// bytes requested from the scheduler at once
+	public static final int QUANTUM = 64 * 1024; // 64KB
+
+	/**
+	 * priority classes, most urgent first.
+	 */
+	public enum Priority {
+		URGENT, NORMAL, BULK
+	}
+
+	/**
+	 * a transfer sharing the bandwidth.
+	 */
+	public static class Flow {
+		private final Priority priority;
+		// virtual finish time of the last quantum of this flow
+		private double finish = 0;
+
+		private Flow(Priority priority) {
+			this.priority = priority;
+		}
+
+		public Priority getPriority() {
+			return priority;
+		}
+	}
+
+	/**
+	 * a request waiting for bandwidth.
+	 */
+	private static class Request {
+		final Flow flow;
+		final int bytes;
+		final double start;
+
+		Request(Flow flow, int bytes, double start) {
+			this.flow = flow;
+			this.bytes = bytes;
+			this.start = start;
+		}
+	}
+
+	// limits all transfers, null for no limit
+	private final TokenBucket global;
+	private final List<Request> waiting = new ArrayList<Request>();
+	// virtual time: start tag of the last request served
+	private double virtualTime = 0;
+
+	/**
+	 * 
+	 * @param rate
+	 *            limit of all transfers in bytes per second, 0 for no limit
+	 */
+	public TransferScheduler(long rate) {
+		this.global = rate > 0 ? bucket(rate) : null;
+	}
+
+	/**
+	 * Checks if the rate of any transfer is limited. Without a limit the
+	 * scheduler never delays a transfer, so it does not have to be asked.
+	 * 
+	 * @return true if a limit is set
+	 */
+	public boolean isLimited() {
+		return global != null;
+	}
+
+	/**
+	 * Creates a new flow for a transfer.
+	 * 
+	 * @param priority
+	 *            priority class of the transfer
+	 * @return the flow to pass to acquire() or throttle()
+	 */
+	public synchronized Flow open(Priority priority) {
+		Flow flow = new Flow(priority);
+		flow.finish = virtualTime;
+		return flow;
+	}
+
+	/**
+	 * Waits until flow may transfer bytes.
+	 * 
+	 * @param flow
+	 *            the flow of the transfer
+	 * @param bytes
+	 *            number of bytes, at most QUANTUM
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized void acquire(Flow flow, int bytes)
+			throws InterruptedException {
+		Request request = new Request(flow, bytes, Math.max(virtualTime,
+				flow.finish));
+		flow.finish = request.start + bytes;
+		waiting.add(request);
+		try {
+			while (true) {
+				Request next = null;
+				for (Request r : waiting) {
+					if (next == null || before(r, next))
+						next = r;
+				}
+				if (next != request) {
+					// woken when the request served before is done
+					wait();
+					continue;
+				}
+				long delay = global == null ? 0 : global.delay(bytes);
+				if (delay == 0) {
+					if (global != null)
+						global.take(bytes);
+					virtualTime = request.start;
+					return;
+				}
+				wait(delay / 1000000, (int) (delay % 1000000));
+			}
+		} finally {
+			waiting.remove(request);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wraps in, so reading from it is scheduled as flow.
+	 * 
+	 * @param in
+	 *            the stream of the transfer
+	 * @param flow
+	 *            the flow of the transfer
+	 * @return the throttled stream
+	 */
+	public InputStream throttle(InputStream in, Flow flow) {
+		return new ThrottledInputStream(in, flow);
+	}
+
+	/**
+	 * Wraps source, so every stream opened from it is scheduled as flow. A
+	 * ChannelSource stays a ChannelSource.
+	 * 
+	 * @param source
+	 *            the data of the transfer
+	 * @param flow
+	 *            the flow of the transfer
+	 * @return the throttled source
+	 */
+	public SeekableSource throttle(final SeekableSource source, final Flow flow) {
+		if (source instanceof ChannelSource)
+			return new ThrottledChannelSource((ChannelSource) source, flow);
+		return new SeekableSource() {
+			public long length() {
+				return source.length();
+			}
+
+			public InputStream open(long offset) throws IOException {
+				return throttle(source.open(offset), flow);
+			}
+		};
+	}
+
+	/**
+	 * checks if a is served before b.
+	 */
+	private static boolean before(Request a, Request b) {
+		int c = a.flow.priority.compareTo(b.flow.priority);
+		if (c != 0)
+			return c < 0;
+		return a.start < b.start;
+	}
+
+	private static TokenBucket bucket(long rate) {
+		// allow bursts of a quarter second, but at least one quantum
+		return new TokenBucket(rate, Math.max(QUANTUM, rate / 4));
+	}
+
+	/**
+	 * hands whole transfers to the source, which writes to a throttled
+	 * channel. The source keeps its state (e.g. an open file and cipher)
+	 * for the whole transfer, the scheduler is asked for every QUANTUM
+	 * written.
+	 */
+	private class ThrottledChannelSource implements ChannelSource {
+		private final ChannelSource source;
+		private final Flow flow;
+
+		ThrottledChannelSource(ChannelSource source, Flow flow) {
+			this.source = source;
+			this.flow = flow;
+		}
+
+		public long length() {
+			return source.length();
+		}
+
+		public InputStream open(long offset) throws IOException {
+			return throttle(source.open(offset), flow);
+		}
+
+		public long transferTo(long offset, long count,
+				WritableByteChannel channel) throws IOException {
+			return source.transferTo(offset, count, new ThrottledChannel(
+					channel, flow));
+		}
+	}
+
+	/**
+	 * asks the scheduler before every write, writing at most QUANTUM bytes
+	 * at once.
+	 */
+	private class ThrottledChannel implements WritableByteChannel {
+		private final WritableByteChannel channel;
+		private final Flow flow;
+
+		ThrottledChannel(WritableByteChannel channel, Flow flow) {
+			this.channel = channel;
+			this.flow = flow;
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			int n = Math.min(src.remaining(), QUANTUM);
+			if (n == 0)
+				return channel.write(src);
+			try {
+				acquire(flow, n);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for "
+						+ "bandwidth");
+			}
+			int limit = src.limit();
+			src.limit(src.position() + n);
+			try {
+				return channel.write(src);
+			} finally {
+				src.limit(limit);
+			}
+		}
+
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * asks the scheduler before every read.
+	 */
+	private class ThrottledInputStream extends FilterInputStream {
+		private final Flow flow;
+
+		ThrottledInputStream(InputStream in, Flow flow) {
+			super(in);
+			this.flow = flow;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				schedule(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, Math.min(len, QUANTUM));
+			if (n > 0)
+				schedule(n);
+			return n;
+		}
+
+		private void schedule(int bytes) throws IOException {
+			try {
+				acquire(flow, bytes);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for "
+						+ "bandwidth");
+			}
+		}
+	}
+}
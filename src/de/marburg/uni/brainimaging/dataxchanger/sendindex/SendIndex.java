@@ -0,0 +1,190 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.sendindex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.marburg.uni.brainimaging.dataxchanger.messagedigest.Sha512StreamDigest;
+
+/**
+ * This class provides a persistent index of completed sends. It is used to
+ * skip files that have already been sent with the same whitelist to the same
+ * receivers. <br>
+ * The index is an append-only file of fixed-size keys behind a short header.
+ * All keys are held in a hash set, so a lookup is O(1). A key is only
+ * appended after the send has completed, a partially written key (e.g. after
+ * a crash) is ignored on the next load. The index may be used by several
+ * threads.
+ * 
+ * @author Kornelius Podranski
+ */
+public class SendIndex {
+	// "DXSI"
+	public static final int MAGIC = 0x44585349;
+	public static final int FORMAT_VERSION = 1;
+	// keys are SHA-512 digests
+	public static final int KEYSIZE = 64; // bytes
+
+	private static final int HEADERSIZE = 4 + 4;
+
+	private final File file;
+	private final Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+	private FileOutputStream out;
+
+	/**
+	 * Opens the index stored in file. The file is created if it does not
+	 * exist.
+	 * 
+	 * @param file
+	 *            the index file
+	 * @throws IOException
+	 *             if the file can not be read or written or is no index
+	 */
+	public SendIndex(File file) throws IOException {
+		this.file = file;
+		long length = 0;
+		if (file.exists()) {
+			length = load();
+		} else {
+			DataOutputStream dOut = new DataOutputStream(new FileOutputStream(
+					file));
+			dOut.writeInt(MAGIC);
+			dOut.writeInt(FORMAT_VERSION);
+			dOut.close();
+			length = HEADERSIZE;
+		}
+		// drop a partially written key
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != length)
+				raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		out = new FileOutputStream(file, true);
+	}
+
+	/**
+	 * reads all keys from the index file.
+	 * 
+	 * @return length of the valid part of the file
+	 * @throws IOException
+	 */
+	private long load() throws IOException {
+		DataInputStream dIn = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (file.length() < HEADERSIZE || dIn.readInt() != MAGIC)
+				throw new IOException("\"" + file.getPath()
+						+ "\" is no send index");
+			if (dIn.readInt() != FORMAT_VERSION)
+				throw new IOException("unsupported version of send index \""
+						+ file.getPath() + "\"");
+			long count = (file.length() - HEADERSIZE) / KEYSIZE;
+			for (long i = 0; i < count; i++) {
+				byte[] key = new byte[KEYSIZE];
+				dIn.readFully(key);
+				keys.add(ByteBuffer.wrap(key));
+			}
+			return HEADERSIZE + count * KEYSIZE;
+		} finally {
+			dIn.close();
+		}
+	}
+
+	/**
+	 * Checks if a send with the given key has been completed.
+	 * 
+	 * @param key
+	 *            the key of the send (see key())
+	 * @return true if the send has been completed before, false otherwise
+	 */
+	public synchronized boolean contains(byte[] key) {
+		return keys.contains(ByteBuffer.wrap(key));
+	}
+
+	/**
+	 * Records a completed send.
+	 * 
+	 * @param key
+	 *            the key of the send (see key())
+	 * @throws IOException
+	 *             if the key can not be written to the index file
+	 */
+	public synchronized void add(byte[] key) throws IOException {
+		if (key.length != KEYSIZE)
+			throw new IllegalArgumentException("wrong key size");
+		if (out == null)
+			throw new IllegalStateException("send index is closed");
+		if (keys.add(ByteBuffer.wrap(key.clone())))
+			out.write(key);
+	}
+
+	/**
+	 * Closes the index file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Calculates the key of a send from its parts, e.g. the digest of the
+	 * source file, the digest of the whitelist and the receivers. Every part
+	 * is prefixed by its length, so different partitions of the same bytes
+	 * result in different keys.
+	 * 
+	 * @param parts
+	 *            everything the result of the send depends on
+	 * @return the key of the send
+	 * @throws NoSuchAlgorithmException
+	 *             if no provider for "SHA-512" is found
+	 * @throws NoSuchProviderException
+	 *             if the Bouncycastle Provider is not found
+	 */
+	public static byte[] key(byte[]... parts) throws NoSuchAlgorithmException,
+			NoSuchProviderException {
+		MessageDigest md = MessageDigest.getInstance(Sha512StreamDigest.DIGEST,
+				Sha512StreamDigest.PROVIDER);
+		for (byte[] part : parts) {
+			md.update(ByteBuffer.allocate(4).putInt(part.length).array());
+			md.update(part);
+		}
+		return md.digest();
+	}
+}
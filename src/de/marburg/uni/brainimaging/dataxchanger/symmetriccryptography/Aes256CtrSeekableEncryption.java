@@ -0,0 +1,232 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import de.marburg.uni.brainimaging.dataxchanger.ChannelSource;
+
+/**
+ * This class regenerates the output of Aes256CtrStreamEncryption.encrypt()
+ * from a plaintext file, starting at any offset. In counter mode block n of
+ * the ciphertext only depends on the plaintext block, the key and IV + n, so
+ * the encrypted data does not have to be stored to resume a transfer. <br>
+ * transferTo() encrypts into direct buffers written to the channel, without
+ * the copies of a stream.
+ * 
+ * @author Kornelius Podranski
+ */
+public class Aes256CtrSeekableEncryption implements ChannelSource {
+	private static final int BLOCKSIZE = 16; // bytes
+	// size of the buffers of transferTo(), a multiple of BLOCKSIZE
+	private static final int BUFFERSIZE = 64 * 1024; // 64KB
+
+	private final SecretKey key;
+	private final byte[] iv;
+	private final File plaintext;
+
+	/**
+	 * 
+	 * @param key
+	 *            the key used for encryption
+	 * @param iv
+	 *            the IV used for encryption (see
+	 *            Aes256CtrStreamEncryption.getIV())
+	 * @param plaintext
+	 *            the encrypted file
+	 */
+	public Aes256CtrSeekableEncryption(SecretKey key, byte[] iv, File plaintext) {
+		if (iv.length != Aes256CtrStreamEncryption.IVSIZE / 8)
+			throw new IllegalArgumentException("wrong IV size");
+		this.key = key;
+		this.iv = iv.clone();
+		this.plaintext = plaintext;
+	}
+
+	/**
+	 * Returns the length of the ciphertext including the IV. <br>
+	 * {@inheritDoc}
+	 */
+	public long length() {
+		return iv.length + plaintext.length();
+	}
+
+	/**
+	 * Opens a stream of the ciphertext, including the leading IV, starting at
+	 * offset. <br>
+	 * {@inheritDoc}
+	 */
+	public InputStream open(long offset) throws IOException {
+		if (offset < 0 || offset > length())
+			throw new IOException("offset out of range: " + offset);
+		long position = Math.max(0, offset - iv.length);
+		long block = position / BLOCKSIZE;
+		Cipher cipher = cipher(block);
+
+		FileInputStream in = new FileInputStream(plaintext);
+		InputStream cIn;
+		try {
+			in.getChannel().position(block * BLOCKSIZE);
+			cIn = new CipherInputStream(in, cipher);
+			// drop the part of the first block before position
+			skipFully(cIn, position - block * BLOCKSIZE);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		if (offset >= iv.length)
+			return cIn;
+		return new SequenceInputStream(new ByteArrayInputStream(iv,
+				(int) offset, iv.length - (int) offset), cIn);
+	}
+
+	/**
+	 * Writes the ciphertext, including the leading IV, starting at offset to
+	 * channel. <br>
+	 * {@inheritDoc}
+	 */
+	public long transferTo(long offset, long count, WritableByteChannel channel)
+			throws IOException {
+		if (offset < 0 || offset > length())
+			throw new IOException("offset out of range: " + offset);
+		count = Math.min(count, length() - offset);
+		long done = 0;
+		if (offset < iv.length) {
+			ByteBuffer head = ByteBuffer.wrap(iv, (int) offset,
+					(int) Math.min(count, iv.length - offset));
+			while (head.hasRemaining())
+				channel.write(head);
+			done = iv.length - offset;
+		}
+		if (done >= count)
+			return count;
+		long position = offset + done - iv.length;
+		long block = position / BLOCKSIZE;
+		// part of the first block before position
+		int skip = (int) (position - block * BLOCKSIZE);
+		Cipher cipher = cipher(block);
+		ByteBuffer plain = ByteBuffer.allocateDirect(BUFFERSIZE);
+		ByteBuffer encrypted = ByteBuffer.allocateDirect(BUFFERSIZE);
+		FileInputStream in = new FileInputStream(plaintext);
+		try {
+			FileChannel fc = in.getChannel();
+			fc.position(block * BLOCKSIZE);
+			while (done < count) {
+				// read whole blocks, only the end of the file may be partial
+				plain.clear();
+				long want = skip + count - done;
+				plain.limit((int) Math.min(BUFFERSIZE, (want + BLOCKSIZE - 1)
+						/ BLOCKSIZE * BLOCKSIZE));
+				while (plain.hasRemaining() && fc.read(plain) != -1)
+					;
+				plain.flip();
+				if (plain.remaining() <= skip)
+					throw new IOException("plaintext truncated");
+				encrypted.clear();
+				try {
+					if (plain.remaining() % BLOCKSIZE == 0)
+						cipher.update(plain, encrypted);
+					else
+						cipher.doFinal(plain, encrypted);
+				} catch (GeneralSecurityException e) {
+					throw new IOException("encryption failed: " + e.toString());
+				}
+				encrypted.flip();
+				encrypted.position(skip);
+				skip = 0;
+				if (encrypted.remaining() > count - done)
+					encrypted.limit(encrypted.position() + (int) (count - done));
+				done += encrypted.remaining();
+				while (encrypted.hasRemaining())
+					channel.write(encrypted);
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	/**
+	 * creates a cipher for the given block of the plaintext.
+	 */
+	private Cipher cipher(long block) throws IOException {
+		Cipher cipher;
+		try {
+			cipher = Cipher.getInstance(Aes256CtrStreamEncryption.CIPHER + "/"
+					+ Aes256CtrStreamEncryption.MODE + "/"
+					+ Aes256CtrStreamEncryption.PADDING,
+					Aes256CtrStreamEncryption.PROVIDER);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(
+					counter(iv, block)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("AES/CTR not available: " + e.toString());
+		} catch (NoSuchProviderException e) {
+			throw new IOException("Bouncycastle-Provider not available: "
+					+ e.toString());
+		} catch (NoSuchPaddingException e) {
+			throw new IOException("AES/CTR not available: " + e.toString());
+		} catch (GeneralSecurityException e) {
+			throw new IOException("invalid key: " + e.toString());
+		}
+		return cipher;
+	}
+
+	/**
+	 * adds n to the 128 bit big endian counter iv.
+	 */
+	static byte[] counter(byte[] iv, long n) {
+		byte[] counter = iv.clone();
+		long carry = n;
+		for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+			long sum = (counter[i] & 0xff) + (carry & 0xff);
+			counter[i] = (byte) sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+		return counter;
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		byte[] buffer = new byte[BLOCKSIZE];
+		while (n > 0) {
+			int count = in.read(buffer, 0, (int) n);
+			if (count == -1)
+				throw new IOException("plaintext truncated");
+			n -= count;
+		}
+	}
+}
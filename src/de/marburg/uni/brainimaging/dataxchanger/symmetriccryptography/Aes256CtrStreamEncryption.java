@@ -55,11 +55,13 @@ public class Aes256CtrStreamEncryption {
 														// for CTR
 	public static final int KEYSIZE = 256; // bits
 	public static final int IVSIZE = 128; // bits
-	public static final int BUFFERSIZE = 1024; // 1MB
+	public static final int BUFFERSIZE = 1024; // 1KB
 
 	// attributes
 	private SecretKey key;
-	// private byte[] iv;
+	private final int bufferSize;
+	// IV of the last encryption
+	private byte[] iv;
 	private Cipher cipher;
 
 	/**
@@ -75,8 +77,33 @@ public class Aes256CtrStreamEncryption {
 	public Aes256CtrStreamEncryption(SecretKey key)
 			throws NoSuchAlgorithmException, NoSuchProviderException,
 			NoSuchPaddingException, InvalidKeyException {
+		this(key, PROVIDER, BUFFERSIZE);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *            secret key of correct bitlength or null to randomly generate
+	 *            key
+	 * @param provider
+	 *            name of the JCE provider for key generation and cipher
+	 * @param bufferSize
+	 *            size of the streambuffer in bytes
+	 * @throws NoSuchProviderException
+	 *             if provider is not installed
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 */
+	public Aes256CtrStreamEncryption(SecretKey key, String provider,
+			int bufferSize) throws NoSuchAlgorithmException,
+			NoSuchProviderException, NoSuchPaddingException,
+			InvalidKeyException {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be positive");
+		this.bufferSize = bufferSize;
 		if (key == null) {
-			KeyGenerator generator = KeyGenerator.getInstance(CIPHER, PROVIDER);
+			KeyGenerator generator = KeyGenerator.getInstance(CIPHER, provider);
 			generator.init(KEYSIZE);
 			this.key = generator.generateKey();
 		} else {
@@ -85,7 +112,7 @@ public class Aes256CtrStreamEncryption {
 			this.key = key;
 		}
 		cipher = Cipher.getInstance(CIPHER + "/" + MODE + "/" + PADDING,
-				PROVIDER);
+				provider);
 	}
 
 	/**
@@ -102,15 +129,15 @@ public class Aes256CtrStreamEncryption {
 	public void encrypt(InputStream in, OutputStream out) throws IOException,
 			InvalidKeyException {
 		cipher.init(Cipher.ENCRYPT_MODE, key);
-		byte[] iv = cipher.getIV();
+		iv = cipher.getIV();
 		out.write(iv);
 		CipherOutputStream cOut = new CipherOutputStream(out, cipher);
 
-		byte[] buffer = new byte[BUFFERSIZE];
-		int inCount = in.read(buffer, 0, BUFFERSIZE);
+		byte[] buffer = new byte[bufferSize];
+		int inCount = in.read(buffer, 0, bufferSize);
 		while (inCount != -1) {
 			cOut.write(buffer, 0, inCount);
-			inCount = in.read(buffer, 0, BUFFERSIZE);
+			inCount = in.read(buffer, 0, bufferSize);
 		}
 		cOut.close();
 
@@ -148,11 +175,11 @@ public class Aes256CtrStreamEncryption {
 		cipher.init(Cipher.DECRYPT_MODE, key, iv);
 		CipherOutputStream cOut = new CipherOutputStream(out, cipher);
 
-		byte[] buffer = new byte[BUFFERSIZE];
-		inCount = in.read(buffer, 0, BUFFERSIZE);
+		byte[] buffer = new byte[bufferSize];
+		inCount = in.read(buffer, 0, bufferSize);
 		while (inCount != -1) {
 			cOut.write(buffer, 0, inCount);
-			inCount = in.read(buffer, 0, BUFFERSIZE);
+			inCount = in.read(buffer, 0, bufferSize);
 		}
 		cOut.close();
 
@@ -160,6 +187,17 @@ public class Aes256CtrStreamEncryption {
 		out.close();
 	}
 
+	/**
+	 * IV generated for the last encryption. Together with the key and the
+	 * plaintext it allows to regenerate the ciphertext (see
+	 * Aes256CtrSeekableEncryption).
+	 * 
+	 * @return IV of the last call to encrypt() or null
+	 */
+	public byte[] getIV() {
+		return iv == null ? null : iv.clone();
+	}
+
 	/**
 	 * secret key set or generated during initialisation.
 	 * 
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+import de.marburg.uni.brainimaging.dataxchanger.configurationfile.ReceiverConfigurationFile;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.AsyncFtpClient;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpEventLoop;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpSessionPool;
+
+/**
+ * This class uploads through an FTP-server like FtpTransport, but over
+ * AsyncFtpClient sessions served by one FtpEventLoop. Idle sessions are
+ * kept for the next upload. Uploads always use passive mode and are not
+ * resumed; a failed upload on a reused session, which may have been closed
+ * by the server, is repeated once on a new session. <br>
+ * The uploaded files are plain files, so receivers download them like files
+ * uploaded by FtpTransport, which download() and configure() delegate to.
+ * 
+ * @author Kornelius Podranski
+ */
+public class AsyncFtpTransport implements Transport {
+	private final FtpEventLoop loop;
+	private final String address;
+	private final int port;
+	private final String username;
+	private final String password;
+	// downloads and configures receivers
+	private final FtpTransport receiving;
+	// logged-in sessions not used by an upload
+	private final LinkedList<AsyncFtpClient> idle = new LinkedList<AsyncFtpClient>();
+
+	/**
+	 * 
+	 * @param loop
+	 *            the loop serving the sessions
+	 * @param address
+	 *            the address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 * @param pool
+	 *            the pool providing the sessions of downloads
+	 */
+	public AsyncFtpTransport(FtpEventLoop loop, String address, int port,
+			String username, String password, FtpSessionPool pool) {
+		this.loop = loop;
+		this.address = address;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.receiving = new FtpTransport(address, port, username, password,
+				false, pool, 1, 0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String upload(SeekableSource source) throws IOException {
+		AsyncFtpClient client;
+		synchronized (idle) {
+			client = idle.poll();
+		}
+		if (client != null) {
+			try {
+				return release(client, await(client.put(source)));
+			} catch (IOException e) {
+				// the session may have been closed by the server, the
+				// failure closes it. try once more on a new session.
+			}
+		}
+		client = new AsyncFtpClient(loop, address, port, username, password);
+		await(client.connect());
+		return release(client, await(client.put(source)));
+	}
+
+	/**
+	 * keeps client for the next upload.
+	 * 
+	 * @return name
+	 */
+	private String release(AsyncFtpClient client, String name) {
+		synchronized (idle) {
+			idle.add(client);
+		}
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void download(String name, File file) throws IOException {
+		receiving.download(name, file);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void configure(ReceiverConfigurationFile rconf) {
+		receiving.configure(rconf);
+	}
+
+	/**
+	 * Logs out the idle sessions. The loop is not closed.
+	 */
+	public void close() {
+		while (true) {
+			AsyncFtpClient client;
+			synchronized (idle) {
+				client = idle.poll();
+			}
+			if (client == null)
+				return;
+			try {
+				await(client.quit());
+			} catch (IOException e) {
+				// the session is closed anyway
+			}
+		}
+	}
+
+	/**
+	 * waits for the result of an operation.
+	 */
+	private static <T> T await(Future<T> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for the "
+					+ "FTP-server");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause().toString(), e.getCause());
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import de.marburg.uni.brainimaging.dataxchanger.ChannelSource;
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+import de.marburg.uni.brainimaging.dataxchanger.configurationfile.ReceiverConfigurationFile;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.UniqueFilename;
+
+/**
+ * This class exchanges data through a directory both sides can access, e.g.
+ * a shared NFS or SMB mount. Data is copied with FileChannel transfers, which
+ * the operating system can do without copying through the JVM. <br>
+ * An upload is written to a file with PARTSUFFIX and renamed when it is
+ * complete, so receivers never see partial data.
+ * 
+ * @author Kornelius Podranski
+ */
+public class DirectoryTransport implements Transport {
+	// suffix of files that are still being written
+	public static final String PARTSUFFIX = ".part";
+	// bytes copied per transfer call
+	private static final long TRANSFERSIZE = 8 * 1024 * 1024; // 8MB
+
+	private final File directory;
+
+	/**
+	 * 
+	 * @param directory
+	 *            the shared directory
+	 */
+	public DirectoryTransport(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String upload(SeekableSource source) throws IOException {
+		String name = UniqueFilename.next();
+		File part = new File(directory, name + PARTSUFFIX);
+		FileOutputStream out = new FileOutputStream(part);
+		try {
+			FileChannel channel = out.getChannel();
+			if (source instanceof ChannelSource)
+				write((ChannelSource) source, channel);
+			else
+				write(source, channel);
+			channel.force(true);
+		} catch (IOException e) {
+			out.close();
+			part.delete();
+			throw e;
+		}
+		out.close();
+		if (!part.renameTo(new File(directory, name))) {
+			part.delete();
+			throw new IOException("can not rename \"" + part.getPath() + "\"");
+		}
+		return name;
+	}
+
+	/**
+	 * writes source to channel, the source writes the data itself.
+	 */
+	private static void write(ChannelSource source, FileChannel channel)
+			throws IOException {
+		long length = source.length();
+		long position = 0;
+		while (position < length) {
+			long n = source.transferTo(position, length - position, channel);
+			if (n <= 0)
+				throw new IOException("source ended after " + position
+						+ " of " + length + " bytes");
+			position += n;
+		}
+	}
+
+	/**
+	 * writes source to channel from a stream of the source.
+	 */
+	private static void write(SeekableSource source, FileChannel channel)
+			throws IOException {
+		InputStream in = source.open(0);
+		try {
+			ReadableByteChannel inChannel = Channels.newChannel(in);
+			long length = source.length();
+			long position = 0;
+			while (position < length) {
+				long n = channel.transferFrom(inChannel, position,
+						Math.min(TRANSFERSIZE, length - position));
+				if (n == 0)
+					throw new IOException("source ended after " + position
+							+ " of " + length + " bytes");
+				position += n;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void download(String name, File file) throws IOException {
+		FileInputStream in = new FileInputStream(new File(directory, name));
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				FileChannel inChannel = in.getChannel();
+				FileChannel outChannel = out.getChannel();
+				long length = inChannel.size();
+				long position = 0;
+				while (position < length) {
+					long n = inChannel.transferTo(position,
+							Math.min(TRANSFERSIZE, length - position),
+							outChannel);
+					// the file was truncated while copying
+					if (n == 0)
+						throw new IOException("\"" + name + "\" ended after "
+								+ position + " of " + length + " bytes");
+					position += n;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Records the absolute path of the directory. A receiver which mounts
+	 * the directory elsewhere has to override it. <br>
+	 * {@inheritDoc}
+	 */
+	public void configure(ReceiverConfigurationFile rconf) {
+		rconf.setDirectory(directory.getAbsolutePath());
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+import de.marburg.uni.brainimaging.dataxchanger.configurationfile.ReceiverConfigurationFile;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpChunkedTransfer;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpDownloader;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpSegmentedDownloader;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpSessionPool;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpUploader;
+
+/**
+ * This class exchanges data through an FTP-server. Files are uploaded as a
+ * whole, resuming interrupted uploads, or as chunks (see FtpChunkedTransfer)
+ * if a chunk size is given. The chunks of all files uploaded at the same
+ * time share one set of threads. Downloads of whole files are split into
+ * segments if more than one thread is given.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FtpTransport implements Transport {
+	private final String address;
+	private final int port;
+	private final String username;
+	private final String password;
+	private final boolean active;
+	private final FtpSessionPool pool;
+	private final int threads;
+	// size of the chunks uploaded, 0 to upload single files
+	private final long chunkSize;
+	// data is transferred as chunks
+	private final boolean chunked;
+	// uploads the chunks of all files, null if no chunks are uploaded
+	private final ExecutorService chunkExecutor;
+
+	/**
+	 * 
+	 * @param address
+	 *            the address of the ftp-server
+	 * @param port
+	 *            the port number of the ftp-server
+	 * @param username
+	 *            login for the ftp-server
+	 * @param password
+	 *            password for the given username on the ftp-server
+	 * @param active
+	 *            use active or passive ftp
+	 * @param pool
+	 *            the pool providing the sessions
+	 * @param threads
+	 *            number of sessions used for one file, for chunks the number
+	 *            of sessions used for all files
+	 * @param chunkSize
+	 *            size of the chunks uploaded, 0 to upload single files
+	 */
+	public FtpTransport(String address, int port, String username,
+			String password, boolean active, FtpSessionPool pool, int threads,
+			long chunkSize) {
+		this(address, port, username, password, active, pool, threads,
+				chunkSize, chunkSize > 0);
+	}
+
+	private FtpTransport(String address, int port, String username,
+			String password, boolean active, FtpSessionPool pool, int threads,
+			long chunkSize, boolean chunked) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive");
+		this.address = address;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.active = active;
+		this.pool = pool;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.chunked = chunked;
+		this.chunkExecutor = chunkSize > 0 ? FtpChunkedTransfer
+				.newExecutor(threads) : null;
+	}
+
+	/**
+	 * Creates the transport to download the data described by a receiver
+	 * configuration file.
+	 * 
+	 * @param rconf
+	 *            the receiver configuration file
+	 * @param active
+	 *            use active or passive ftp
+	 * @param pool
+	 *            the pool providing the sessions
+	 * @param threads
+	 *            number of sessions used for one file
+	 * @return the transport
+	 * @throws IllegalArgumentException
+	 *             if the transfer format of rconf is not supported
+	 */
+	public static FtpTransport forReceiver(ReceiverConfigurationFile rconf,
+			boolean active, FtpSessionPool pool, int threads) {
+		String transfer = rconf.getTransfer();
+		if (transfer != null && !FtpChunkedTransfer.TRANSFER.equals(transfer))
+			throw new IllegalArgumentException("unsupported transfer format \""
+					+ transfer + "\"");
+		return new FtpTransport(rconf.getFtpServer(), rconf.getFtpPort(),
+				rconf.getFtpUser(), rconf.getFtpPassword(), active, pool,
+				threads, 0, transfer != null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String upload(SeekableSource source) throws IOException {
+		if (chunked) {
+			FtpChunkedTransfer ftp = new FtpChunkedTransfer(address, port,
+					username, password, active, pool, chunkExecutor);
+			if (!ftp.upload(source, chunkSize))
+				throw failed(ftp.getException());
+			return ftp.getResult();
+		}
+		FtpUploader ftp = new FtpUploader(address, port, username, password,
+				active, pool);
+		if (!ftp.process(source))
+			throw failed(ftp.getException());
+		return ftp.getResult();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void download(String name, File file) throws IOException {
+		if (chunked) {
+			FtpChunkedTransfer ftp = new FtpChunkedTransfer(address, port,
+					username, password, active, pool, threads);
+			if (!ftp.download(name, file))
+				throw failed(ftp.getException());
+		} else if (threads > 1) {
+			FtpSegmentedDownloader ftp = new FtpSegmentedDownloader(address,
+					port, username, password, active, name, pool, threads);
+			if (!ftp.download(file))
+				throw failed(ftp.getException());
+		} else {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					file));
+			FtpDownloader ftp = new FtpDownloader(address, port, username,
+					password, active, name, pool);
+			try {
+				if (!ftp.process(null, out))
+					throw failed(ftp.getException());
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void configure(ReceiverConfigurationFile rconf) {
+		rconf.setFtpServer(address);
+		rconf.setFtpPort(port);
+		rconf.setFtpUser(username);
+		rconf.setFtpPassword(password);
+		if (chunked)
+			rconf.setTransfer(FtpChunkedTransfer.TRANSFER);
+	}
+
+	/**
+	 * converts the exception of a failed transfer.
+	 */
+	private static IOException failed(Exception e) {
+		if (e instanceof IOException)
+			return (IOException) e;
+		return new IOException(e.toString(), e);
+	}
+}
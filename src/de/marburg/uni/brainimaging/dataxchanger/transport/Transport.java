@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+import de.marburg.uni.brainimaging.dataxchanger.configurationfile.ReceiverConfigurationFile;
+
+/**
+ * This interface is implemented by the ways encrypted data is exchanged
+ * between sender and receiver, e.g. an FTP-server or a shared directory.
+ * Implementations must be safe to use from several threads at once.
+ * 
+ * @author Kornelius Podranski
+ */
+public interface Transport {
+
+	/**
+	 * Uploads the data of source. The data becomes visible to receivers only
+	 * when it is complete.
+	 * 
+	 * @param source
+	 *            data to upload
+	 * @return name the receiver downloads the data by
+	 * @throws IOException
+	 *             if the upload failed
+	 */
+	public String upload(SeekableSource source) throws IOException;
+
+	/**
+	 * Downloads the data uploaded as name into file.
+	 * 
+	 * @param name
+	 *            name returned by upload()
+	 * @param file
+	 *            local file the data is written to
+	 * @throws IOException
+	 *             if the download failed
+	 */
+	public void download(String name, File file) throws IOException;
+
+	/**
+	 * Records in rconf where the receiver finds the uploaded data.
+	 * 
+	 * @param rconf
+	 *            receiver configuration file of the upload
+	 */
+	public void configure(ReceiverConfigurationFile rconf);
+}
@@ -0,0 +1,74 @@
+#!/bin/bash
+
+# Copyright 2013 Kornelius Podranski
+#
+# This file is part of dataXchanger.
+#
+# dataXchanger is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# dataXchanger is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+
+
+# this script measures send and receive throughput of the dataXchanger tool
+# with synthetic DICOM files and an FTP-server on localhost. the benchmark
+# runs $JAR for send and receive with $JAVAOPTS. no external FTP-server is
+# needed. the "result" lines of all runs are collected in
+# $RESULTFILE, one line per run, for comparison between versions.
+
+#ENVIRONMENT
+JAVA=java
+JAVAC=javac
+JAR=dataXchanger.jar
+JAVAOPTS="-Xmx2g"
+BENCHMARKSRC=../benchmark/src
+CLASSES=benchmark_classes
+LOGFILE=dataXchanger_benchmark.log
+RESULTFILE=dataXchanger_benchmark.results
+MAIN=de.marburg.uni.brainimaging.dataxchanger.benchmark.EndToEndBenchmark
+
+#calld once upon start of this scrip
+init() {
+	rm -f "$LOGFILE"
+	rm -rf "$CLASSES"
+	mkdir "$CLASSES"
+	$JAVAC -cp "$JAR" -d "$CLASSES" $(find "$BENCHMARKSRC" -name '*.java' \
+		-not -path '*/jmh/*') \
+		>> "$LOGFILE" 2>&1 || { echo "compiling benchmark failed"; exit 1; }
+}
+
+#run one benchmark and record its result line
+#arguments:
+#	$1..$n arguments for the benchmark after jar and whitelist
+bench() {
+	echo "running $*------------------------------------------------------------" >> "$LOGFILE"
+	printf "%s\t" "$*"
+	out=$($JAVA $JAVAOPTS -cp "$JAR:$CLASSES" $MAIN "$JAR" whitelist "$@" 2>&1)
+	return=$?
+	echo "$out" >> "$LOGFILE"
+	if [ $return -ne 0 ]; then
+		echo failed
+		return $return
+	fi
+	result=$(echo "$out" | grep "^result ")
+	echo "$(date +%Y-%m-%dT%H:%M:%S) $result" >> "$RESULTFILE"
+	echo "$result" | tr ' ' '\n' | grep "_mb_s=\|_files_s=" | tr '\n' ' '
+	echo
+}
+
+#main
+init
+
+bench small
+bench small --compress
+bench small --directory
+bench huge
+bench huge --compress
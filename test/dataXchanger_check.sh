@@ -0,0 +1,62 @@
+#!/bin/bash
+
+# Copyright 2013 Kornelius Podranski
+#
+# This file is part of dataXchanger.
+#
+# dataXchanger is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# dataXchanger is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+
+
+# this script runs the checks in ../test/src against the dataXchanger jar.
+# the checks need no ftp-server, servers are started on localhost.
+
+#ENVIRONMENT
+JAVA=java
+JAVAC=javac
+JAR=dataXchanger.jar
+SRC="src ../benchmark/src"
+CLASSES=check_classes
+LOGFILE=dataXchanger_check.log
+PACKAGE=de.marburg.uni.brainimaging.dataxchanger.check
+
+#calld once upon start of this scrip
+init() {
+	rm -f "$LOGFILE"
+	rm -rf "$CLASSES"
+	mkdir "$CLASSES"
+	$JAVAC -cp "$JAR" -d "$CLASSES" $(find $SRC -name '*.java' \
+		-not -path '*/jmh/*') \
+		>> "$LOGFILE" 2>&1 || { echo "compiling checks failed"; exit 1; }
+}
+
+#run one check
+#arguments:
+#	$1 name of the check class
+run() {
+	echo "running $1------------------------------------------------------------" >> "$LOGFILE"
+	printf "$1\t"
+	$JAVA -cp "$JAR:$CLASSES" $PACKAGE.$1 >> "$LOGFILE" 2>&1
+	if [ $? -ne 0 ]; then
+		echo failed
+	else
+		echo passed
+	fi
+}
+
+#main
+init
+
+for check in $(cd src; find . -name '*Check.java' | sort); do
+	run $(basename "$check" .java)
+done
@@ -0,0 +1,70 @@
+#!/bin/bash
+
+# Copyright 2013 Kornelius Podranski
+#
+# This file is part of dataXchanger.
+#
+# dataXchanger is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# dataXchanger is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+
+
+# this script runs the JMH microbenchmarks in ../benchmark/src/.../jmh with
+# one thread and with one thread per processor, using the GC profiler to
+# report the allocation rate next to the score. the JMH jars (jmh-core,
+# jmh-generator-annprocess, jopt-simple, commons-math3) are expected in
+# $JMHLIB. results are written as JSON, one file per thread count, for
+# comparison between versions.
+#
+# usage: dataXchanger_jmh.sh [BENCHMARK-REGEX] [JMH-OPTIONS]
+# e.g. dataXchanger_jmh.sh StreamCryptoBenchmark -p payloadSize=65536
+
+#ENVIRONMENT
+JAVA=java
+JAVAC=javac
+JAR=dataXchanger.jar
+JMHLIB=${JMHLIB:-jmh}
+BENCHMARKSRC=../benchmark/src
+CLASSES=jmh_classes
+LOGFILE=dataXchanger_jmh.log
+RESULTPREFIX=dataXchanger_jmh
+
+#calld once upon start of this scrip
+init() {
+	rm -f "$LOGFILE"
+	rm -rf "$CLASSES"
+	mkdir "$CLASSES"
+	# the JMH annotation processor generates the benchmark harness
+	$JAVAC -cp "$JAR:$JMHLIB/*" -d "$CLASSES" \
+		$(find "$BENCHMARKSRC" -name '*.java') \
+		>> "$LOGFILE" 2>&1 || { echo "compiling benchmarks failed"; exit 1; }
+}
+
+#run the benchmarks with a number of threads
+#arguments:
+#	$1 number of threads or "max" for one per processor
+#	$2..$n benchmark regex and further JMH options
+run() {
+	threads=$1
+	shift
+	result="$RESULTPREFIX-$(date +%Y%m%dT%H%M%S)-t$threads.json"
+	echo "running with $threads threads, results in $result"
+	$JAVA -cp "$JAR:$CLASSES:$JMHLIB/*" org.openjdk.jmh.Main -t "$threads" \
+		-prof gc -rf json -rff "$result" "$@" 2>&1 | tee -a "$LOGFILE" \
+		| grep "^Benchmark\|^[A-Z][A-Za-z]*Benchmark\.[A-Za-z]* \|gc.alloc.rate"
+}
+
+#main
+init
+
+run 1 "${@:-de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh}"
+run max "${@:-de.marburg.uni.brainimaging.dataxchanger.benchmark.jmh}"
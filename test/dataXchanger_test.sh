@@ -61,6 +61,7 @@ setup() {
 	mkdir send
 	mkdir receive
 	mkdir receive_1
+	mkdir shared
 	cp rsa_private_0.pem receive/
 	cp rsa_private_1.pem receive_1/
 	cp rsa_public_0.pem send/
@@ -77,6 +78,7 @@ clean() {
 	rm -rf send
 	rm -rf receive
 	rm -rf receive_1
+	rm -rf shared
 }
 
 #call the specific $EXE commandline
@@ -147,8 +149,8 @@ test_send_and_receive_single() {
 	fi
 	
 	#compare result with anonymized file from sender
-	echo "cmp send/anonymized_test.dcm receive/test.dcm"
-	out=$(cmp send/anonymized_test.dcm receive/test.dcm 2>&1)
+	echo "cmp send/anonymized_*_test.dcm receive/test.dcm"
+	out=$(cmp send/anonymized_*_test.dcm receive/test.dcm 2>&1)
 	return=$?
 	echo "$out"
 	if [ $return -ne 0 ]; then
@@ -159,6 +161,96 @@ test_send_and_receive_single() {
 	return 0
 }
 
+#send test.dcm, receive it and compare it with the anonymized file
+#arguments:
+#	$1..$n additional arguments for sending
+send_and_receive() {
+	#send
+	out=$(execute send --send --whitelist whitelist --enc-key rsa_public_0.pem \
+		--debug --input test.dcm "$@" 2>&1)
+	return=$?
+	echo "$out"
+	if [ $return -ne 0 ]; then
+		return $return
+	fi
+	if [ -n "$out" ]; then
+		return 1
+	fi
+
+	#transfer config-file
+	echo "cp send/test_0.rconf receive/test.rconf"
+	cp send/test_0.rconf receive/test.rconf
+
+	#receive
+	out=$(execute receive --receive --ftp-active --dec-key rsa_private_0.pem\
+		--debug --conf test.rconf 2>&1)
+	return=$?
+	echo "$out"
+	if [ $return -ne 0 ]; then
+		return $return
+	fi
+	if [ -n "$out" ]; then
+		return 1
+	fi
+	if [ ! -e receive/test.dcm ]; then
+		return 1
+	fi
+
+	#compare result with anonymized file from sender
+	echo "cmp send/anonymized_*_test.dcm receive/test.dcm"
+	out=$(cmp send/anonymized_*_test.dcm receive/test.dcm 2>&1)
+	return=$?
+	echo "$out"
+	return $return
+}
+
+test_send_and_receive_compressed() {
+	send_and_receive --compress --ftp-server $FTPSERVER --ftp-port $FTPPORT \
+		--ftp-active --ftp-user $FTPUSER --ftp-password $FTPPWD
+}
+
+test_send_and_receive_chunked() {
+	send_and_receive --chunk-size 1 --ftp-server $FTPSERVER \
+		--ftp-port $FTPPORT --ftp-active --ftp-user $FTPUSER \
+		--ftp-password $FTPPWD
+}
+
+test_send_and_receive_directory() {
+	send_and_receive --directory ../shared
+}
+
+test_receive_moved_directory() {
+	#send
+	out=$(execute send --send --whitelist whitelist --enc-key rsa_public_0.pem \
+		--debug --input test.dcm --directory ../shared 2>&1)
+	return=$?
+	echo "$out"
+	if [ $return -ne 0 ]; then
+		return $return
+	fi
+
+	#the receiver mounts the directory elsewhere
+	echo "mv shared receive/shared"
+	mv shared receive/shared
+	cp send/test_0.rconf receive/test.rconf
+
+	#receive
+	out=$(execute receive --receive --dec-key rsa_private_0.pem --debug \
+		--directory shared --conf test.rconf 2>&1)
+	return=$?
+	echo "$out"
+	if [ $return -ne 0 ]; then
+		return $return
+	fi
+
+	#compare result with anonymized file from sender
+	echo "cmp send/anonymized_*_test.dcm receive/test.dcm"
+	out=$(cmp send/anonymized_*_test.dcm receive/test.dcm 2>&1)
+	return=$?
+	echo "$out"
+	return $return
+}
+
 test_help() {
 	out=$(execute . --help 2>&1)
 	return=$?
@@ -251,8 +343,8 @@ test_send_and_receive_multi() {
 		return 1
 	fi
 	#compare result with anonymized file from sender
-	echo "cmp send/anonymized_test.dcm receive/test.dcm"
-	out=$(cmp send/anonymized_test.dcm receive/test.dcm 2>&1)
+	echo "cmp send/anonymized_*_test.dcm receive/test.dcm"
+	out=$(cmp send/anonymized_*_test.dcm receive/test.dcm 2>&1)
 	return=$?
 	echo "$out"
 	if [ $return -ne 0 ]; then
@@ -273,8 +365,8 @@ test_send_and_receive_multi() {
 		return 1
 	fi
 	#compare result with anonymized file from sender
-	echo "cmp send/anonymized_test.dcm receive_1/test.dcm"
-	out=$(cmp send/anonymized_test.dcm receive_1/test.dcm 2>&1)
+	echo "cmp send/anonymized_*_test.dcm receive_1/test.dcm"
+	out=$(cmp send/anonymized_*_test.dcm receive_1/test.dcm 2>&1)
 	return=$?
 	echo "$out"
 	if [ $return -ne 0 ]; then
@@ -292,4 +384,8 @@ run test_version
 run test_help
 run test_send_and_receive_single
 run test_send_and_receive_multi
+run test_send_and_receive_compressed
+run test_send_and_receive_chunked
+run test_send_and_receive_directory
+run test_receive_moved_directory
 run test_corrupt_symkey_in_rconf
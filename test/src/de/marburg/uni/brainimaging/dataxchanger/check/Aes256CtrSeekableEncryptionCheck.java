@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+import static de.marburg.uni.brainimaging.dataxchanger.check.Checks.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrSeekableEncryption;
+import de.marburg.uni.brainimaging.dataxchanger.symmetriccryptography.Aes256CtrStreamEncryption;
+
+/**
+ * Checks that Aes256CtrSeekableEncryption regenerates the output of
+ * Aes256CtrStreamEncryption.encrypt() byte for byte: open() and transferTo()
+ * are compared at offsets inside the IV, at and between block boundaries,
+ * across the buffers of transferTo() and at the end. A counter which carries
+ * over several bytes is checked by decrypting with the stream class.
+ * 
+ * @author Kornelius Podranski
+ */
+public class Aes256CtrSeekableEncryptionCheck {
+
+	private static final int BLOCKSIZE = 16;
+	private static final int IVSIZE = Aes256CtrStreamEncryption.IVSIZE / 8;
+
+	public static void main(String[] args) throws IOException,
+			GeneralSecurityException {
+		Security.addProvider(new BouncyCastleProvider());
+		// several buffers of transferTo() and a partial last block
+		byte[] plaintext = new byte[3 * 64 * 1024 + 7];
+		new Random(42).nextBytes(plaintext);
+		File file = File.createTempFile("check", ".plain");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(plaintext);
+			out.close();
+
+			Aes256CtrStreamEncryption encryption = new Aes256CtrStreamEncryption(
+					null);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			encryption.encrypt(new ByteArrayInputStream(plaintext), expected);
+			Aes256CtrSeekableEncryption seekable = new Aes256CtrSeekableEncryption(
+					encryption.getKey(), encryption.getIV(), file);
+			checkOffsets(seekable, expected.toByteArray());
+
+			// the last 9 bytes of the counter carry within the first blocks
+			byte[] iv = new byte[IVSIZE];
+			Arrays.fill(iv, IVSIZE - 9, IVSIZE, (byte) 0xff);
+			iv[IVSIZE - 1] = (byte) 0xfe;
+			checkCarry(encryption.getKey(), iv, file, plaintext);
+		} finally {
+			file.delete();
+		}
+		System.out.println("passed");
+	}
+
+	private static void checkOffsets(Aes256CtrSeekableEncryption seekable,
+			byte[] expected) throws IOException {
+		int length = expected.length;
+		check(seekable.length() == length, "length differs");
+		int[] offsets = { 0, 1, IVSIZE / 2, IVSIZE - 1, IVSIZE,
+				IVSIZE + 1, IVSIZE + BLOCKSIZE - 1, IVSIZE + BLOCKSIZE,
+				IVSIZE + 5 * BLOCKSIZE + 3, IVSIZE + 64 * 1024 - 1,
+				IVSIZE + 64 * 1024 + 9, length - 8, length - 1, length };
+		for (int offset : offsets) {
+			byte[] opened = readFully(seekable.open(offset));
+			check(Arrays.equals(opened, range(expected, offset, length)),
+					"open(" + offset + ") differs");
+			for (int count : new int[] { 1, BLOCKSIZE + 2, length }) {
+				int end = (int) Math.min(length, (long) offset + count);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				long transferred = seekable.transferTo(offset, count,
+						Channels.newChannel(out));
+				check(transferred == end - offset, "transferTo(" + offset
+						+ ", " + count + ") returned " + transferred);
+				check(Arrays.equals(out.toByteArray(),
+						range(expected, offset, end)), "transferTo(" + offset
+						+ ", " + count + ") differs");
+			}
+		}
+	}
+
+	private static void checkCarry(SecretKey key, byte[] iv, File file,
+			byte[] plaintext) throws IOException, GeneralSecurityException {
+		Aes256CtrSeekableEncryption seekable = new Aes256CtrSeekableEncryption(
+				key, iv, file);
+		byte[] ciphertext = readFully(seekable.open(0));
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		new Aes256CtrStreamEncryption(key).decrypt(new ByteArrayInputStream(
+				ciphertext), decrypted);
+		check(Arrays.equals(decrypted.toByteArray(), plaintext),
+				"counter carry differs from the cipher");
+		checkOffsets(seekable, ciphertext);
+	}
+
+	private static byte[] range(byte[] bytes, int from, int to) {
+		byte[] range = new byte[to - from];
+		System.arraycopy(bytes, from, range, 0, range.length);
+		return range;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) != -1)
+			out.write(buffer, 0, count);
+		in.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+import static de.marburg.uni.brainimaging.dataxchanger.check.Checks.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import de.marburg.uni.brainimaging.dataxchanger.SeekableSource;
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.LocalFtpServer;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpEventLoop;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpSessionPool;
+import de.marburg.uni.brainimaging.dataxchanger.transport.AsyncFtpTransport;
+
+/**
+ * Checks AsyncFtpTransport against LocalFtpServer: files uploaded
+ * concurrently over sessions of one event loop arrive complete under the
+ * returned names. One source blocks until all other uploads are done, which
+ * only completes if sources are read off the thread of the loop.
+ * 
+ * @author Kornelius Podranski
+ */
+public class AsyncFtpTransportCheck {
+
+	private static final int FILES = 40;
+	private static final int THREADS = 8;
+
+	public static void main(String[] args) throws Exception {
+		File root = File.createTempFile("check", ".ftp");
+		root.delete();
+		root.mkdir();
+		LocalFtpServer server = new LocalFtpServer(root);
+		server.start();
+		FtpEventLoop loop = new FtpEventLoop(2);
+		ExecutorService uploads = Executors.newFixedThreadPool(THREADS);
+		try {
+			final AsyncFtpTransport transport = new AsyncFtpTransport(loop,
+					"127.0.0.1", server.getPort(), "check", "check",
+					new FtpSessionPool());
+			final CountDownLatch others = new CountDownLatch(FILES - 1);
+			Random random = new Random(42);
+			List<byte[]> contents = new ArrayList<byte[]>();
+			List<Future<String>> names = new ArrayList<Future<String>>();
+			for (int i = 0; i < FILES; i++) {
+				// empty, smaller and larger than the buffer of a connection
+				byte[] content = new byte[i == 1 ? 0 : random.nextInt(300000)];
+				random.nextBytes(content);
+				contents.add(content);
+				final SeekableSource source = i == 0 ? blocking(content,
+						others) : source(content);
+				final boolean counted = i != 0;
+				names.add(uploads.submit(new Callable<String>() {
+					public String call() throws IOException {
+						String name = transport.upload(source);
+						if (counted)
+							others.countDown();
+						return name;
+					}
+				}));
+			}
+			for (int i = 0; i < FILES; i++) {
+				String name = names.get(i).get(60, TimeUnit.SECONDS);
+				check(Arrays.equals(read(new File(root, name)),
+						contents.get(i)), "content of upload " + i
+						+ " differs");
+			}
+			check(root.list().length == FILES, "unexpected files on server");
+			transport.close();
+		} finally {
+			uploads.shutdownNow();
+			loop.close();
+			server.close();
+			for (File file : root.listFiles())
+				file.delete();
+			root.delete();
+		}
+		System.out.println("passed");
+	}
+
+	private static SeekableSource source(final byte[] content) {
+		return new SeekableSource() {
+			public long length() {
+				return content.length;
+			}
+
+			public InputStream open(long offset) {
+				return new ByteArrayInputStream(content, (int) offset,
+						content.length - (int) offset);
+			}
+		};
+	}
+
+	/**
+	 * a source whose stream blocks until latch is released.
+	 */
+	private static SeekableSource blocking(final byte[] content,
+			final CountDownLatch latch) {
+		final SeekableSource source = source(content);
+		return new SeekableSource() {
+			public long length() {
+				return source.length();
+			}
+
+			public InputStream open(long offset) throws IOException {
+				return new FilterInputStream(source.open(offset)) {
+					@Override
+					public int read(byte[] b, int off, int len)
+							throws IOException {
+						try {
+							latch.await();
+						} catch (InterruptedException e) {
+							throw new IOException("interrupted");
+						}
+						return super.read(b, off, len);
+					}
+				};
+			}
+		};
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < bytes.length) {
+				int count = in.read(bytes, n, bytes.length - n);
+				if (count == -1)
+					break;
+				n += count;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+/**
+ * Helpers of the checks run by test/dataXchanger_check.sh. A check is a class
+ * with a main method, which throws an exception if the check fails.
+ * 
+ * @author Kornelius Podranski
+ */
+final class Checks {
+
+	private Checks() {
+	}
+
+	/**
+	 * @param condition
+	 *            condition that has to hold
+	 * @param message
+	 *            description of the failure
+	 * @throws IllegalStateException
+	 *             if condition is false
+	 */
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalStateException("check failed: " + message);
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+import static de.marburg.uni.brainimaging.dataxchanger.check.Checks.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputHandler;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.SyntheticDicom;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelistAnonymizer;
+
+/**
+ * Checks that DicomWhitelistAnonymizer splices the pixel data when the
+ * whitelist keeps pixel data and transfer syntax: everything from the pixel
+ * data element to the end of the file is the same as in the source, and the
+ * anonymized header is written in the transfer syntax of the source. Native
+ * pixel data in explicit and implicit VR and encapsulated pixel data of
+ * undefined length are checked.
+ * 
+ * @author Kornelius Podranski
+ */
+public class DicomSpliceCheck {
+
+	// keeps pixel data and transfer syntax, so the pixel data is spliced
+	private static final String WHITELIST = "0002,0001\n0002,0002\n"
+			+ "0002,0003\n0002,0010\n0002,0012\n0008,0016\n0008,0018\n"
+			+ "0008,0060\n0010,0010=ANON\n0028,0002\n0028,0004\n0028,0010\n"
+			+ "0028,0011\n0028,0100\n0028,0101\n0028,0102\n0028,0103\n"
+			+ "7FE0,0010\n";
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("check", ".whitelist");
+		try {
+			Writer out = new FileWriter(file);
+			out.write(WHITELIST);
+			out.close();
+			DicomWhitelist whitelist = new DicomWhitelist(file);
+
+			checkSplice(whitelist, UID.ExplicitVRLittleEndian, false);
+			checkSplice(whitelist, UID.ImplicitVRLittleEndian, false);
+			checkSplice(whitelist, UID.JPEGBaseline1, true);
+		} finally {
+			file.delete();
+			CompiledDicomWhitelist.compiledFile(file).delete();
+		}
+		System.out.println("passed");
+	}
+
+	private static void checkSplice(DicomWhitelist whitelist,
+			String tsuid, boolean encapsulated) throws IOException {
+		DicomObject dcm = new SyntheticDicom(42).create("CT", 64, 64, 1);
+		if (encapsulated) {
+			dcm.remove(Tag.PixelData);
+			DicomElement fragments = dcm.putFragments(Tag.PixelData, VR.OB,
+					false);
+			fragments.addFragment(new byte[0]); // empty offset table
+			fragments.addFragment(fragment(1000));
+			fragments.addFragment(fragment(2000));
+		}
+		dcm.initFileMetaInformation(UID.SecondaryCaptureImageStorage,
+				dcm.getString(Tag.SOPInstanceUID), tsuid);
+		byte[] source = encode(dcm);
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DicomWhitelistAnonymizer.anonymize(new ByteArrayInputStream(source),
+				buffer, whitelist);
+		byte[] anonymized = buffer.toByteArray();
+
+		// the tail is spliced byte-for-byte
+		long sourcePixelData = pixelDataPosition(source);
+		long pixelData = pixelDataPosition(anonymized);
+		check(sourcePixelData > 0 && pixelData > 0, tsuid
+				+ ": pixel data missing");
+		check(anonymized.length - pixelData == source.length
+				- sourcePixelData, tsuid + ": length of the tail differs");
+		check(Arrays.equals(Arrays.copyOfRange(source, (int) sourcePixelData,
+				source.length), Arrays.copyOfRange(anonymized,
+				(int) pixelData, anonymized.length)), tsuid
+				+ ": tail differs");
+
+		// the header is written in the transfer syntax of the source
+		DicomInputStream dIn = new DicomInputStream(new ByteArrayInputStream(
+				anonymized));
+		DicomObject result = dIn.readDicomObject();
+		check(dIn.getTransferSyntax().uid().equals(tsuid), tsuid
+				+ ": transfer syntax changed to "
+				+ dIn.getTransferSyntax().uid());
+		long dataset = dIn.getEndOfFileMetaInfoPosition();
+		dIn.close();
+		check(tsuid.equals(result.getString(Tag.TransferSyntaxUID)), tsuid
+				+ ": transfer syntax UID changed");
+		dIn = new DicomInputStream(new ByteArrayInputStream(anonymized,
+				(int) dataset, anonymized.length - (int) dataset),
+				TransferSyntax.valueOf(tsuid));
+		DicomObject header = dIn.readDicomObject();
+		dIn.close();
+		check("ANON".equals(header.getString(Tag.PatientName)), tsuid
+				+ ": patient name not replaced");
+		check(!header.contains(Tag.PatientBirthDate), tsuid
+				+ ": patient birth date not removed");
+		check(dcm.getString(Tag.SOPInstanceUID).equals(
+				header.getString(Tag.SOPInstanceUID)), tsuid
+				+ ": SOP instance UID differs");
+
+		// the spliced pixel data parses like the source
+		DicomElement expected = dcm.get(Tag.PixelData);
+		DicomElement actual = result.get(Tag.PixelData);
+		if (encapsulated) {
+			check(actual.hasFragments()
+					&& actual.countItems() == expected.countItems(), tsuid
+					+ ": fragments differ");
+			for (int i = 0; i < expected.countItems(); i++)
+				check(Arrays.equals(expected.getFragment(i), actual
+						.getFragment(i)), tsuid + ": fragment " + i
+						+ " differs");
+		} else {
+			check(Arrays.equals(expected.getBytes(), actual.getBytes()),
+					tsuid + ": pixel data differs");
+		}
+	}
+
+	private static byte[] encode(DicomObject dcm) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DicomOutputStream dOut = new DicomOutputStream(out);
+		dOut.writeDicomFile(dcm);
+		dOut.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return offset of the top level pixel data element in a DICOM-file, -1
+	 *         if there is none
+	 */
+	private static long pixelDataPosition(byte[] file) throws IOException {
+		final long[] position = { -1 };
+		DicomInputStream dIn = new DicomInputStream(new ByteArrayInputStream(
+				file));
+		dIn.setHandler(new DicomInputHandler() {
+			public boolean readValue(DicomInputStream in) throws IOException {
+				if (in.tag() == Tag.PixelData && in.level() == 0) {
+					position[0] = in.tagPosition();
+					return false;
+				}
+				return in.readValue(in);
+			}
+		});
+		dIn.readDicomObject();
+		dIn.close();
+		return position[0];
+	}
+
+	/**
+	 * creates a fragment of even length looking like a JPEG stream.
+	 */
+	private static byte[] fragment(int length) {
+		byte[] fragment = new byte[length];
+		for (int i = 0; i < length; i++)
+			fragment[i] = (byte) (i * 31);
+		fragment[0] = (byte) 0xff;
+		fragment[1] = (byte) 0xd8;
+		fragment[length - 2] = (byte) 0xff;
+		fragment[length - 1] = (byte) 0xd9;
+		return fragment;
+	}
+}
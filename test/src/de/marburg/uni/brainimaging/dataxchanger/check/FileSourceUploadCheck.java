@@ -0,0 +1,144 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+import static de.marburg.uni.brainimaging.dataxchanger.check.Checks.check;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import de.marburg.uni.brainimaging.dataxchanger.ChannelSource;
+import de.marburg.uni.brainimaging.dataxchanger.FileSource;
+import de.marburg.uni.brainimaging.dataxchanger.benchmark.LocalFtpServer;
+import de.marburg.uni.brainimaging.dataxchanger.ftp.FtpClient;
+
+/**
+ * Checks uploads of a FileSource with FtpClient.put(source, path) against
+ * LocalFtpServer. The data connection is written with
+ * FileChannel.transferTo(). The second upload is interrupted halfway, so it
+ * has to be resumed with APPE from the size of the partial file.
+ * 
+ * @author Kornelius Podranski
+ */
+public class FileSourceUploadCheck {
+
+	private static final int SIZE = 3 * 1024 * 1024 + 17;
+
+	public static void main(String[] args) throws IOException {
+		File root = File.createTempFile("check", ".ftp");
+		root.delete();
+		root.mkdir();
+		File file = File.createTempFile("check", ".data");
+		LocalFtpServer server = new LocalFtpServer(root);
+		server.start();
+		FtpClient client = new FtpClient("127.0.0.1", server.getPort(),
+				"check", "check");
+		try {
+			byte[] content = new byte[SIZE];
+			new Random(42).nextBytes(content);
+			OutputStream out = new FileOutputStream(file);
+			out.write(content);
+			out.close();
+
+			client.put(new FileSource(file), "plain");
+			check(Arrays.equals(read(new File(root, "plain")), content),
+					"content of upload differs");
+
+			InterruptedSource interrupted = new InterruptedSource(
+					new FileSource(file), SIZE / 2);
+			client.put(interrupted, "resumed");
+			check(interrupted.resumedAt > 0, "upload was not resumed");
+			check(interrupted.resumedAt <= SIZE / 2, "resumed at "
+					+ interrupted.resumedAt + " behind the interruption");
+			check(Arrays.equals(read(new File(root, "resumed")), content),
+					"content of resumed upload differs");
+			client.disconnect();
+		} finally {
+			server.close();
+			file.delete();
+			for (File f : root.listFiles())
+				f.delete();
+			root.delete();
+		}
+		System.out.println("passed");
+	}
+
+	/**
+	 * fails the first transfer after the given number of bytes and records
+	 * the offset the next transfer starts at.
+	 */
+	private static class InterruptedSource implements ChannelSource {
+		private final ChannelSource source;
+		private final long interruptAt;
+		private boolean interrupted = false;
+		long resumedAt = -1;
+
+		InterruptedSource(ChannelSource source, long interruptAt) {
+			this.source = source;
+			this.interruptAt = interruptAt;
+		}
+
+		public long length() {
+			return source.length();
+		}
+
+		public InputStream open(long offset) throws IOException {
+			throw new IOException("only transferTo() is expected");
+		}
+
+		public long transferTo(long offset, long count,
+				WritableByteChannel channel) throws IOException {
+			if (!interrupted) {
+				if (offset >= interruptAt) {
+					interrupted = true;
+					throw new IOException("interrupted by check");
+				}
+				count = Math.min(count, interruptAt - offset);
+			} else if (resumedAt == -1) {
+				resumedAt = offset;
+			}
+			return source.transferTo(offset, count, channel);
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < bytes.length) {
+				int count = in.read(bytes, n, bytes.length - n);
+				if (count == -1)
+					break;
+				n += count;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+}
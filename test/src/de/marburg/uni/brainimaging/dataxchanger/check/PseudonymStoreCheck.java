@@ -0,0 +1,195 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+import static de.marburg.uni.brainimaging.dataxchanger.check.Checks.check;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.marburg.uni.brainimaging.dataxchanger.pseudonymization.PseudonymStore;
+
+/**
+ * Checks the recovery of PseudonymStore after simulated crashes: a log
+ * ending in a torn record, a log truncated in the middle of a record, a
+ * missing index and an index whose header lags behind its slots. The store
+ * holds enough keys to grow the index beyond its initial capacity, and one
+ * new key requested by many threads at once must get one pseudonym.
+ * 
+ * @author Kornelius Podranski
+ */
+public class PseudonymStoreCheck {
+
+	// more than half the initial capacity of the index, so it is resized
+	private static final int KEYS = 40000;
+	private static final int THREADS = 8;
+
+	public static void main(String[] args) throws Exception {
+		File file = File.createTempFile("check", ".pseudonyms");
+		file.delete();
+		File indexFile = new File(file.getPath() + PseudonymStore.INDEXSUFFIX);
+		try {
+			Map<String, String> pseudonyms = new HashMap<String, String>();
+			PseudonymStore store = new PseudonymStore(file);
+			try {
+				new PseudonymStore(file);
+				check(false, "store opened twice");
+			} catch (IOException e) {
+				// expected
+			}
+			checkConcurrent(store, "same key", pseudonyms);
+			for (int i = 0; i < KEYS; i++) {
+				String key = "key " + i;
+				pseudonyms.put(key, store.pseudonym(key));
+			}
+			checkStore(store, pseudonyms);
+			store.close();
+			// header and slots of the initial capacity
+			check(indexFile.length() > 24 + (1 << 16) * 16,
+					"index not resized");
+			checkReopened(file, pseudonyms);
+
+			// torn record at the end of the log
+			long length = file.length();
+			RandomAccessFile log = new RandomAccessFile(file, "rw");
+			log.seek(length);
+			log.writeInt(12);
+			log.writeInt(16);
+			log.write("torn".getBytes("UTF-8"));
+			log.close();
+			checkReopened(file, pseudonyms);
+			check(file.length() == length, "torn record not cut off");
+			checkNewKey(file, pseudonyms);
+			length = file.length();
+
+			// log truncated in the middle of its last record, the index
+			// covers more than the log
+			store = new PseudonymStore(file);
+			pseudonyms.put("lost key", store.pseudonym("lost key"));
+			store.close();
+			log = new RandomAccessFile(file, "rw");
+			log.setLength(length + 10);
+			log.close();
+			pseudonyms.remove("lost key");
+			checkReopened(file, pseudonyms);
+			check(file.length() == length, "truncated record not cut off");
+			checkNewKey(file, pseudonyms);
+
+			// missing index
+			check(indexFile.delete(), "index not deleted");
+			checkReopened(file, pseudonyms);
+			checkNewKey(file, pseudonyms);
+
+			// header of the index covering only the header of the log, all
+			// slots present
+			RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+			index.seek(12);
+			index.writeInt(0);
+			index.writeLong(8);
+			index.close();
+			checkReopened(file, pseudonyms);
+			checkNewKey(file, pseudonyms);
+		} finally {
+			file.delete();
+			indexFile.delete();
+		}
+		System.out.println("passed");
+	}
+
+	/**
+	 * requests a new key from THREADS threads at once.
+	 */
+	private static void checkConcurrent(final PseudonymStore store,
+			final String key, Map<String, String> pseudonyms)
+			throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(threads.submit(new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						return store.pseudonym(key);
+					}
+				}));
+			}
+			start.countDown();
+			Set<String> distinct = new HashSet<String>();
+			for (Future<String> result : results)
+				distinct.add(result.get());
+			check(distinct.size() == 1, distinct.size()
+					+ " pseudonyms for one key");
+			pseudonyms.put(key, distinct.iterator().next());
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	private static void checkReopened(File file, Map<String, String> pseudonyms)
+			throws IOException {
+		PseudonymStore store = new PseudonymStore(file);
+		try {
+			checkStore(store, pseudonyms);
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * checks that a recovered store still takes new keys.
+	 */
+	private static void checkNewKey(File file, Map<String, String> pseudonyms)
+			throws IOException {
+		PseudonymStore store = new PseudonymStore(file);
+		try {
+			String key = "new key " + pseudonyms.size();
+			String pseudonym = store.pseudonym(key);
+			check(!pseudonyms.containsValue(pseudonym),
+					"pseudonym handed out twice");
+			pseudonyms.put(key, pseudonym);
+		} finally {
+			store.close();
+		}
+		checkReopened(file, pseudonyms);
+	}
+
+	private static void checkStore(PseudonymStore store,
+			Map<String, String> pseudonyms) throws IOException {
+		check(store.size() == pseudonyms.size(), "store holds "
+				+ store.size() + " instead of " + pseudonyms.size()
+				+ " keys");
+		for (Map.Entry<String, String> entry : pseudonyms.entrySet())
+			check(entry.getValue().equals(store.pseudonym(entry.getKey())),
+					"pseudonym of \"" + entry.getKey() + "\" changed");
+	}
+}
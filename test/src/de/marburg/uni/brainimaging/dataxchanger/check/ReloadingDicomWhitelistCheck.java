@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 Kornelius Podranski
+ *
+ * This file is part of dataXchanger.
+ *
+ *  dataXchanger is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  dataXchanger is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with dataXchanger.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.marburg.uni.brainimaging.dataxchanger.check;
+
+import static de.marburg.uni.brainimaging.dataxchanger.check.Checks.check;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.dcm4che2.data.Tag;
+
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.CompiledDicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.DicomWhitelist;
+import de.marburg.uni.brainimaging.dataxchanger.dicomanonymizer.ReloadingDicomWhitelist;
+
+/**
+ * Checks that ReloadingDicomWhitelist does not activate a whitelist which is
+ * still being written: the file is rewritten in two steps, the first step
+ * lacks the replacement value of the patient name.
+ * 
+ * @author Kornelius Podranski
+ */
+public class ReloadingDicomWhitelistCheck {
+
+	private static final String HEAD = "0002,0010\n7FE0,0010\n";
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("check", ".whitelist");
+		try {
+			write(file, HEAD + "0010,0010=ANON\n", false);
+			ReloadingDicomWhitelist reloading = new ReloadingDicomWhitelist(
+					file, new DicomWhitelist(file));
+
+			// first step: the line is there, its value not yet
+			write(file, HEAD + "0008,0060\n0010,0010", true);
+			check(!reloading.reload(), "half-written whitelist activated");
+			assertAnonymized(reloading);
+
+			// second step
+			write(file, HEAD + "0008,0060\n0010,0010=ANON\n", true);
+			check(!reloading.reload(), "changing whitelist activated");
+			assertAnonymized(reloading);
+
+			// unchanged for one interval
+			check(reloading.reload(), "complete whitelist not activated");
+			assertAnonymized(reloading);
+			check(reloading.current().hasTag(Tag.Modality),
+					"new rule missing");
+			check(!reloading.reload(), "unchanged whitelist reloaded");
+		} finally {
+			file.delete();
+			CompiledDicomWhitelist.compiledFile(file).delete();
+		}
+		System.out.println("passed");
+	}
+
+	private static void assertAnonymized(ReloadingDicomWhitelist reloading) {
+		check(reloading.current().hasValue(Tag.PatientName),
+				"patient name is not replaced");
+	}
+
+	/**
+	 * writes content and makes sure the modification time changes, even on
+	 * file systems with a resolution of seconds.
+	 */
+	private static void write(File file, String content, boolean touch)
+			throws IOException {
+		long modified = file.lastModified();
+		Writer out = new FileWriter(file);
+		out.write(content);
+		out.close();
+		if (touch)
+			file.setLastModified(modified + 2000);
+	}
+}